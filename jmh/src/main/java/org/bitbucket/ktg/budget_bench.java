@@ -0,0 +1,71 @@
+// (C) 2013-2015 Kim, Taegyoon
+// Paren JMH benchmarks: cost of budget checks
+//
+// The same code with no budget and with a budget it stays within.
+// java -jar target/benchmarks.jar budget_bench
+package org.bitbucket.ktg;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.bitbucket.ktg.paren.node;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class budget_bench {
+    @Param({"TREE", "CLOSURE"})
+    paren.engine engine;
+
+    @Param({"false", "true"})
+    boolean limited;
+
+    paren p;
+    ArrayList<node> fib, for_loop, map_filter_fold;
+
+    @Setup
+    public void setup() throws Exception {
+        p = new paren(engine);
+        p.eval_string(
+            "(defn fib (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2)))))\n" +
+            "(defn for-loop (n) (def acc 0) (for i 1 n 1 (set acc (+ acc i))) acc)\n" +
+            "(defn map-filter-fold () (fold + (filter (fn (x) (== (% x 2) 0)) (map (fn (x) (* x 3)) (range 1 100000 1)))))\n");
+        fib = p.compile_all(p.parse("(fib 20)"));
+        for_loop = p.compile_all(p.parse("(for-loop 100000)"));
+        map_filter_fold = p.compile_all(p.parse("(map-filter-fold)"));
+        // every limit on and never reached, so each check looks at all three
+        if (limited) {
+            p.limits = new budget(Long.MAX_VALUE, 1000000000L, Long.MAX_VALUE);
+            p.limits.start();
+        }
+    }
+
+    @Benchmark
+    public node recursion() throws Exception {
+        return p.eval_all(fib);
+    }
+
+    @Benchmark
+    public node for_loop() throws Exception {
+        return p.eval_all(for_loop);
+    }
+
+    @Benchmark
+    public node map_filter_fold() throws Exception {
+        return p.eval_all(map_filter_fold);
+    }
+}
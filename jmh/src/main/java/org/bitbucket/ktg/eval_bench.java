@@ -0,0 +1,110 @@
+// (C) 2013-2015 Kim, Taegyoon
+// Paren JMH benchmarks: evaluation, on both engines
+//
+// Each benchmark calls a function defined in setup, so it measures
+// evaluation, not reading.
+// java -jar target/benchmarks.jar eval_bench -prof gc
+package org.bitbucket.ktg;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.bitbucket.ktg.paren.node;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class eval_bench {
+    @Param({"TREE", "CLOSURE"})
+    paren.engine engine;
+
+    paren p;
+    ArrayList<node> fib, for_loop, while_loop, arithmetic, map_filter_fold, strcat, interop, thread;
+
+    @Setup
+    public void setup() throws Exception {
+        p = new paren(engine);
+        p.eval_string(
+            "(defn fib (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2)))))\n" +
+            "(defn for-loop (n) (def acc 0) (for i 1 n 1 (set acc (+ acc i))) acc)\n" +
+            "(defn while-loop (n) (def i 0) (while (< i n) (set i (inc i))) i)\n" +
+            "(defn arithmetic (n)\n" +
+            "  (def acc 0) (def x 0.5)\n" +
+            "  (for i 1 n 1 (set acc (+ acc (* (+ i 1) (- i 1)))) (set x (* (+ x 1.0) 0.5)))\n" +
+            "  (+ acc x))\n" +
+            "(def big (range 1 100000 1))\n" +
+            "(defn map-filter-fold () (fold + (filter (fn (x) (== (% x 2) 0)) (map (fn (x) (* x 3)) big))))\n" +
+            "(defn strcat-loop (n) (def s \"\") (for i 1 n 1 (set s (strcat s \"x\"))) s)\n" +
+            "(defn interop-loop (n)\n" +
+            "  (def acc 0)\n" +
+            "  (for i 1 n 1 (set acc (+ acc (. (new java.lang.StringBuilder \"abc\") length) (. java.lang.Math abs i))))\n" +
+            "  acc)\n" +
+            "(defn thread-join (n) (for i 1 n 1 (deref (thread i))))\n");
+        fib = forms("(fib 20)");
+        for_loop = forms("(for-loop 100000)");
+        while_loop = forms("(while-loop 100000)");
+        arithmetic = forms("(arithmetic 100000)");
+        map_filter_fold = forms("(map-filter-fold)");
+        strcat = forms("(strcat-loop 1000)");
+        interop = forms("(interop-loop 10000)");
+        thread = forms("(thread-join 100)");
+    }
+
+    private ArrayList<node> forms(String s) {
+        return p.compile_all(p.parse(s));
+    }
+
+    @Benchmark
+    public node recursion() throws Exception {
+        return p.eval_all(fib);
+    }
+
+    @Benchmark
+    public node for_loop() throws Exception {
+        return p.eval_all(for_loop);
+    }
+
+    @Benchmark
+    public node while_loop() throws Exception {
+        return p.eval_all(while_loop);
+    }
+
+    @Benchmark
+    public node arithmetic() throws Exception {
+        return p.eval_all(arithmetic);
+    }
+
+    @Benchmark
+    public node map_filter_fold() throws Exception {
+        return p.eval_all(map_filter_fold);
+    }
+
+    @Benchmark
+    public node strcat() throws Exception {
+        return p.eval_all(strcat);
+    }
+
+    @Benchmark
+    public node interop() throws Exception {
+        return p.eval_all(interop);
+    }
+
+    @Benchmark
+    public node thread() throws Exception {
+        return p.eval_all(thread);
+    }
+}
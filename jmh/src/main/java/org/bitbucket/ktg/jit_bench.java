@@ -0,0 +1,65 @@
+// (C) 2013-2015 Kim, Taegyoon
+// Paren JMH benchmarks: fns compiled to JVM classes against the interpreters
+//
+// TREE is the tree-walking engine, CLOSURE the closure engine with the JIT
+// off, JIT the closure engine with it on. fib is recursion on ints, loops
+// nested for loops on ints with a long accumulator; the warmup calls each fn
+// far more than jit.THRESHOLD times, so JIT measures the compiled classes.
+// java -jar target/benchmarks.jar jit_bench
+package org.bitbucket.ktg;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.bitbucket.ktg.paren.node;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class jit_bench {
+    @Param({"TREE", "CLOSURE", "JIT"})
+    String tier;
+
+    static final String CODE =
+        "(defn fib (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2)))))\n" +
+        "(defn loops (n)\n" +
+        "  (def acc 0L)\n" +
+        "  (for i 1 n 1 (for j 1 n 1 (set acc (+ acc (% (* i j) 7)))))\n" +
+        "  acc)\n";
+
+    paren p;
+    ArrayList<node> fib, loops;
+
+    @Setup
+    public void setup() throws Exception {
+        p = new paren(tier.equals("TREE") ? paren.engine.TREE : paren.engine.CLOSURE);
+        p.set_jit(tier.equals("JIT"));
+        p.eval_string(CODE);
+        fib = p.compile_all(p.parse("(fib 20)"));
+        loops = p.compile_all(p.parse("(loops 100)"));
+    }
+
+    @Benchmark
+    public node fib() throws Exception {
+        return p.eval_all(fib);
+    }
+
+    @Benchmark
+    public node loops() throws Exception {
+        return p.eval_all(loops);
+    }
+}
@@ -0,0 +1,90 @@
+// (C) 2013-2015 Kim, Taegyoon
+// Paren JMH benchmarks: loading a library from source and precompiled
+//
+// source reads, parses, compiles and optimizes the file; precompiled maps
+// the file parenj -c wrote and decodes it. The eval_ ones also run the forms.
+// java -jar target/benchmarks.jar load_bench -prof gc
+package org.bitbucket.ktg;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.bitbucket.ktg.paren.node;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class load_bench {
+    @Param({"1000"})
+    int defs; // top-level fns in the library
+
+    File source, compiled;
+    paren p;
+
+    @Setup
+    public void setup() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        sb.append("(defmacro unless (c ...) (if c null (begin ...)))\n");
+        for (int i = 0; i < defs; i++) {
+            sb.append("; function ").append(i).append('\n');
+            sb.append("(defn f").append(i).append(" (x y)\n");
+            sb.append("  (unless (< x ").append(i).append(") (strcat \"small \" x) (+ x y 1.5 (* 2 ").append(i).append("L))))\n");
+            sb.append("(def v").append(i).append(" (list 1 2 3 (quote (a b c)) \"str\\n\"))\n");
+        }
+        source = File.createTempFile("load_bench", ".paren");
+        compiled = new File(source.getPath() + "c");
+        Files.write(source.toPath(), sb.toString().getBytes());
+        p = new paren(paren.engine.CLOSURE);
+        p.compile_file(source.getPath(), compiled.getPath());
+    }
+
+    @TearDown
+    public void tear_down() {
+        source.delete();
+        compiled.delete();
+    }
+
+    @Benchmark
+    public ArrayList<node> source() throws Exception {
+        try (Reader in = new InputStreamReader(new FileInputStream(source))) {
+            return p.optimize_all(p.compile_all(p.parse(in)));
+        }
+    }
+
+    @Benchmark
+    public ArrayList<node> precompiled() throws Exception {
+        return precompiled.read(compiled.getPath()).forms;
+    }
+
+    @Benchmark
+    public node eval_source() throws Exception {
+        try (Reader in = new InputStreamReader(new FileInputStream(source))) {
+            return p.eval_reader(in);
+        }
+    }
+
+    @Benchmark
+    public node eval_precompiled() throws Exception {
+        return p.eval_precompiled(compiled.getPath());
+    }
+}
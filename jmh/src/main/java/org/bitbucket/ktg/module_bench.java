@@ -0,0 +1,71 @@
+// (C) 2013-2015 Kim, Taegyoon
+// Paren JMH benchmarks: a library loaded into each new interpreter of a pool
+//
+// Each operation forks an interpreter and loads the library into it: eval
+// the way it was done before require, (eval (read-string (slurp FILE)))
+// in effect, require through the cache all interpreters share.
+// java -jar target/benchmarks.jar module_bench -prof gc
+package org.bitbucket.ktg;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.bitbucket.ktg.paren.node;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class module_bench {
+    @Param({"TREE", "CLOSURE"})
+    paren.engine engine;
+
+    @Param({"1000"})
+    int defs; // top-level fns in the library
+
+    File library;
+    paren template;
+
+    @Setup
+    public void setup() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        sb.append("(defmacro unless (c ...) (if c null (begin ...)))\n");
+        for (int i = 0; i < defs; i++) {
+            sb.append("(defn f").append(i).append(" (x y)\n");
+            sb.append("  (unless (< x ").append(i).append(") (strcat \"small \" x) (+ x y 1.5 (* 2 ").append(i).append("L))))\n");
+        }
+        library = File.createTempFile("module_bench", ".paren");
+        Files.write(library.toPath(), sb.toString().getBytes());
+        template = new paren(engine);
+    }
+
+    @TearDown
+    public void tear_down() {
+        library.delete();
+    }
+
+    @Benchmark
+    public node eval() throws Exception {
+        return template.fork().eval_string(paren.slurp(library.getPath()));
+    }
+
+    @Benchmark
+    public boolean require() throws Exception {
+        return template.fork().require(library.getPath());
+    }
+}
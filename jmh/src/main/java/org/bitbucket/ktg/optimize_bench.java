@@ -0,0 +1,77 @@
+// (C) 2013-2015 Kim, Taegyoon
+// Paren JMH benchmarks: the optimizer, on and off, on both engines
+//
+// The functions are defined with the optimizer on or off; each benchmark
+// calls one of them. arithmetic calls small fns on constants in a loop,
+// recursion is fib, which has nothing to inline.
+// java -jar target/benchmarks.jar optimize_bench
+package org.bitbucket.ktg;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.bitbucket.ktg.paren.node;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class optimize_bench {
+    @Param({"TREE", "CLOSURE"})
+    paren.engine engine;
+
+    @Param({"true", "false"})
+    boolean optimize;
+
+    static final String CODE =
+        "(defn sq (x) (* x x))\n" +
+        "(defn area (r) (* PI (sq r)))\n" +
+        "(defn deg (d) (/ (* d PI) 180.0))\n" +
+        "(defn arith (n)\n" +
+        "  (def acc 0.0)\n" +
+        "  (for i 1 n 1 (set acc (+ acc (area i) (deg (* 2.0 90)) (if (> 2 1) 1 0))))\n" +
+        "  acc)\n" +
+        "(defn fib (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2)))))\n";
+
+    paren p;
+    ArrayList<node> arith, fib;
+
+    @Setup
+    public void setup() throws Exception {
+        p = new paren(engine);
+        p.set_optimize(optimize);
+        p.eval_string(CODE);
+        arith = p.compile_all(p.parse("(arith 10000)"));
+        fib = p.compile_all(p.parse("(fib 20)"));
+    }
+
+    @Benchmark
+    public node arithmetic() throws Exception {
+        return p.eval_all(arith);
+    }
+
+    @Benchmark
+    public node recursion() throws Exception {
+        return p.eval_all(fib);
+    }
+
+    // reading and optimizing the definitions
+    @Benchmark
+    public ArrayList<node> read() {
+        ArrayList<node> forms = p.compile_all(p.parse(CODE));
+        return optimize ? p.optimize_all(forms) : forms;
+    }
+}
@@ -0,0 +1,87 @@
+// (C) 2013-2015 Kim, Taegyoon
+// Paren JMH benchmarks: reading and compiling source
+//
+// java -jar target/benchmarks.jar read_bench -prof gc
+package org.bitbucket.ktg;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import org.bitbucket.ktg.paren.node;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class read_bench {
+    @Param({"1000"})
+    int defs; // top-level forms in the source
+
+    String source;
+    paren tree, closure;
+    ArrayList<node> parsed, macro_uses;
+
+    @Setup
+    public void setup() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < defs; i++) {
+            sb.append("; function ").append(i).append('\n');
+            sb.append("(defn f").append(i).append(" (x y)\n");
+            sb.append("  (if (< x ").append(i).append(") (strcat \"small \" x) (+ x y 1.5 ").append(i).append("L)))\n");
+            sb.append("(set v").append(i).append(" (list 1 2 3 (quote (a b c)) \"str\\n\"))\n");
+        }
+        source = sb.toString();
+        tree = new paren(paren.engine.TREE);
+        closure = new paren(paren.engine.CLOSURE);
+        parsed = tree.parse(source);
+        sb.setLength(0);
+        sb.append("(defmacro unless (c ...) (if c null (begin ...)))\n");
+        sb.append("(defmacro swap (a b) (begin (def tmp a) (set a b) (set b tmp)))\n");
+        for (int i = 0; i < defs; i++) {
+            sb.append("(defn g").append(i).append(" (x y) (unless (< x ").append(i).append(") (swap x y) (setfn h (fn (z) (+ x y z)))))\n");
+        }
+        macro_uses = tree.parse(sb.toString());
+    }
+
+    @Benchmark
+    public ArrayList<String> tokenize() {
+        return paren.tokenize(source);
+    }
+
+    @Benchmark
+    public ArrayList<node> parse() {
+        return tree.parse(source);
+    }
+
+    // macro expansion and builtin lookup of the tree engine
+    @Benchmark
+    public ArrayList<node> compile_tree() {
+        return tree.compile_all(parsed);
+    }
+
+    // defn, setfn and macros of the source's own
+    @Benchmark
+    public ArrayList<node> compile_macros() {
+        return tree.compile_all(macro_uses);
+    }
+
+    // compile_all, then closures for each form
+    @Benchmark
+    public void compile_closure(Blackhole bh) {
+        for (node n : closure.compile_all(parsed)) bh.consume(closure.closure_compiler.compile(n, null));
+    }
+}
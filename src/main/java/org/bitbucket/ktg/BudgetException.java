@@ -0,0 +1,9 @@
+package org.bitbucket.ktg;
+
+// thrown when an evaluation runs out of its budget
+public class BudgetException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+	public BudgetException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,61 @@
+// (C) 2013-2015 Kim, Taegyoon
+// Paren atom
+//
+// A reference cell threads can update without locks: (atom X) makes one,
+// (deref A) reads it, (swap! A FUNC) replaces its value with (FUNC VALUE) by
+// compare-and-set, retrying if another thread got there first, and
+// (compare-and-set! A OLD NEW) sets NEW only if the value is still OLD.
+// The node in the cell is never changed in place; each update puts a new one.
+package org.bitbucket.ktg;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.bitbucket.ktg.paren.node;
+
+final class atom {
+    private final AtomicReference<node> ref;
+
+    atom(node value) {
+        ref = new AtomicReference<node>(value.clone());
+    }
+
+    // for a copy made before its value: see paren.copier
+    void reset(node value) {
+        ref.set(value.clone());
+    }
+
+    node deref() {
+        return ref.get().clone();
+    }
+
+    // FUNC may run more than once, so it should not have side effects
+    node swap(lseq.fn1 f) throws Exception {
+        for (;;) {
+            node old = ref.get();
+            node v = f.call(old.clone()).clone();
+            if (ref.compareAndSet(old, v)) return v.clone();
+        }
+    }
+
+    // old is compared by value: numbers by number, others by equals()
+    boolean compare_and_set(node old, node v) {
+        v = v.clone();
+        for (;;) {
+            node cur = ref.get();
+            if (!same(cur, old)) return false;
+            if (ref.compareAndSet(cur, v)) return true;
+        }
+    }
+
+    private static boolean same(node a, node b) {
+        if (a.tag != node.OBJ && b.tag != node.OBJ) {
+            if (a.tag == node.DOUBLE || b.tag == node.DOUBLE) return a.doubleValue() == b.doubleValue();
+            return a.longValue() == b.longValue();
+        }
+        Object x = a.value(), y = b.value();
+        return x == null ? y == null : x.equals(y);
+    }
+
+    public String toString() {
+        return "(atom " + ref.get().stringValue() + ")";
+    }
+}
@@ -0,0 +1,231 @@
+// (C) 2013-2015 Kim, Taegyoon
+// Paren execution budget
+//
+// Limits of one evaluation, for code that is not trusted:
+//   p.eval_string(code, new budget(1000000, 100, 64 << 20)); // steps, milliseconds, bytes
+// throws BudgetException once the code has taken more steps, run longer or
+// allocated more than that. A limit of 0 or less is no limit. A step is a form
+// the tree engine evaluates, a fn call, a loop iteration or a chunk of a lazy
+// list. Each thread counts its steps cheaply and, every CHECK_EVERY of them,
+// adds them to the evaluation's total and looks at the limits, so a limit
+// can be overrun by that much for each thread.
+//
+// While the evaluation runs, every thread running code of the interpreter
+// counts against the budget: its steps and the bytes it allocates are added
+// to the evaluation's totals. Under a limit of bytes, the default executor
+// runs threads as platform threads, whose allocation the JVM counts.
+// The evaluation ends when the threads it started, and the threads those
+// started, have finished. Once a limit is reached, or the time is up, they
+// stop at their next check, and those waiting are interrupted; a thread
+// blocked where an interrupt does not reach (e.g. socket IO) is waited for.
+// Evaluate one budgeted snippet per interpreter at a time: fork() gives each
+// snippet its own.
+package org.bitbucket.ktg;
+import java.lang.management.ManagementFactory;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class budget {
+    static final int CHECK_EVERY = 1024; // steps
+    static final long POLL = 10000000; // ns between looks at the threads of an evaluation that is stopping
+
+    // bytes allocated by a thread, or null on JVMs that do not count them
+    private static final com.sun.management.ThreadMXBean threads = thread_mx();
+
+    private static com.sun.management.ThreadMXBean thread_mx() {
+        try {
+            com.sun.management.ThreadMXBean t = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            if (!t.isThreadAllocatedMemorySupported()) return null;
+            t.setThreadAllocatedMemoryEnabled(true);
+            return t;
+        } catch (RuntimeException | LinkageError e) {
+            return null;
+        }
+    }
+
+    public final long max_steps, max_millis, max_bytes;
+
+    // steps of one thread since it last added them to the total
+    private static final class counter {
+        final Thread thread = Thread.currentThread();
+        final int run;
+        int countdown; // steps until the next check
+        int period; // steps between the last check and the next
+        long bytes; // allocated by the thread when last added
+        counter(int run) {this.run = run;}
+    }
+    private final ThreadLocal<counter> counters = new ThreadLocal<counter>();
+    private counter last; // of the thread that stepped last, so one thread looks up none
+
+    private final AtomicLong steps = new AtomicLong(); // added by the threads at their checks
+    private final AtomicLong bytes = new AtomicLong(); // allocated, added the same way
+    private long deadline; // System.nanoTime()
+    private volatile String exceeded; // message, once a limit is reached. threads of the evaluation stop when they see it
+    private int run; // evaluations started with this budget
+    final Set<CompletableFuture<Object>> tasks = ConcurrentHashMap.newKeySet(); // started by the evaluation, see join
+    private final Set<Thread> workers = ConcurrentHashMap.newKeySet(); // running those tasks
+
+    public budget(long max_steps, long max_millis, long max_bytes) {
+        this.max_steps = max_steps;
+        this.max_millis = max_millis;
+        this.max_bytes = max_bytes;
+    }
+
+    // steps counted so far, with those of this thread not yet added
+    public long get_steps() {
+        counter c = counters.get();
+        return steps.get() + (c != null && c.run == run ? c.period - c.countdown : 0);
+    }
+
+    // budgets of evaluations running on this thread, for the lazy lists it reads
+    private static final ThreadLocal<budget> current = new ThreadLocal<budget>();
+    private static final AtomicInteger running = new AtomicInteger();
+
+    // returns the budget this thread was counting against before, for stop
+    budget start() {
+        steps.set(0);
+        bytes.set(0);
+        exceeded = null;
+        run++;
+        deadline = System.nanoTime() + max_millis * 1000000;
+        counter(); // counting starts now on this thread
+        return count_thread();
+    }
+
+    void stop(budget outer) {
+        running.decrementAndGet();
+        if (outer == null) current.remove(); else current.set(outer);
+    }
+
+    // the lazy lists this thread reads count against the budget from now on
+    private budget count_thread() {
+        budget outer = current.get();
+        current.set(this);
+        running.incrementAndGet();
+        return outer;
+    }
+
+    // on a thread starting a task of the evaluation. returns the budget for leave
+    budget enter() {
+        workers.add(Thread.currentThread());
+        return count_thread();
+    }
+
+    void leave(budget outer) {
+        counter c = counters.get();
+        if (c != null && c.run == run) {
+            steps.addAndGet(c.period - c.countdown);
+            c.period = c.countdown = 0;
+            if (max_bytes > 0) add_bytes(c);
+        }
+        workers.remove(Thread.currentThread());
+        stop(outer);
+    }
+
+    // waits for the tasks of the evaluation. stops them once a limit is
+    // reached or the time is up, or when this thread is interrupted
+    void join() {
+        boolean interrupted = false;
+        for (;;) {
+            tasks.removeIf(CompletableFuture::isDone);
+            if (tasks.isEmpty()) break;
+            if (exceeded == null && max_millis > 0 && System.nanoTime() - deadline > 0) {
+                exceeded = "time limit of " + max_millis + " ms exceeded";
+            }
+            if (exceeded != null) {
+                for (Thread t : workers) t.interrupt();
+            }
+            long wait = exceeded == null && max_millis > 0 ? Math.max(deadline - System.nanoTime(), 0) : POLL;
+            try {
+                tasks.iterator().next().get(wait, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+                if (exceeded == null) exceeded = "evaluation interrupted";
+            } catch (TimeoutException | ExecutionException | CancellationException | NoSuchElementException e) {
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    // throws BudgetException if the evaluation or one of its threads reached a limit
+    void poll() {
+        String e = exceeded;
+        if (e != null) throw new BudgetException(e);
+    }
+
+    // e, caught from a Java call, is an interrupt of ours: throws BudgetException
+    static void check_stop(Throwable e) {
+        budget b = current();
+        if (b != null && e instanceof InterruptedException) b.poll();
+    }
+
+    static budget current() {
+        return running.get() == 0 ? null : current.get();
+    }
+
+    // the counter of this thread in this run
+    private counter counter() {
+        counter c = counters.get();
+        if (c == null || c.run != run) {
+            c = new counter(run);
+            if (max_bytes > 0) c.bytes = allocated();
+            next(c);
+            counters.set(c);
+        }
+        last = c;
+        return c;
+    }
+
+    private void next(counter c) {
+        c.period = max_steps > 0 ? (int) Math.min(CHECK_EVERY, Math.max(max_steps - steps.get(), 1)) : CHECK_EVERY;
+        c.countdown = c.period;
+    }
+
+    void step() {
+        counter c = last;
+        if (c == null || c.thread != Thread.currentThread() || c.run != run) c = counter();
+        if (--c.countdown <= 0) check(c);
+    }
+
+    private void check(counter c) {
+        String e = exceeded;
+        if (e == null) {
+            long n = steps.addAndGet(c.period - c.countdown);
+            if (max_steps > 0 && n >= max_steps) {
+                e = exceeded = "step limit of " + max_steps + " exceeded";
+            }
+            else if (max_millis > 0 && System.nanoTime() - deadline > 0) {
+                e = exceeded = "time limit of " + max_millis + " ms exceeded";
+            }
+            else if (max_bytes > 0 && add_bytes(c) > max_bytes) {
+                e = exceeded = "allocation limit of " + max_bytes + " bytes exceeded";
+            }
+        }
+        if (e != null) {
+            c.period = c.countdown = 0; // every step from now on throws
+            throw new BudgetException(e);
+        }
+        next(c);
+    }
+
+    // adds the bytes this thread allocated since it last did. returns the total
+    private long add_bytes(counter c) {
+        long b = allocated();
+        long d = b - c.bytes;
+        c.bytes = b;
+        return bytes.addAndGet(d);
+    }
+
+    // bytes this thread has allocated
+    private static long allocated() {
+        return threads == null ? 0 : threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,1903 @@
+// (C) 2013-2015 Kim, Taegyoon
+// Paren closure compiler
+//
+// Turns each macro-expanded form into a tree of executable objects once.
+// Evaluating the tree does no form inspection and no builtin dispatch:
+// builtins in head position are resolved while compiling, and every
+// expression object knows its own children.
+// Local variables are resolved to a (depth, slot) pair while compiling, and
+// each fn call gets a frame whose slots are a plain node[].
+// Globals are cells bound while compiling; def and set update the cell in place.
+// Numeric expressions hand int, long and double results to their consumers
+// unboxed (eval_int, eval_long, eval_double, eval_into), so arithmetic,
+// comparisons and (set X ..) of numbers allocate nothing.
+// A call in tail position of a fn body (through if, when and begin) does not
+// call: it leaves the callee in the caller's frame and run() loops.
+package org.bitbucket.ktg;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bitbucket.ktg.paren.builtin;
+import org.bitbucket.ktg.paren.environment;
+import org.bitbucket.ktg.paren.fn;
+import org.bitbucket.ktg.paren.node;
+import org.bitbucket.ktg.paren.symbol;
+
+class compiler {
+    final paren p;
+    compiler(paren p) {
+        this.p = p;
+    }
+
+    static final int DEF = symbol.ToCode("def");
+    static final int SET = symbol.ToCode("set");
+    static final int FOR = symbol.ToCode("for");
+    static final int FN = symbol.ToCode("fn");
+    static final int QUOTE = symbol.ToCode("quote");
+
+    // executable form
+    static abstract class expr {
+        abstract node eval(frame env) throws Exception;
+        int eval_int(frame env) throws Exception {
+            return eval(env).intValue();
+        }
+        long eval_long(frame env) throws Exception {
+            return eval(env).longValue();
+        }
+        double eval_double(frame env) throws Exception {
+            return eval(env).doubleValue();
+        }
+        // stores the value in out, like (set X ..)
+        void eval_into(frame env, node out) throws Exception {
+            out.set_value(eval(env));
+        }
+        // a node nothing else refers to
+        node eval_copy(frame env) throws Exception {
+            return eval(env).clone();
+        }
+        // the value, for a site specialized to its type (see typed_expr).
+        // throws type_change when it has another type
+        int eval_int_exact(frame env) throws Exception {
+            return int_of(eval(env));
+        }
+        long eval_long_exact(frame env) throws Exception {
+            return long_of(eval(env));
+        }
+        double eval_double_exact(frame env) throws Exception {
+            return double_of(eval(env));
+        }
+    }
+
+    // a value of another type than the site evaluating it is specialized to
+    static final class type_change extends Exception {
+        private static final long serialVersionUID = 1L;
+        final node value;
+        type_change(node value) {
+            super(null, null, false, false); // no stack trace
+            this.value = value;
+        }
+    }
+
+    static int int_of(node v) throws type_change {
+        if (v.tag != node.INT) throw new type_change(v);
+        return v.intValue();
+    }
+
+    static long long_of(node v) throws type_change {
+        if (v.tag != node.LONG) throw new type_change(v);
+        return v.longValue();
+    }
+
+    static double double_of(node v) throws type_change {
+        if (v.tag != node.DOUBLE) throw new type_change(v);
+        return v.doubleValue();
+    }
+
+    // local variables of one fn call. null at top level
+    static final class frame {
+        final node[] slots;
+        final frame outer;
+        lambda next_code; // pending tail call, see run
+        frame next;
+        frame(int size, frame outer) {
+            this.slots = new node[size];
+            this.outer = outer;
+        }
+    }
+
+    interface op1 { node apply(node a) throws Exception; }
+    interface op2 { node apply(node a, node b) throws Exception; }
+    interface opn { node apply(node[] a) throws Exception; }
+
+    // slots of a fn body: arguments first, then symbols it may def, set or loop over
+    static class scope {
+        final scope outer;
+        final HashMap<Integer, Integer> slots = new HashMap<Integer, Integer>(); // symbol code -> slot
+        int params; // slots below this are always bound
+        jit.counter hot; // of a top-level fn: its loops count iterations here
+        scope(scope outer) {this.outer = outer;}
+        void add(int code) {
+            if (!slots.containsKey(code)) slots.put(code, slots.size());
+        }
+        boolean bound(int code) {
+            for (scope s = this; s != null; s = s.outer) {
+                if (s.slots.containsKey(code)) return true;
+            }
+            return false;
+        }
+    }
+
+    // compiled fn body
+    static final class lambda {
+        final int params;
+        final int size; // frame size
+        final expr[] body;
+        final profiler prof; // the interpreter's when this was compiled
+        String name; // variable first bound to it, for the profiler
+        jit.counter hot; // null if the jit does not take it
+        scope sc; // where its (fn ..) is, null at top level: to compile it again for a fork
+        lambda(int params, int size, expr[] body, profiler prof) {
+            this.params = params;
+            this.size = size;
+            this.body = body;
+            this.prof = prof;
+        }
+    }
+
+    // returned by a tail call instead of its value
+    static final node TAIL = new node();
+
+    expr compile(node n, scope sc) {
+        return compile(n, sc, false);
+    }
+
+    // tail: n is in tail position of a fn body
+    expr compile(node n, scope sc, boolean tail) {
+        if (n.obj instanceof symbol) {
+            return resolve(((symbol) n.obj).code, sc, 0);
+        }
+        else if (n.obj instanceof ArrayList) { // function (FUNCTION ARGUMENT ..)
+            ArrayList<node> nArrayList = n.arrayListValue();
+            if (nArrayList.size() == 0) return new const_expr(paren.node_null);
+            node head = nArrayList.get(0);
+            if (head.obj instanceof builtin) {
+                return profiled((builtin) head.obj, compile_builtin((builtin) head.obj, head, nArrayList, sc, tail));
+            }
+            if (head.obj instanceof symbol && (sc == null || !sc.bound(((symbol) head.obj).code))) {
+                cell c = cell(((symbol) head.obj).code);
+                node func = c.value;
+                if (func != null && func.obj instanceof builtin) { // checked again at run time, (set + ..) may rebind it
+                    return new builtin_guard_expr(c, (builtin) func.obj, profiled((builtin) func.obj, compile_builtin((builtin) func.obj, func, nArrayList, sc, tail)), nArrayList, sc);
+                }
+            }
+            return new call_expr(compile(head, sc), compile_args(nArrayList, 1, sc), nArrayList, sc, tail);
+        }
+        else {
+            return new const_expr(n);
+        }
+    }
+
+    // global variable. value is null while unbound. volatile, so a node bound
+    // by one thread is seen whole by the others
+    static final class cell {
+        volatile node value;
+        cell(node value) {this.value = value;}
+    }
+
+    private final HashMap<Integer, cell> cells = new HashMap<Integer, cell>();
+
+    // the one cell of a global, created on first reference
+    synchronized cell cell(int code) {
+        cell c = cells.get(code);
+        if (c == null) {
+            node v = p.global_env.env.get(code);
+            boolean shared = v != null && p.global_env.is_shared(code, v);
+            c = new cell(shared ? null : v);
+            cells.put(code, c);
+            if (shared) c.value = own(v); // after put: a fn may refer to itself
+        }
+        return c;
+    }
+
+    // a fork's copy of a snapshot global. fns are compiled again, so their
+    // globals are this interpreter's cells
+    private paren.copier copies;
+
+    private node own(node v) {
+        if (copies == null) copies = new paren.copier(p.global_env, this);
+        return copies.copy(v);
+    }
+
+    // bound globals, for a snapshot
+    synchronized void globals_into(Map<Integer, node> m, paren.copier c) {
+        for (Map.Entry<Integer, cell> e : cells.entrySet()) {
+            node v = e.getValue().value;
+            if (v != null) m.put(e.getKey(), c.copy(v));
+        }
+    }
+
+    // reference to the variable a symbol names, searching from scope s, depth frames up
+    expr resolve(int code, scope s, int depth) {
+        for (; s != null; s = s.outer, depth++) {
+            Integer slot = s.slots.get(code);
+            if (slot == null) continue;
+            if (slot < s.params) return new local_expr(depth, slot);
+            // def'd or set later in the body. until then, the name still means the outer one
+            return new soft_local_expr(depth, slot, resolve(code, s.outer, depth + 1));
+        }
+        return new global_expr(cell(code));
+    }
+
+    // where (def SYMBOL ..), (for SYMBOL ..) and (set SYMBOL ..) of a new variable bind
+    binder binder(node n, scope sc) {
+        int code = code_of(n);
+        Integer slot = sc == null ? null : sc.slots.get(code);
+        return slot == null ? new binder(-1, cell(code), code, p.global_env) : new binder(slot, null, code, null);
+    }
+
+    expr[] compile_args(ArrayList<node> nArrayList, int from, scope sc) {
+        return compile_args(nArrayList, from, sc, false);
+    }
+
+    // tail: the last form is in tail position
+    expr[] compile_args(ArrayList<node> nArrayList, int from, scope sc, boolean tail) {
+        int len = Math.max(nArrayList.size() - from, 0);
+        expr[] r = new expr[len];
+        for (int i = 0; i < len; i++) {
+            r[i] = compile(nArrayList.get(from + i), sc, tail && i == len - 1);
+        }
+        return r;
+    }
+
+    // symbols def'd, set or used as a for variable in forms, not looking into nested fns
+    static void collect_locals(ArrayList<node> forms, int from, scope sc) {
+        for (int i = from; i < forms.size(); i++) {
+            node n = forms.get(i);
+            if (!(n.obj instanceof ArrayList)) continue;
+            ArrayList<node> lst = n.arrayListValue();
+            if (lst.size() >= 2 && lst.get(0).obj instanceof symbol) {
+                int head = ((symbol) lst.get(0).obj).code;
+                if (head == FN || head == QUOTE) continue;
+                if ((head == DEF || head == SET || head == FOR) && lst.get(1).obj instanceof symbol) {
+                    sc.add(((symbol) lst.get(1).obj).code);
+                }
+            }
+            collect_locals(lst, 0, sc);
+        }
+    }
+
+    lambda compile_lambda(ArrayList<node> def, scope sc) {
+        scope local = new scope(sc);
+        ArrayList<node> arg_syms = def.get(1).arrayListValue();
+        for (node a : arg_syms) {
+            local.add(((symbol) a.obj).code);
+        }
+        local.params = local.slots.size();
+        collect_locals(def, 2, local);
+        if (sc == null && p.prof == null && p.get_jit()) local.hot = new jit.counter(this, def, local);
+        expr[] body = compile_args(def, 2, local, true);
+        lambda l = new lambda(local.params, local.slots.size(), body, p.prof);
+        l.hot = local.hot;
+        l.sc = sc;
+        return l;
+    }
+
+    static node run(lambda l, frame local_env) throws Exception {
+        if (l.prof != null) return run_profiled(l, local_env);
+        for (;;) {
+            jit.counter hot = l.hot;
+            if (hot != null) {
+                node r = hot.run(l, local_env);
+                if (r != jit.INTERPRET) return r;
+            }
+            node ret = null;
+            for (expr e : l.body) {
+                ret = e.eval(local_env);
+            }
+            if (ret != TAIL) return ret;
+            frame f = local_env;
+            l = f.next_code;
+            local_env = f.next;
+            f.next_code = null; // a closure may keep f alive
+            f.next = null;
+        }
+    }
+
+    // run, with each body on the profiler's stack. a tail call takes the place of its caller
+    static node run_profiled(lambda l, frame local_env) throws Exception {
+        profiler.stack s = l.prof.stack();
+        s.push(l.name != null ? l.name : profiler.ANONYMOUS);
+        try {
+            for (;;) {
+                node ret = null;
+                for (expr e : l.body) {
+                    ret = e.eval(local_env);
+                }
+                if (ret != TAIL) return ret;
+                frame f = local_env;
+                l = f.next_code;
+                local_env = f.next;
+                f.next_code = null;
+                f.next = null;
+                s.replace(l.name != null ? l.name : profiler.ANONYMOUS);
+            }
+        } finally {
+            s.pop();
+        }
+    }
+
+    // applies a fn or builtin to already evaluated arguments
+    node invoke(node func, node... args) throws Exception {
+        if (p.limits != null) p.limits.step();
+        if (func.obj instanceof fn) {
+            fn f = (fn) func.obj;
+            lambda l = f.code;
+            frame local_env = new frame(l.size, f.outer_frame);
+            for (int i = 0; i < l.params; i++) {
+                local_env.slots[i] = args[i].clone();
+            }
+            return run(l, local_env);
+        }
+        else if (func.obj instanceof builtin) {
+            return invoke(builtin_fn((builtin) func.obj, args.length), args);
+        }
+        else {
+            System.err.println("Unknown function: [" + func.value().toString() + "]");
+            return paren.node_null;
+        }
+    }
+
+    private final HashMap<Long, node> builtin_fns = new HashMap<Long, node>();
+
+    // (fn (a0 ..) (BUILTIN a0 ..)), so builtins can be passed to apply, map, ..
+    synchronized node builtin_fn(builtin b, int arity) throws Exception {
+        long key = (long) arity << 32 | b.ordinal();
+        node r = builtin_fns.get(key);
+        if (r == null) {
+            ArrayList<node> args = new ArrayList<node>();
+            ArrayList<node> body = new ArrayList<node>();
+            body.add(new node(b));
+            for (int i = 0; i < arity; i++) {
+                node a = new node(symbol.intern("%" + i));
+                args.add(a);
+                body.add(a);
+            }
+            ArrayList<node> def = new ArrayList<node>();
+            def.add(new node(builtin.FN));
+            def.add(new node(args));
+            def.add(new node(body));
+            r = new node(new fn(def, null, compile_lambda(def, null)));
+            paren.name_fn(r, symbol.ToCode(paren.builtin_names[b.ordinal()]));
+            builtin_fns.put(key, r);
+        }
+        return r;
+    }
+
+    static final class const_expr extends expr {
+        final node value;
+        const_expr(node value) {this.value = value;}
+        node eval(frame env) {
+            return value;
+        }
+    }
+
+    static final class global_expr extends expr {
+        final cell c;
+        global_expr(cell c) {this.c = c;}
+        node eval(frame env) {
+            return c.value;
+        }
+    }
+
+    // argument of this or an enclosing fn
+    static final class local_expr extends expr {
+        final int depth, slot;
+        local_expr(int depth, int slot) {
+            this.depth = depth;
+            this.slot = slot;
+        }
+        node eval(frame env) {
+            for (int d = depth; d > 0; d--) env = env.outer;
+            return env.slots[slot];
+        }
+    }
+
+    // local that may not be bound yet
+    static final class soft_local_expr extends expr {
+        final int depth, slot;
+        final expr outer;
+        soft_local_expr(int depth, int slot, expr outer) {
+            this.depth = depth;
+            this.slot = slot;
+            this.outer = outer;
+        }
+        node eval(frame env) throws Exception {
+            frame f = env;
+            for (int d = depth; d > 0; d--) f = f.outer;
+            node r = f.slots[slot];
+            return r != null ? r : outer.eval(env);
+        }
+    }
+
+    // binds a copy of a value to a slot of the current frame, or to a global
+    static final class binder {
+        final int slot; // -1 for a global
+        final cell c;
+        final int code;
+        final environment global_env;
+        binder(int slot, cell c, int code, environment global_env) {
+            this.slot = slot;
+            this.c = c;
+            this.code = code;
+            this.global_env = global_env;
+        }
+        node bind(frame env, node v) {
+            paren.name_fn(v, code);
+            if (slot < 0) {
+                c.value = global_env.set(code, v); // global_env stays in step for print_logo and embedders
+                return c.value;
+            }
+            node v2 = v.clone();
+            env.slots[slot] = v2;
+            return v2;
+        }
+    }
+
+    // (FUNCTION ARGUMENT ..) where FUNCTION is not known while compiling
+    final class call_expr extends expr {
+        final expr head;
+        final expr[] args;
+        final ArrayList<node> form;
+        final scope sc;
+        final boolean tail;
+        private builtin_site site; // last builtin seen in head position
+        call_expr(expr head, expr[] args, ArrayList<node> form, scope sc, boolean tail) {
+            this.head = head;
+            this.args = args;
+            this.form = form;
+            this.sc = sc;
+            this.tail = tail;
+        }
+        node eval(frame env) throws Exception {
+            if (p.limits != null) p.limits.step();
+            node func = head.eval(env);
+            if (func.obj instanceof fn) {
+                fn f = (fn) func.obj;
+                lambda l = f.code;
+                frame local_env = new frame(l.size, f.outer_frame);
+                for (int i = 0; i < l.params; i++) { // assign arguments
+                    local_env.slots[i] = args[i].eval_copy(env);
+                }
+                if (tail) {
+                    env.next_code = l;
+                    env.next = local_env;
+                    return TAIL;
+                }
+                return run(l, local_env);
+            }
+            else if (func.obj instanceof builtin) { // builtin bound at run time, e.g. (def f if)
+                builtin b = (builtin) func.obj;
+                builtin_site s = site;
+                if (s == null || s.b != b) {
+                    s = new builtin_site(b, profiled(b, compile_builtin(b, func, form, sc, false)));
+                    site = s;
+                }
+                return s.e.eval(env);
+            }
+            else {
+                System.err.println("Unknown function: [" + func.value().toString() + "]");
+                return paren.node_null;
+            }
+        }
+    }
+
+    // (BUILTIN ARGUMENT ..) compiled for the builtin a global held at compile time
+    final class builtin_guard_expr extends expr {
+        final cell c;
+        final builtin b;
+        final expr fast;
+        final ArrayList<node> form;
+        final scope sc;
+        private expr slow; // generic call, compiled once the global no longer holds b
+        builtin_guard_expr(cell c, builtin b, expr fast, ArrayList<node> form, scope sc) {
+            this.c = c;
+            this.b = b;
+            this.fast = fast;
+            this.form = form;
+            this.sc = sc;
+        }
+        // the compiled builtin while the global still holds it
+        expr current() {
+            node func = c.value;
+            if (func != null && func.obj == b) return fast;
+            expr e = slow;
+            if (e == null) {
+                e = new call_expr(new global_expr(c), compile_args(form, 1, sc), form, sc, false);
+                slow = e;
+            }
+            return e;
+        }
+        node eval(frame env) throws Exception {
+            return current().eval(env);
+        }
+        int eval_int(frame env) throws Exception {
+            return current().eval_int(env);
+        }
+        long eval_long(frame env) throws Exception {
+            return current().eval_long(env);
+        }
+        double eval_double(frame env) throws Exception {
+            return current().eval_double(env);
+        }
+        void eval_into(frame env, node out) throws Exception {
+            current().eval_into(env, out);
+        }
+        node eval_copy(frame env) throws Exception {
+            return current().eval_copy(env);
+        }
+        int eval_int_exact(frame env) throws Exception {
+            return current().eval_int_exact(env);
+        }
+        long eval_long_exact(frame env) throws Exception {
+            return current().eval_long_exact(env);
+        }
+        double eval_double_exact(frame env) throws Exception {
+            return current().eval_double_exact(env);
+        }
+    }
+
+    // a builtin call on the profiler's stack
+    static final class profiled_expr extends expr {
+        final profiler prof;
+        final String name;
+        final expr e;
+        profiled_expr(profiler prof, String name, expr e) {
+            this.prof = prof;
+            this.name = name;
+            this.e = e;
+        }
+        node eval(frame env) throws Exception {
+            profiler.stack s = prof.stack();
+            s.push(name);
+            try {
+                return e.eval(env);
+            } finally {
+                s.pop();
+            }
+        }
+        int eval_int(frame env) throws Exception {
+            profiler.stack s = prof.stack();
+            s.push(name);
+            try {
+                return e.eval_int(env);
+            } finally {
+                s.pop();
+            }
+        }
+        long eval_long(frame env) throws Exception {
+            profiler.stack s = prof.stack();
+            s.push(name);
+            try {
+                return e.eval_long(env);
+            } finally {
+                s.pop();
+            }
+        }
+        double eval_double(frame env) throws Exception {
+            profiler.stack s = prof.stack();
+            s.push(name);
+            try {
+                return e.eval_double(env);
+            } finally {
+                s.pop();
+            }
+        }
+        void eval_into(frame env, node out) throws Exception {
+            profiler.stack s = prof.stack();
+            s.push(name);
+            try {
+                e.eval_into(env, out);
+            } finally {
+                s.pop();
+            }
+        }
+        node eval_copy(frame env) throws Exception {
+            profiler.stack s = prof.stack();
+            s.push(name);
+            try {
+                return e.eval_copy(env);
+            } finally {
+                s.pop();
+            }
+        }
+        int eval_int_exact(frame env) throws Exception {
+            profiler.stack s = prof.stack();
+            s.push(name);
+            try {
+                return e.eval_int_exact(env);
+            } finally {
+                s.pop();
+            }
+        }
+        long eval_long_exact(frame env) throws Exception {
+            profiler.stack s = prof.stack();
+            s.push(name);
+            try {
+                return e.eval_long_exact(env);
+            } finally {
+                s.pop();
+            }
+        }
+        double eval_double_exact(frame env) throws Exception {
+            profiler.stack s = prof.stack();
+            s.push(name);
+            try {
+                return e.eval_double_exact(env);
+            } finally {
+                s.pop();
+            }
+        }
+    }
+
+    // e, counted by the profiler if there is one
+    expr profiled(builtin b, expr e) {
+        profiler prof = p.prof;
+        return prof == null ? e : new profiled_expr(prof, paren.builtin_names[b.ordinal()], e);
+    }
+
+    static final class builtin_site {
+        final builtin b;
+        final expr e;
+        builtin_site(builtin b, expr e) {
+            this.b = b;
+            this.e = e;
+        }
+    }
+
+    // type feedback: a site records the type of the first value its first
+    // argument gives, and from then on evaluates that argument unboxed as that
+    // type (int, long or double). A value of another type turns the site back
+    // to the generic path for good. The type of the first argument decides the
+    // rest of the evaluation, so the other arguments need no check
+    static final byte UNSEEN = -1, GENERIC = node.OBJ; // or the tag of the type seen
+
+    static abstract class typed_expr extends expr {
+        byte seen = UNSEEN; // races are harmless: every state checks what it assumes
+
+        // the first argument, evaluated generically; the first one seen sets the type
+        node first(expr a, frame env) throws Exception {
+            node v = a.eval(env);
+            if (seen == UNSEEN) seen = v.tag;
+            return v;
+        }
+
+        // the value that did not fit
+        node deopt(type_change e) {
+            seen = GENERIC;
+            return e.value;
+        }
+    }
+
+    // the type of the first argument decides the type of the result
+    static abstract class arith_expr extends typed_expr {
+        final expr[] args;
+        arith_expr(expr[] args) {this.args = args;}
+        abstract int op(int a, int b);
+        abstract long op(long a, long b);
+        abstract double op(double a, double b);
+        int fold(int acc, frame env) throws Exception {
+            for (int i = 1; i < args.length; i++) {
+                acc = op(acc, args[i].eval_int(env));
+            }
+            return acc;
+        }
+        long fold(long acc, frame env) throws Exception {
+            for (int i = 1; i < args.length; i++) {
+                acc = op(acc, args[i].eval_long(env));
+            }
+            return acc;
+        }
+        double fold(double acc, frame env) throws Exception {
+            for (int i = 1; i < args.length; i++) {
+                acc = op(acc, args[i].eval_double(env));
+            }
+            return acc;
+        }
+        node eval(frame env) throws Exception {
+            try {
+                switch (seen) {
+                case node.INT: return new node(fold(args[0].eval_int_exact(env), env));
+                case node.LONG: return new node(fold(args[0].eval_long_exact(env), env));
+                case node.DOUBLE: return new node(fold(args[0].eval_double_exact(env), env));
+                }
+            } catch (type_change e) {
+                return eval(deopt(e), env);
+            }
+            return eval(first(args[0], env), env);
+        }
+        node eval(node first, frame env) throws Exception {
+            switch (first.tag) {
+            case node.INT: return new node(fold(first.intValue(), env));
+            case node.LONG: return new node(fold(first.longValue(), env));
+            default: return new node(fold(first.doubleValue(), env));
+            }
+        }
+        int eval_int(frame env) throws Exception {
+            try {
+                switch (seen) {
+                case node.INT: return fold(args[0].eval_int_exact(env), env);
+                case node.LONG: return (int) fold(args[0].eval_long_exact(env), env);
+                case node.DOUBLE: return (int) fold(args[0].eval_double_exact(env), env);
+                }
+            } catch (type_change e) {
+                return eval_int(deopt(e), env);
+            }
+            return eval_int(first(args[0], env), env);
+        }
+        int eval_int(node first, frame env) throws Exception {
+            switch (first.tag) {
+            case node.INT: return fold(first.intValue(), env);
+            case node.LONG: return (int) fold(first.longValue(), env);
+            default: return (int) fold(first.doubleValue(), env);
+            }
+        }
+        long eval_long(frame env) throws Exception {
+            try {
+                switch (seen) {
+                case node.INT: return fold(args[0].eval_int_exact(env), env);
+                case node.LONG: return fold(args[0].eval_long_exact(env), env);
+                case node.DOUBLE: return (long) fold(args[0].eval_double_exact(env), env);
+                }
+            } catch (type_change e) {
+                return eval_long(deopt(e), env);
+            }
+            return eval_long(first(args[0], env), env);
+        }
+        long eval_long(node first, frame env) throws Exception {
+            switch (first.tag) {
+            case node.INT: return fold(first.intValue(), env);
+            case node.LONG: return fold(first.longValue(), env);
+            default: return (long) fold(first.doubleValue(), env);
+            }
+        }
+        double eval_double(frame env) throws Exception {
+            try {
+                switch (seen) {
+                case node.INT: return fold(args[0].eval_int_exact(env), env);
+                case node.LONG: return fold(args[0].eval_long_exact(env), env);
+                case node.DOUBLE: return fold(args[0].eval_double_exact(env), env);
+                }
+            } catch (type_change e) {
+                return eval_double(deopt(e), env);
+            }
+            return eval_double(first(args[0], env), env);
+        }
+        double eval_double(node first, frame env) throws Exception {
+            switch (first.tag) {
+            case node.INT: return fold(first.intValue(), env);
+            case node.LONG: return fold(first.longValue(), env);
+            default: return fold(first.doubleValue(), env);
+            }
+        }
+        // the specialized type is the type of the result
+        int eval_int_exact(frame env) throws Exception {
+            if (seen != node.INT) return super.eval_int_exact(env);
+            try {
+                return fold(args[0].eval_int_exact(env), env);
+            } catch (type_change e) {
+                return int_of(eval(deopt(e), env));
+            }
+        }
+        long eval_long_exact(frame env) throws Exception {
+            if (seen != node.LONG) return super.eval_long_exact(env);
+            try {
+                return fold(args[0].eval_long_exact(env), env);
+            } catch (type_change e) {
+                return long_of(eval(deopt(e), env));
+            }
+        }
+        double eval_double_exact(frame env) throws Exception {
+            if (seen != node.DOUBLE) return super.eval_double_exact(env);
+            try {
+                return fold(args[0].eval_double_exact(env), env);
+            } catch (type_change e) {
+                return double_of(eval(deopt(e), env));
+            }
+        }
+        void eval_into(frame env, node out) throws Exception {
+            try { // out is written last, it may be one of the arguments
+                switch (seen) {
+                case node.INT: out.set(fold(args[0].eval_int_exact(env), env)); return;
+                case node.LONG: out.set(fold(args[0].eval_long_exact(env), env)); return;
+                case node.DOUBLE: out.set(fold(args[0].eval_double_exact(env), env)); return;
+                }
+            } catch (type_change e) {
+                eval_into(deopt(e), env, out);
+                return;
+            }
+            eval_into(first(args[0], env), env, out);
+        }
+        void eval_into(node first, frame env, node out) throws Exception {
+            switch (first.tag) {
+            case node.INT: out.set(fold(first.intValue(), env)); break;
+            case node.LONG: out.set(fold(first.longValue(), env)); break;
+            default: out.set(fold(first.doubleValue(), env));
+            }
+        }
+        node eval_copy(frame env) throws Exception {
+            return eval(env);
+        }
+    }
+
+    static final class plus_expr extends arith_expr {
+        plus_expr(expr[] args) {super(args);}
+        int op(int a, int b) {return a + b;}
+        long op(long a, long b) {return a + b;}
+        double op(double a, double b) {return a + b;}
+    }
+
+    static final class minus_expr extends arith_expr {
+        minus_expr(expr[] args) {super(args);}
+        int op(int a, int b) {return a - b;}
+        long op(long a, long b) {return a - b;}
+        double op(double a, double b) {return a - b;}
+    }
+
+    static final class mul_expr extends arith_expr {
+        mul_expr(expr[] args) {super(args);}
+        int op(int a, int b) {return a * b;}
+        long op(long a, long b) {return a * b;}
+        double op(double a, double b) {return a * b;}
+    }
+
+    static final class div_expr extends arith_expr {
+        div_expr(expr[] args) {super(args);}
+        int op(int a, int b) {return a / b;}
+        long op(long a, long b) {return a / b;}
+        double op(double a, double b) {return a / b;}
+    }
+
+    // (inc X), (dec X)
+    static final class step_expr extends expr {
+        final expr a;
+        final int delta;
+        step_expr(expr a, int delta) {
+            this.a = a;
+            this.delta = delta;
+        }
+        node eval(frame env) throws Exception {
+            node first = a.eval(env);
+            switch (first.tag) {
+            case node.INT: return new node(first.intValue() + delta);
+            case node.LONG: return new node(first.longValue() + delta);
+            default: return new node(first.doubleValue() + delta);
+            }
+        }
+        int eval_int(frame env) throws Exception {
+            node first = a.eval(env);
+            switch (first.tag) {
+            case node.INT: return first.intValue() + delta;
+            case node.LONG: return (int) (first.longValue() + delta);
+            default: return (int) (first.doubleValue() + delta);
+            }
+        }
+        long eval_long(frame env) throws Exception {
+            node first = a.eval(env);
+            switch (first.tag) {
+            case node.INT: return first.intValue() + delta;
+            case node.LONG: return first.longValue() + delta;
+            default: return (long) (first.doubleValue() + delta);
+            }
+        }
+        double eval_double(frame env) throws Exception {
+            node first = a.eval(env);
+            switch (first.tag) {
+            case node.INT: return first.intValue() + delta;
+            case node.LONG: return first.longValue() + delta;
+            default: return first.doubleValue() + delta;
+            }
+        }
+        void eval_into(frame env, node out) throws Exception {
+            node first = a.eval(env);
+            switch (first.tag) {
+            case node.INT: out.set(first.intValue() + delta); break;
+            case node.LONG: out.set(first.longValue() + delta); break;
+            default: out.set(first.doubleValue() + delta);
+            }
+        }
+        node eval_copy(frame env) throws Exception {
+            return eval(env);
+        }
+    }
+
+    // (++ X), (-- X)
+    static final class step_var_expr extends expr {
+        final expr var;
+        final int delta;
+        step_var_expr(expr var, int delta) {
+            this.var = var;
+            this.delta = delta;
+        }
+        node eval(frame env) throws Exception {
+            node n2 = var.eval(env);
+            if (n2.tag == node.INT) {
+                n2.set(n2.intValue() + delta);
+            }
+            else if (n2.tag == node.LONG) {
+                n2.set(n2.longValue() + delta);
+            }
+            else {
+                n2.set(n2.doubleValue() + delta);
+            }
+            return n2;
+        }
+    }
+
+    static abstract class compare_expr extends typed_expr {
+        final expr a, b;
+        compare_expr(expr a, expr b) {
+            this.a = a;
+            this.b = b;
+        }
+        abstract boolean test(int a, int b);
+        abstract boolean test(long a, long b);
+        abstract boolean test(double a, double b);
+        node eval(frame env) throws Exception {
+            boolean r;
+            try {
+                switch (seen) {
+                case node.INT: r = test(a.eval_int_exact(env), b.eval_int(env)); break;
+                case node.LONG: r = test(a.eval_long_exact(env), b.eval_long(env)); break;
+                case node.DOUBLE: r = test(a.eval_double_exact(env), b.eval_double(env)); break;
+                default: r = test(first(a, env), env);
+                }
+            } catch (type_change e) {
+                r = test(deopt(e), env);
+            }
+            return r ? paren.node_true : paren.node_false;
+        }
+        boolean test(node first, frame env) throws Exception {
+            switch (first.tag) {
+            case node.INT: return test(first.intValue(), b.eval_int(env));
+            case node.LONG: return test(first.longValue(), b.eval_long(env));
+            default: return test(first.doubleValue(), b.eval_double(env));
+            }
+        }
+    }
+
+    static final class lt_expr extends compare_expr {
+        lt_expr(expr a, expr b) {super(a, b);}
+        boolean test(int a, int b) {return a < b;}
+        boolean test(long a, long b) {return a < b;}
+        boolean test(double a, double b) {return a < b;}
+    }
+
+    static final class gt_expr extends compare_expr {
+        gt_expr(expr a, expr b) {super(a, b);}
+        boolean test(int a, int b) {return a > b;}
+        boolean test(long a, long b) {return a > b;}
+        boolean test(double a, double b) {return a > b;}
+    }
+
+    static final class lte_expr extends compare_expr {
+        lte_expr(expr a, expr b) {super(a, b);}
+        boolean test(int a, int b) {return a <= b;}
+        boolean test(long a, long b) {return a <= b;}
+        boolean test(double a, double b) {return a <= b;}
+    }
+
+    static final class gte_expr extends compare_expr {
+        gte_expr(expr a, expr b) {super(a, b);}
+        boolean test(int a, int b) {return a >= b;}
+        boolean test(long a, long b) {return a >= b;}
+        boolean test(double a, double b) {return a >= b;}
+    }
+
+    // (== X ..), (!= X ..) short-circuit
+    static final class eqeq_expr extends typed_expr {
+        final expr[] args;
+        final boolean equal;
+        eqeq_expr(expr[] args, boolean equal) {
+            this.args = args;
+            this.equal = equal;
+        }
+        node eval(frame env) throws Exception {
+            boolean r;
+            try {
+                switch (seen) {
+                case node.INT: r = test(args[0].eval_int_exact(env), env); break;
+                case node.LONG: r = test(args[0].eval_long_exact(env), env); break;
+                case node.DOUBLE: r = test(args[0].eval_double_exact(env), env); break;
+                default: r = test(first(args[0], env), env);
+                }
+            } catch (type_change e) {
+                r = test(deopt(e), env);
+            }
+            return r ? paren.node_true : paren.node_false;
+        }
+        boolean test(node first, frame env) throws Exception {
+            switch (first.tag) {
+            case node.INT: return test(first.intValue(), env);
+            case node.LONG: return test(first.longValue(), env);
+            default: return test(first.doubleValue(), env);
+            }
+        }
+        boolean test(int firstv, frame env) throws Exception {
+            for (int i = 1; i < args.length; i++) {
+                if ((args[i].eval_int(env) == firstv) != equal) return false;
+            }
+            return true;
+        }
+        boolean test(long firstv, frame env) throws Exception {
+            for (int i = 1; i < args.length; i++) {
+                if ((args[i].eval_long(env) == firstv) != equal) return false;
+            }
+            return true;
+        }
+        boolean test(double firstv, frame env) throws Exception {
+            for (int i = 1; i < args.length; i++) {
+                if ((args[i].eval_double(env) == firstv) != equal) return false;
+            }
+            return true;
+        }
+    }
+
+    // (= X ..) short-circuit, Object.equals()
+    static final class eq_expr extends expr {
+        final expr[] args;
+        eq_expr(expr[] args) {this.args = args;}
+        node eval(frame env) throws Exception {
+            Object firstv = args[0].eval(env).value();
+            for (int i = 1; i < args.length; i++) {
+                if (!args[i].eval(env).value().equals(firstv)) return paren.node_false;
+            }
+            return paren.node_true;
+        }
+    }
+
+    // (&& X ..), (|| X ..) short-circuit
+    static final class logic_expr extends expr {
+        final expr[] args;
+        final boolean stop; // result that ends evaluation
+        logic_expr(expr[] args, boolean stop) {
+            this.args = args;
+            this.stop = stop;
+        }
+        node eval(frame env) throws Exception {
+            for (expr e : args) {
+                if (e.eval(env).booleanValue() == stop) return stop ? paren.node_true : paren.node_false;
+            }
+            return stop ? paren.node_false : paren.node_true;
+        }
+    }
+
+    static final class not_expr extends expr {
+        final expr a;
+        not_expr(expr a) {this.a = a;}
+        node eval(frame env) throws Exception {
+            return a.eval(env).booleanValue() ? paren.node_false : paren.node_true;
+        }
+    }
+
+    static final class if_expr extends expr {
+        final expr cond, then, otherwise;
+        if_expr(expr cond, expr then, expr otherwise) {
+            this.cond = cond;
+            this.then = then;
+            this.otherwise = otherwise;
+        }
+        node eval(frame env) throws Exception {
+            if (cond.eval(env).booleanValue()) {
+                return then.eval(env);
+            }
+            else {
+                return otherwise.eval(env);
+            }
+        }
+    }
+
+    static final class when_expr extends expr {
+        final expr cond;
+        final expr[] body;
+        when_expr(expr cond, expr[] body) {
+            this.cond = cond;
+            this.body = body;
+        }
+        node eval(frame env) throws Exception {
+            if (cond.eval(env).booleanValue()) {
+                int last = body.length - 1;
+                for (int i = 0; i < last; i++) {
+                    body[i].eval(env);
+                }
+                return body[last].eval(env); // returns last EXPR
+            }
+            return paren.node_null;
+        }
+    }
+
+    static final class begin_expr extends expr {
+        final expr[] body;
+        begin_expr(expr[] body) {this.body = body;}
+        node eval(frame env) throws Exception {
+            int last = body.length - 1;
+            for (int i = 0; i < last; i++) {
+                body[i].eval(env);
+            }
+            return body[last].eval(env);
+        }
+    }
+
+    final class while_expr extends expr {
+        final expr cond;
+        final expr[] body;
+        final jit.counter hot;
+        while_expr(expr cond, expr[] body, jit.counter hot) {
+            this.cond = cond;
+            this.body = body;
+            this.hot = hot;
+        }
+        node eval(frame env) throws Exception {
+            try {
+                while (cond.eval(env).booleanValue()) {
+                    if (p.limits != null) p.limits.step();
+                    if (hot != null) hot.count++;
+                    for (expr e : body) {
+                        e.eval(env);
+                    }
+                }
+            } catch (BreakException e) {
+
+            }
+            return paren.node_null;
+        }
+    }
+
+    // (for SYMBOL START END STEP EXPR ..)
+    final class for_expr extends expr {
+        final binder var;
+        final expr start, end, step;
+        final expr[] body;
+        final jit.counter hot;
+        for_expr(binder var, expr start, expr end, expr step, expr[] body, jit.counter hot) {
+            this.var = var;
+            this.start = start;
+            this.end = end;
+            this.step = step;
+            this.body = body;
+            this.hot = hot;
+        }
+        node eval(frame env) throws Exception {
+            try {
+                node first = start.eval(env);
+                if (first.tag == node.INT) {
+                    int last = end.eval(env).intValue();
+                    int step = this.step.eval(env).intValue();
+                    int a = first.intValue();
+                    node na = var.bind(env, new node(a));
+                    if (step >= 0) {
+                        for (; a <= last; a += step) {
+                            if (p.limits != null) p.limits.step();
+                            if (hot != null) hot.count++;
+                            na.set(a);
+                            for (expr e : body) e.eval(env);
+                        }
+                    }
+                    else {
+                        for (; a >= last; a += step) {
+                            if (p.limits != null) p.limits.step();
+                            if (hot != null) hot.count++;
+                            na.set(a);
+                            for (expr e : body) e.eval(env);
+                        }
+                    }
+                }
+                else if (first.tag == node.LONG) {
+                    long last = end.eval(env).longValue();
+                    long step = this.step.eval(env).longValue();
+                    long a = first.longValue();
+                    node na = var.bind(env, new node(a));
+                    if (step >= 0) {
+                        for (; a <= last; a += step) {
+                            if (p.limits != null) p.limits.step();
+                            if (hot != null) hot.count++;
+                            na.set(a);
+                            for (expr e : body) e.eval(env);
+                        }
+                    }
+                    else {
+                        for (; a >= last; a += step) {
+                            if (p.limits != null) p.limits.step();
+                            if (hot != null) hot.count++;
+                            na.set(a);
+                            for (expr e : body) e.eval(env);
+                        }
+                    }
+                }
+                else {
+                    double last = end.eval(env).doubleValue();
+                    double step = this.step.eval(env).doubleValue();
+                    double a = first.doubleValue();
+                    node na = var.bind(env, new node(a));
+                    if (step >= 0) {
+                        for (; a <= last; a += step) {
+                            if (p.limits != null) p.limits.step();
+                            if (hot != null) hot.count++;
+                            na.set(a);
+                            for (expr e : body) e.eval(env);
+                        }
+                    }
+                    else {
+                        for (; a >= last; a += step) {
+                            if (p.limits != null) p.limits.step();
+                            if (hot != null) hot.count++;
+                            na.set(a);
+                            for (expr e : body) e.eval(env);
+                        }
+                    }
+                }
+            } catch (BreakException e) {
+
+            }
+            return paren.node_null;
+        }
+    }
+
+    // (set SYMBOL-OR-PLACE VALUE)
+    static final class set_expr extends expr {
+        final expr place;
+        final binder var;
+        final expr value;
+        set_expr(expr place, binder var, expr value) {
+            this.place = place;
+            this.var = var;
+            this.value = value;
+        }
+        node eval(frame env) throws Exception {
+            node var = place.eval(env);
+            if (var == null) { // new variable
+                return this.var.bind(env, value.eval(env));
+            }
+            else {
+                value.eval_into(env, var);
+                return var;
+            }
+        }
+    }
+
+    // (def SYMBOL VALUE) ; set in the current environment
+    static final class def_expr extends expr {
+        final binder var;
+        final expr value;
+        def_expr(binder var, expr value) {
+            this.var = var;
+            this.value = value;
+        }
+        node eval(frame env) throws Exception {
+            return var.bind(env, value.eval(env));
+        }
+    }
+
+    // (fn (ARGUMENT ..) BODY ..)
+    static final class fn_expr extends expr {
+        final ArrayList<node> def;
+        final lambda code;
+        fn_expr(ArrayList<node> def, lambda code) {
+            this.def = def;
+            this.code = code;
+        }
+        node eval(frame env) {
+            return new node(new fn(def, env, code));
+        }
+    }
+
+    static final class op1_expr extends expr {
+        final op1 op;
+        final expr a;
+        op1_expr(op1 op, expr a) {
+            this.op = op;
+            this.a = a;
+        }
+        node eval(frame env) throws Exception {
+            return op.apply(a.eval(env));
+        }
+    }
+
+    static final class op2_expr extends expr {
+        final op2 op;
+        final expr a, b;
+        op2_expr(op2 op, expr a, expr b) {
+            this.op = op;
+            this.a = a;
+            this.b = b;
+        }
+        node eval(frame env) throws Exception {
+            node first = a.eval(env);
+            return op.apply(first, b.eval(env));
+        }
+    }
+
+    static final class opn_expr extends expr {
+        final opn op;
+        final expr[] args;
+        opn_expr(opn op, expr[] args) {
+            this.op = op;
+            this.args = args;
+        }
+        node eval(frame env) throws Exception {
+            node[] v = new node[args.length];
+            for (int i = 0; i < v.length; i++) {
+                v[i] = args[i].eval(env);
+            }
+            return op.apply(v);
+        }
+    }
+
+    // (eval X) ; compiles X each time
+    final class eval_expr extends expr {
+        final expr a;
+        final scope sc;
+        eval_expr(expr a, scope sc) {
+            this.a = a;
+            this.sc = sc;
+        }
+        node eval(frame env) throws Exception {
+            return compile(paren.form(a.eval(env)), sc).eval(env);
+        }
+    }
+
+    // (. CLASS METHOD ARGUMENT ..), (.get CLASS FIELD), (.set CLASS FIELD VALUE)
+    // CLASS is a class name unless it is a bound variable
+    static final class target_expr extends expr {
+        final expr e;
+        final class_ref cls; // null if not a symbol
+        target_expr(expr e, class_ref cls) {
+            this.e = e;
+            this.cls = cls;
+        }
+        node eval(frame env) throws Exception {
+            return e.eval(env);
+        }
+        // class of a static member, or null for an object
+        Class<?> static_class(frame env) throws Exception {
+            if (cls != null && e.eval(env) == null) return cls.get();
+            return null;
+        }
+    }
+
+    // class named in a form. resolved while compiling unless the name is a
+    // bound variable or the class cannot be loaded yet
+    final class class_ref {
+        final String name;
+        private volatile Class<?> cls;
+        class_ref(String name, boolean resolve) {
+            this.name = name;
+            if (resolve) {
+                try {
+                    cls = p.class_for_name(name);
+                } catch (ClassNotFoundException e) {
+                }
+            }
+        }
+        Class<?> get() throws ClassNotFoundException {
+            Class<?> c = cls;
+            if (c == null) cls = c = p.class_for_name(name);
+            return c;
+        }
+    }
+
+    static final class dot_expr extends expr {
+        final target_expr target;
+        final expr[] args;
+        final interop.site site;
+        dot_expr(target_expr target, String methodName, expr[] args) {
+            this.target = target;
+            this.args = args;
+            this.site = new interop.site(interop.METHOD, methodName);
+        }
+        node eval(frame env) throws Exception {
+            try {
+                Object obj = null;
+                Class<?> cls = target.static_class(env);
+                if (cls == null) {
+                    obj = target.eval(env).value();
+                    cls = obj.getClass();
+                }
+                node[] v = values(args, env);
+                return new node(interop.invoke(site.lookup(cls, v), obj, v));
+            } catch (BudgetException e) {
+                throw e;
+            } catch (Throwable e) {
+                budget.check_stop(e);
+                e.printStackTrace();
+                return paren.node_null;
+            }
+        }
+    }
+
+    static final class dotget_expr extends expr {
+        final target_expr target;
+        final interop.site site;
+        dotget_expr(target_expr target, String fieldName) {
+            this.target = target;
+            this.site = new interop.site(interop.GET, fieldName);
+        }
+        node eval(frame env) {
+            try {
+                Object obj = null;
+                Class<?> cls = target.static_class(env);
+                if (cls == null) {
+                    obj = target.eval(env).value();
+                    cls = obj.getClass();
+                }
+                return new node(interop.get(site.lookup(cls, interop.no_args), obj));
+            } catch (BudgetException e) {
+                throw e;
+            } catch (Throwable e) {
+                budget.check_stop(e);
+                e.printStackTrace();
+                return paren.node_null;
+            }
+        }
+    }
+
+    static final class dotset_expr extends expr {
+        final target_expr target;
+        final expr value;
+        final interop.site site;
+        dotset_expr(target_expr target, String fieldName, expr value) {
+            this.target = target;
+            this.value = value;
+            this.site = new interop.site(interop.SET, fieldName);
+        }
+        node eval(frame env) {
+            try {
+                Object obj = null;
+                Class<?> cls = target.static_class(env);
+                if (cls == null) {
+                    obj = target.eval(env).value();
+                    cls = obj.getClass();
+                }
+                MethodHandle h = site.lookup(cls, interop.no_args);
+                interop.set(h, obj, value.eval(env).value());
+                return paren.node_null;
+            } catch (BudgetException e) {
+                throw e;
+            } catch (Throwable e) {
+                budget.check_stop(e);
+                e.printStackTrace();
+                return paren.node_null;
+            }
+        }
+    }
+
+    static final class new_expr extends expr {
+        final class_ref cls;
+        final expr[] args;
+        final interop.site site = new interop.site(interop.CONSTRUCTOR, "<init>");
+        new_expr(class_ref cls, expr[] args) {
+            this.cls = cls;
+            this.args = args;
+        }
+        node eval(frame env) {
+            try {
+                Class<?> cls = this.cls.get();
+                node[] v = values(args, env);
+                return new node(interop.invoke(site.lookup(cls, v), null, v));
+            } catch (BudgetException e) {
+                throw e;
+            } catch (Throwable e) {
+                budget.check_stop(e);
+                e.printStackTrace();
+                return paren.node_null;
+            }
+        }
+    }
+
+    // (cast CLASS X): Returns type-hinted object.
+    static final class cast_expr extends expr {
+        final class_ref cls;
+        final expr a;
+        cast_expr(class_ref cls, expr a) {
+            this.cls = cls;
+            this.a = a;
+        }
+        node eval(frame env) throws Exception {
+            node x = a.eval(env);
+            try {
+                x.clazz = cls.get();
+            } catch (ClassNotFoundException e) {
+                e.printStackTrace();
+            }
+            return x;
+        }
+    }
+
+    // (thread EXPR ..): Runs EXPR .. on the interpreter's executor. Returns a future of the last value.
+    final class thread_expr extends expr {
+        final expr[] body;
+        thread_expr(expr[] body) {this.body = body;}
+        node eval(final frame env) {
+            final budget b = p.limits;
+            return new node(tasks.start(p.get_executor(), b, () -> {
+                node r = paren.node_null;
+                for (expr e : body) {
+                    try {
+                        r = e.eval(env);
+                    } catch (BudgetException ex) {
+                        throw ex;
+                    } catch (Exception ex) {
+                        if (b != null) b.poll(); // stopped: an interrupt of ours
+                        ex.printStackTrace();
+                    }
+                }
+                return r;
+            }));
+        }
+    }
+
+    // (pr X ..), (prn X ..)
+    static final class pr_expr extends expr {
+        final expr[] args;
+        final boolean newline;
+        pr_expr(expr[] args, boolean newline) {
+            this.args = args;
+            this.newline = newline;
+        }
+        node eval(frame env) throws Exception {
+            for (int i = 0; i < args.length; i++) {
+                if (i != 0) System.out.print(" ");
+                System.out.print(args[i].eval(env).stringValue());
+            }
+            if (newline) System.out.println();
+            return paren.node_null;
+        }
+    }
+
+    static final class break_expr extends expr {
+        node eval(frame env) throws BreakException {
+            throw new BreakException();
+        }
+    }
+
+    static final class unknown_expr extends expr {
+        final node func;
+        unknown_expr(node func) {this.func = func;}
+        node eval(frame env) {
+            System.err.println("Not implemented function: [" + func.value().toString() + "]");
+            return paren.node_null;
+        }
+    }
+
+    static node[] values(expr[] args, frame env) throws Exception {
+        if (args.length == 0) return interop.no_args;
+        node[] r = new node[args.length];
+        for (int i = 0; i < r.length; i++) {
+            r[i] = args[i].eval(env);
+        }
+        return r;
+    }
+
+    static int code_of(node n) {
+        return n.obj instanceof symbol ? ((symbol) n.obj).code : -1;
+    }
+
+    expr arg(ArrayList<node> nArrayList, int i, scope sc) {
+        return compile(nArrayList.get(i), sc);
+    }
+
+    // argument i, for a builtin that reads the list once. a (map), (filter),
+    // (range), (take) or (drop) there is not shared (see lseq)
+    expr seq_arg(ArrayList<node> nArrayList, int i, scope sc) {
+        node n = nArrayList.get(i);
+        if (p.prof != null || !(n.obj instanceof ArrayList) || n.arrayListValue().isEmpty()) return arg(nArrayList, i, sc); // the profiler sees every call
+        ArrayList<node> lst = n.arrayListValue();
+        node head = lst.get(0);
+        if (head.obj instanceof builtin) {
+            expr e = lazy_seq((builtin) head.obj, lst, sc);
+            if (e != null) return e;
+        }
+        else if (head.obj instanceof symbol && (sc == null || !sc.bound(((symbol) head.obj).code))) {
+            cell c = cell(((symbol) head.obj).code);
+            node func = c.value;
+            expr e = func != null && func.obj instanceof builtin ? lazy_seq((builtin) func.obj, lst, sc) : null;
+            if (e != null) return new builtin_guard_expr(c, (builtin) func.obj, e, lst, sc);
+        }
+        return arg(nArrayList, i, sc);
+    }
+
+    interface list_op { node apply(node f, node lst, lseq.fn1 item) throws Exception; }
+
+    // (BUILTIN FUNC LIST). item evaluates an element of LIST as the tree
+    // engine's (FUNC ITEM) does: a symbol or a form in the scope of the call,
+    // any other value to itself
+    final class list_expr extends expr {
+        final list_op op;
+        final expr f, lst;
+        final scope sc;
+        list_expr(list_op op, expr f, expr lst, scope sc) {
+            this.op = op;
+            this.f = f;
+            this.lst = lst;
+            this.sc = sc;
+        }
+        node eval(final frame env) throws Exception {
+            node func = f.eval(env);
+            return op.apply(func, lst.eval(env), x -> x.obj instanceof symbol || x.obj instanceof ArrayList ? compile(x, sc).eval(env) : x);
+        }
+    }
+
+    // the lseq of a (map), (filter), (range), (take) or (drop), not shared yet. null for other builtins
+    expr lazy_seq(builtin b, ArrayList<node> nArrayList, scope sc) {
+        switch (b) {
+        case MAP:
+            return new list_expr((f, l, item) -> new node(lseq.map(x -> invoke(f, item.call(x)), l.listValue())), arg(nArrayList, 1, sc), seq_arg(nArrayList, 2, sc), sc);
+        case FILTER: // keeps the elements, not their values
+            return new list_expr((f, l, item) -> new node(lseq.filter(x -> invoke(f, item.call(x)), l.listValue())), arg(nArrayList, 1, sc), seq_arg(nArrayList, 2, sc), sc);
+        case RANGE:
+            return new opn_expr(x -> new node(lseq.range(x[0], x[1], x[2])), compile_args(nArrayList, 1, sc));
+        case TAKE:
+            return new op2_expr((n, l) -> new node(lseq.take(n.intValue(), l.listValue())), arg(nArrayList, 1, sc), seq_arg(nArrayList, 2, sc));
+        case DROP:
+            return new op2_expr((n, l) -> new node(lseq.drop(n.intValue(), l.listValue())), arg(nArrayList, 1, sc), seq_arg(nArrayList, 2, sc));
+        default:
+            return null;
+        }
+    }
+
+    // tail: the form is in tail position of a fn body
+    expr compile_builtin(builtin b, node func, ArrayList<node> nArrayList, scope sc, boolean tail) {
+        int len = nArrayList.size();
+        switch (b) {
+        case PLUS: // (+ X ..)
+            if (len <= 1) return new const_expr(paren.node_0);
+            return new plus_expr(compile_args(nArrayList, 1, sc));
+        case MINUS: // (- X ..)
+            if (len <= 1) return new const_expr(paren.node_0);
+            return new minus_expr(compile_args(nArrayList, 1, sc));
+        case MUL: // (* X ..)
+            if (len <= 1) return new const_expr(paren.node_1);
+            return new mul_expr(compile_args(nArrayList, 1, sc));
+        case DIV: // (/ X ..)
+            if (len <= 1) return new const_expr(paren.node_1);
+            return new div_expr(compile_args(nArrayList, 1, sc));
+        case CARET: // (^ BASE EXPONENT)
+            return new op2_expr((x, y) -> new node(Math.pow(x.doubleValue(), y.doubleValue())), arg(nArrayList, 1, sc), arg(nArrayList, 2, sc));
+        case PERCENT: // (% DIVIDEND DIVISOR)
+            return new op2_expr((x, y) -> new node(x.intValue() % y.intValue()), arg(nArrayList, 1, sc), arg(nArrayList, 2, sc));
+        case SQRT: // (sqrt X)
+            return new op1_expr(x -> new node(Math.sqrt(x.doubleValue())), arg(nArrayList, 1, sc));
+        case INC: // (inc X)
+            if (len <= 1) return new const_expr(paren.node_0);
+            return new step_expr(arg(nArrayList, 1, sc), 1);
+        case DEC: // (dec X)
+            if (len <= 1) return new const_expr(paren.node_0);
+            return new step_expr(arg(nArrayList, 1, sc), -1);
+        case PLUSPLUS: // (++ X)
+            if (len <= 1) return new const_expr(paren.node_0);
+            return new step_var_expr(arg(nArrayList, 1, sc), 1);
+        case MINUSMINUS: // (-- X)
+            if (len <= 1) return new const_expr(paren.node_0);
+            return new step_var_expr(arg(nArrayList, 1, sc), -1);
+        case FLOOR: // (floor X)
+            return new op1_expr(x -> new node(Math.floor(x.doubleValue())), arg(nArrayList, 1, sc));
+        case CEIL: // (ceil X)
+            return new op1_expr(x -> new node(Math.ceil(x.doubleValue())), arg(nArrayList, 1, sc));
+        case LN: // (ln X)
+            return new op1_expr(x -> new node(Math.log(x.doubleValue())), arg(nArrayList, 1, sc));
+        case LOG10: // (log10 X)
+            return new op1_expr(x -> new node(Math.log10(x.doubleValue())), arg(nArrayList, 1, sc));
+        case RAND: // (rand)
+            return new opn_expr(x -> new node(Math.random()), new expr[0]);
+        case SET: // (set SYMBOL-OR-PLACE VALUE)
+            return new set_expr(arg(nArrayList, 1, sc), binder(nArrayList.get(1), sc), arg(nArrayList, 2, sc));
+        case DEF: // (def SYMBOL VALUE)
+            return new def_expr(binder(nArrayList.get(1), sc), arg(nArrayList, 2, sc));
+        case EQ: // (= X ..)
+            return new eq_expr(compile_args(nArrayList, 1, sc));
+        case EQEQ: // (== X ..)
+            return new eqeq_expr(compile_args(nArrayList, 1, sc), true);
+        case NOTEQ: // (!= X ..)
+            return new eqeq_expr(compile_args(nArrayList, 1, sc), false);
+        case LT: // (< X Y)
+            return new lt_expr(arg(nArrayList, 1, sc), arg(nArrayList, 2, sc));
+        case GT: // (> X Y)
+            return new gt_expr(arg(nArrayList, 1, sc), arg(nArrayList, 2, sc));
+        case LTE: // (<= X Y)
+            return new lte_expr(arg(nArrayList, 1, sc), arg(nArrayList, 2, sc));
+        case GTE: // (>= X Y)
+            return new gte_expr(arg(nArrayList, 1, sc), arg(nArrayList, 2, sc));
+        case ANDAND: // (&& X ..)
+            return new logic_expr(compile_args(nArrayList, 1, sc), false);
+        case OROR: // (|| X ..)
+            return new logic_expr(compile_args(nArrayList, 1, sc), true);
+        case NOT: // (! X)
+            return new not_expr(arg(nArrayList, 1, sc));
+        case IF: // (if CONDITION THEN_EXPR ELSE_EXPR)
+            return new if_expr(arg(nArrayList, 1, sc), compile(nArrayList.get(2), sc, tail),
+                    len > 3 ? compile(nArrayList.get(3), sc, tail) : new const_expr(paren.node_null));
+        case WHEN: // (when CONDITION EXPR ..)
+            if (len <= 2) return new op1_expr(x -> x.booleanValue() ? x : paren.node_null, arg(nArrayList, 1, sc)); // as the tree engine: the condition
+            return new when_expr(arg(nArrayList, 1, sc), compile_args(nArrayList, 2, sc, tail));
+        case FOR: // (for SYMBOL START END STEP EXPR ..)
+            return new for_expr(binder(nArrayList.get(1), sc), arg(nArrayList, 2, sc), arg(nArrayList, 3, sc), arg(nArrayList, 4, sc),
+                    compile_args(nArrayList, 5, sc), sc == null ? null : sc.hot);
+        case WHILE: // (while CONDITION EXPR ..)
+            return new while_expr(arg(nArrayList, 1, sc), compile_args(nArrayList, 2, sc), sc == null ? null : sc.hot);
+        case BREAK: // (break)
+            return new break_expr();
+        case STRLEN: // (strlen X)
+            return new op1_expr(x -> new node(x.stringValue().length()), arg(nArrayList, 1, sc));
+        case STRCAT: // (strcat X ..)
+            if (len <= 1) return new const_expr(new node(""));
+            return new opn_expr(x -> {
+                StringBuilder acc = new StringBuilder();
+                for (node n : x) acc.append(n.stringValue());
+                return new node(acc.toString());
+            }, compile_args(nArrayList, 1, sc));
+        case CHAR_AT: // (char-at X POSITION)
+            return new op2_expr((x, y) -> new node((int) x.stringValue().charAt(y.intValue())), arg(nArrayList, 1, sc), arg(nArrayList, 2, sc));
+        case CHR: // (chr X)
+            return new op1_expr(x -> new node(String.valueOf((char) x.intValue())), arg(nArrayList, 1, sc));
+        case STRING: // (string X)
+            return new op1_expr(x -> new node(x.stringValue()), arg(nArrayList, 1, sc));
+        case DOUBLE: // (double X)
+            return new op1_expr(x -> new node(x.doubleValue()), arg(nArrayList, 1, sc));
+        case INT: // (int X)
+            return new op1_expr(x -> new node(x.intValue()), arg(nArrayList, 1, sc));
+        case LONG: // (long X)
+            return new op1_expr(x -> new node(x.longValue()), arg(nArrayList, 1, sc));
+        case READ_STRING: // (read-string X)
+            return new op1_expr(x -> new node(p.parse(x.stringValue()).get(0).value()), arg(nArrayList, 1, sc));
+        case TYPE: // (type X)
+            return new op1_expr(x -> new node(x.type()), arg(nArrayList, 1, sc));
+        case EVAL: // (eval X)
+            return new eval_expr(arg(nArrayList, 1, sc), sc);
+        case QUOTE: // (quote X)
+            return new const_expr(nArrayList.get(1));
+        case FN: { // (fn (ARGUMENT ..) BODY ..)
+            ArrayList<node> def = new ArrayList<node>(nArrayList);
+            def.set(0, func);
+            return new fn_expr(def, compile_lambda(def, sc));
+        }
+        case LIST: // (list X ..)
+            return new opn_expr(x -> {
+                pvector.builder ret = new pvector.builder();
+                for (node n : x) ret.add(n);
+                return new node(ret.build());
+            }, compile_args(nArrayList, 1, sc));
+        case APPLY: // (apply FUNC LIST)
+            return new op2_expr((f, lst) -> invoke(f, lst.listValue().toArray(new node[0])), arg(nArrayList, 1, sc), arg(nArrayList, 2, sc));
+        case FOLD: // (fold FUNC LIST)
+            return new list_expr((f, l, item) -> {
+                lseq.reader it = new lseq.reader(l.listValue());
+                it.has_next();
+                node acc = item.call(it.next());
+                while (it.has_next()) {
+                    acc = invoke(f, item.call(acc), item.call(it.next())); // (FUNC ACC ITEM)
+                }
+                return acc;
+            }, arg(nArrayList, 1, sc), seq_arg(nArrayList, 2, sc), sc);
+        case MAP: // (map FUNC LIST)
+        case FILTER: // (filter FUNC LIST)
+        case RANGE: // (range START END STEP)
+        case TAKE: // (take N LIST)
+        case DROP: // (drop N LIST)
+            return new op1_expr(x -> {
+                ((lseq) x.obj).share();
+                return x;
+            }, lazy_seq(b, nArrayList, sc));
+        case PMAP: // (pmap FUNC LIST)
+            return new list_expr((f, l, item) -> new node(parallel.map(x -> invoke(f, item.call(x)), l.listValue())), arg(nArrayList, 1, sc), arg(nArrayList, 2, sc), sc);
+        case PFILTER: // (pfilter FUNC LIST)
+            return new list_expr((f, l, item) -> new node(parallel.filter(x -> invoke(f, item.call(x)), l.listValue())), arg(nArrayList, 1, sc), arg(nArrayList, 2, sc), sc);
+        case PREDUCE: // (preduce FUNC LIST)
+            return new list_expr((f, l, item) -> parallel.reduce((x, y) -> invoke(f, item.call(x), item.call(y)), l.listValue()), arg(nArrayList, 1, sc), arg(nArrayList, 2, sc), sc);
+        case NTH: // (nth INDEX LIST)
+            return new op2_expr((i, lst) -> lst.listValue().get(i.intValue()), arg(nArrayList, 1, sc), arg(nArrayList, 2, sc));
+        case LENGTH: // (length LIST)
+            return new op1_expr(lst -> new node(lst.listValue().size()), arg(nArrayList, 1, sc));
+        case BEGIN: // (begin X ..)
+            if (len <= 1) return new const_expr(paren.node_null);
+            return new begin_expr(compile_args(nArrayList, 1, sc, tail));
+        case DOT: // (. CLASS METHOD ARGUMENT ..)
+            return new dot_expr(target(nArrayList.get(1), sc), nArrayList.get(2).stringValue(), compile_args(nArrayList, 3, sc));
+        case DOTGET: // (.get CLASS FIELD)
+            return new dotget_expr(target(nArrayList.get(1), sc), nArrayList.get(2).stringValue());
+        case DOTSET: // (.set CLASS FIELD VALUE)
+            return new dotset_expr(target(nArrayList.get(1), sc), nArrayList.get(2).stringValue(), arg(nArrayList, 3, sc));
+        case NEW: // (new CLASS ARG ..)
+            return new new_expr(new class_ref(nArrayList.get(1).stringValue(), true), compile_args(nArrayList, 2, sc));
+        case PR: // (pr X ..)
+            return new pr_expr(compile_args(nArrayList, 1, sc), false);
+        case PRN: // (prn X ..)
+            return new pr_expr(compile_args(nArrayList, 1, sc), true);
+        case EXIT: // (exit X)
+            return new op1_expr(x -> {
+                System.out.println();
+                System.exit(x.intValue());
+                return paren.node_null;
+            }, arg(nArrayList, 1, sc));
+        case SYSTEM: // (system "notepad" "a.txt") ; run external program
+            return new opn_expr(x -> system(x), compile_args(nArrayList, 1, sc));
+        case CONS: // (cons X LST)
+            return new op2_expr((x, l) -> {
+                return new node(plist.cons(x, l.listValue()));
+            }, arg(nArrayList, 1, sc), arg(nArrayList, 2, sc));
+        case NULLP: // (null? X)
+            return new op1_expr(x -> new node(x.value() == null), arg(nArrayList, 1, sc));
+        case CAST: // (cast CLASS X)
+            return new cast_expr(new class_ref(nArrayList.get(1).stringValue(), true), arg(nArrayList, 2, sc));
+        case READ_LINE: // (read-line)
+            return new opn_expr(x -> {
+                BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
+                try {
+                    return new node(br.readLine());
+                } catch (IOException e) {
+                    return paren.node_null;
+                }
+            }, new expr[0]);
+        case SLURP: // (slurp FILENAME)
+            return new op1_expr(x -> {
+                try {
+                    return new node(paren.slurp(x.stringValue()));
+                } catch (IOException e) {
+                    return paren.node_null;
+                }
+            }, arg(nArrayList, 1, sc));
+        case SPIT: // (spit FILENAME STRING)
+            return new op2_expr((x, y) -> new node(paren.spit(x.stringValue(), y.stringValue())), arg(nArrayList, 1, sc), arg(nArrayList, 2, sc));
+        case LOAD: // (load FILE)
+            return new op1_expr(x -> p.load(x.stringValue()), arg(nArrayList, 1, sc));
+        case REQUIRE: // (require FILE)
+            return new op1_expr(x -> new node(p.require(x.stringValue())), arg(nArrayList, 1, sc));
+        case THREAD: // (thread EXPR ..)
+            return new thread_expr(compile_args(nArrayList, 1, sc));
+        case DEREF: // (deref FUTURE), (deref FUTURE MS TIMEOUT-VALUE)
+            if (len >= 4) return new opn_expr(x -> tasks.deref(x[0], x[1], x[2]), compile_args(nArrayList, 1, sc));
+            return new op1_expr(f -> tasks.deref(f), arg(nArrayList, 1, sc));
+        case ATOM: // (atom X)
+            return new op1_expr(x -> new node(new atom(x)), arg(nArrayList, 1, sc));
+        case SWAP: // (swap! ATOM FUNC)
+            return new op2_expr((a, f) -> ((atom) a.obj).swap(x -> invoke(f, x)), arg(nArrayList, 1, sc), arg(nArrayList, 2, sc));
+        case COMPARE_AND_SET: // (compare-and-set! ATOM OLD NEW)
+            return new opn_expr(x -> new node(((atom) x[0].obj).compare_and_set(x[1], x[2])), compile_args(nArrayList, 1, sc));
+        case ALL: // (all FUTURE ..)
+            return new opn_expr(x -> tasks.all(x), compile_args(nArrayList, 1, sc));
+        case ANY: // (any FUTURE ..)
+            return new opn_expr(x -> tasks.any(x), compile_args(nArrayList, 1, sc));
+        default:
+            return new unknown_expr(func);
+        }
+    }
+
+    target_expr target(node n, scope sc) {
+        int code = code_of(n);
+        if (code < 0) return new target_expr(compile(n, sc), null);
+        boolean bound = (sc != null && sc.bound(code)) || cell(code).value != null;
+        return new target_expr(compile(n, sc), new class_ref(n.stringValue(), !bound));
+    }
+
+    static node system(node[] x) {
+        ArrayList<String> args = new ArrayList<String>();
+        for (node n : x) {
+            args.add(n.stringValue());
+        }
+        ProcessBuilder pb = new ProcessBuilder(args);
+        pb.inheritIO();
+        try {
+            Process ps = pb.start();
+            ps.waitFor();
+            return new node(ps.exitValue());
+        } catch (Exception e) {
+            budget.check_stop(e);
+            e.printStackTrace();
+        }
+        return paren.node_null;
+    }
+}
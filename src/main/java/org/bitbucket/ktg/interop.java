@@ -0,0 +1,195 @@
+// (C) 2013-2015 Kim, Taegyoon
+// Paren Java interop
+//
+// Methods, constructors and fields are resolved once per (class, name,
+// argument types) into MethodHandles of a generic (Object ..)Object shape and
+// kept in one JVM-wide table. The closure engine puts a site in front of the
+// table at every (.), (new), (.get) and (.set): it remembers the first few
+// receiver classes and argument types it sees, and past that goes straight
+// to the table.
+package org.bitbucket.ktg;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bitbucket.ktg.paren.node;
+
+final class interop {
+    private interop() {}
+
+    static final int METHOD = 0, CONSTRUCTOR = 1, GET = 2, SET = 3;
+    static final int SPREAD = 4; // handles for this many arguments or more take an Object[]
+
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+    static final Class<?>[] no_types = new Class<?>[0];
+    static final node[] no_args = new node[0];
+
+    static final class key {
+        final int kind;
+        final Class<?> cls;
+        final String name;
+        final Class<?>[] types;
+        key(int kind, Class<?> cls, String name, Class<?>[] types) {
+            this.kind = kind;
+            this.cls = cls;
+            this.name = name;
+            this.types = types;
+        }
+        public boolean equals(Object o) {
+            if (!(o instanceof key)) return false;
+            key k = (key) o;
+            return kind == k.kind && cls == k.cls && name.equals(k.name) && Arrays.equals(types, k.types);
+        }
+        public int hashCode() {
+            return (kind * 31 + cls.hashCode()) * 31 + name.hashCode() + Arrays.hashCode(types);
+        }
+    }
+
+    private static final ConcurrentHashMap<key, MethodHandle> table = new ConcurrentHashMap<key, MethodHandle>();
+
+    // parameter types a call with these arguments looks for
+    static Class<?>[] types(node[] args) {
+        if (args.length == 0) return no_types;
+        Class<?>[] r = new Class<?>[args.length];
+        for (int i = 0; i < args.length; i++) {
+            r[i] = paren.param_class(args[i]);
+        }
+        return r;
+    }
+
+    // handle for (RECEIVER ARGUMENT ..). RECEIVER is ignored by static members and constructors
+    static MethodHandle resolve(int kind, Class<?> cls, String name, Class<?>[] types) throws ReflectiveOperationException {
+        key k = new key(kind, cls, name, types);
+        MethodHandle h = table.get(k);
+        if (h == null) {
+            h = find(kind, cls, name, types);
+            MethodHandle old = table.putIfAbsent(k, h);
+            if (old != null) h = old;
+        }
+        return h;
+    }
+
+    private static MethodHandle find(int kind, Class<?> cls, String name, Class<?>[] types) throws ReflectiveOperationException {
+        switch (kind) {
+        case METHOD: {
+            Method m = cls.getMethod(name, types);
+            return generic(unreflect(m), !Modifier.isStatic(m.getModifiers()), types.length);
+        }
+        case CONSTRUCTOR:
+            return generic(lookup.unreflectConstructor(cls.getConstructor(types)), false, types.length);
+        case GET: {
+            Field f = cls.getField(name);
+            return generic(lookup.unreflectGetter(f), !Modifier.isStatic(f.getModifiers()), 0);
+        }
+        default: {
+            Field f = cls.getField(name);
+            return generic(lookup.unreflectSetter(f), !Modifier.isStatic(f.getModifiers()), 1);
+        }
+        }
+    }
+
+    // a public method may be declared by a class we cannot access, e.g. the
+    // implementation of a public interface. use the interface's method then
+    private static MethodHandle unreflect(Method m) throws IllegalAccessException {
+        try {
+            return lookup.unreflect(m);
+        } catch (IllegalAccessException e) {
+            ArrayDeque<Class<?>> todo = new ArrayDeque<Class<?>>();
+            todo.add(m.getDeclaringClass());
+            while (!todo.isEmpty()) {
+                Class<?> c = todo.poll();
+                if (c.getSuperclass() != null) todo.add(c.getSuperclass());
+                todo.addAll(Arrays.asList(c.getInterfaces()));
+                try {
+                    return lookup.unreflect(c.getDeclaredMethod(m.getName(), m.getParameterTypes()));
+                } catch (NoSuchMethodException | IllegalAccessException e2) {
+                }
+            }
+            throw e;
+        }
+    }
+
+    // (Object RECEIVER, Object ARGUMENT ..)Object, or (Object, Object[])Object for SPREAD or more arguments
+    private static MethodHandle generic(MethodHandle h, boolean receiver, int arity) {
+        if (!receiver) h = MethodHandles.dropArguments(h, 0, Object.class);
+        h = h.asFixedArity().asType(MethodType.genericMethodType(arity + 1));
+        if (arity >= SPREAD) h = h.asSpreader(Object[].class, arity);
+        return h;
+    }
+
+    static Object invoke(MethodHandle h, Object receiver, node[] args) throws Throwable {
+        switch (args.length) {
+        case 0: return h.invokeExact(receiver);
+        case 1: return h.invokeExact(receiver, args[0].value());
+        case 2: return h.invokeExact(receiver, args[0].value(), args[1].value());
+        case 3: return h.invokeExact(receiver, args[0].value(), args[1].value(), args[2].value());
+        default:
+            Object[] a = new Object[args.length];
+            for (int i = 0; i < a.length; i++) {
+                a[i] = args[i].value();
+            }
+            return h.invokeExact(receiver, a);
+        }
+    }
+
+    static Object get(MethodHandle h, Object receiver) throws Throwable {
+        return h.invokeExact(receiver);
+    }
+
+    static void set(MethodHandle h, Object receiver, Object value) throws Throwable {
+        Object r = h.invokeExact(receiver, value);
+    }
+
+    // inline cache of one call site
+    static final class site {
+        static final int POLY = 4; // receiver and argument types remembered before the site goes megamorphic
+
+        static final class entry {
+            final Class<?> cls;
+            final Class<?>[] types;
+            final MethodHandle h;
+            entry(Class<?> cls, Class<?>[] types, MethodHandle h) {
+                this.cls = cls;
+                this.types = types;
+                this.h = h;
+            }
+            boolean matches(Class<?> c, node[] args) {
+                if (c != cls) return false;
+                for (int i = 0; i < args.length; i++) {
+                    if (types[i] != paren.param_class(args[i])) return false;
+                }
+                return true;
+            }
+        }
+
+        final int kind;
+        final String name;
+        private volatile entry[] entries = new entry[0];
+
+        site(int kind, String name) {
+            this.kind = kind;
+            this.name = name;
+        }
+
+        MethodHandle lookup(Class<?> cls, node[] args) throws ReflectiveOperationException {
+            entry[] es = entries;
+            for (entry e : es) {
+                if (e.matches(cls, args)) return e.h;
+            }
+            Class<?>[] types = types(args);
+            MethodHandle h = resolve(kind, cls, name, types);
+            if (es.length < POLY) {
+                entry[] es2 = Arrays.copyOf(es, es.length + 1);
+                es2[es.length] = new entry(cls, types, h);
+                entries = es2;
+            }
+            return h;
+        }
+    }
+}
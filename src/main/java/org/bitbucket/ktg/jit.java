@@ -0,0 +1,1504 @@
+// (C) 2013-2015 Kim, Taegyoon
+// Paren JIT: JVM classes for hot fns
+//
+// The closure engine's second tier. A top-level fn whose calls and loop
+// iterations reach THRESHOLD is compiled into a class of its own, defined with
+// MethodHandles.Lookup (a hidden class on Java 15 and later). Its arguments and
+// locals are JVM locals of the type they had when it got hot, and int, long
+// and double arithmetic and comparisons are JVM instructions, so HotSpot
+// compiles it like Java. Calls of the fn itself call the compiled method; in
+// tail position they jump back to its start.
+//
+// The class is written here, version 49, which needs no stack map frames.
+// A call runs the compiled code while its arguments have the types the code
+// was compiled for and the fn and the builtins it uses are still bound as they
+// were; otherwise it is interpreted. This is checked when a call enters from
+// interpreted code, not on the recursive calls inside. fns with forms the
+// compiler does not take (fn, quote, lists, strings, I/O, interop, break, set
+// of globals, tail calls of other fns, locals of changing type, ...) stay
+// interpreted, as do calls under a budget or the profiler.
+package org.bitbucket.ktg;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bitbucket.ktg.compiler.cell;
+import org.bitbucket.ktg.compiler.frame;
+import org.bitbucket.ktg.compiler.lambda;
+import org.bitbucket.ktg.compiler.scope;
+import org.bitbucket.ktg.paren.builtin;
+import org.bitbucket.ktg.paren.fn;
+import org.bitbucket.ktg.paren.node;
+import org.bitbucket.ktg.paren.symbol;
+
+final class jit {
+    static final int THRESHOLD = 2000; // calls and loop iterations before a fn is compiled
+
+    // returned instead of a value when the call is to be interpreted
+    static final node INTERPRET = new node();
+
+    // compiled fn body
+    static abstract class code {
+        // the value of the call with the arguments in f, or INTERPRET
+        abstract node run(frame f) throws Exception;
+    }
+
+    // how hot one fn is, then its compiled code
+    static final class counter {
+        final compiler comp;
+        final ArrayList<node> def;
+        final scope sc;
+        int count; // races only lose counts
+        private volatile code compiled;
+        private volatile boolean failed; // not compilable, stays interpreted
+        counter(compiler comp, ArrayList<node> def, scope sc) {
+            this.comp = comp;
+            this.def = def;
+            this.sc = sc;
+        }
+
+        // the value of a call of l, or INTERPRET
+        node run(lambda l, frame f) throws Exception {
+            code c = compiled;
+            if (c == null) {
+                if (failed || ++count < THRESHOLD) return INTERPRET;
+                c = compile(l, f);
+                if (c == null) return INTERPRET;
+            }
+            if (comp.p.limits != null) return INTERPRET;
+            return c.run(f);
+        }
+
+        private synchronized code compile(lambda l, frame f) {
+            if (compiled == null && !failed) {
+                try {
+                    compiled = new jit(this, l, f).define();
+                } catch (unsupported e) {
+                    failed = true;
+                } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+                    failed = true;
+                }
+            }
+            return compiled;
+        }
+    }
+
+    // a form the compiler does not take
+    static final class unsupported extends Exception {
+        private static final long serialVersionUID = 1L;
+        unsupported(String what) {
+            super(what, null, false, false); // no stack trace
+        }
+    }
+
+    // kind of a value on the JVM stack: a node, or an unboxed int, long, double or boolean
+    private static final byte NODE = node.OBJ, INT = node.INT, LONG = node.LONG, DOUBLE = node.DOUBLE, BOOL = 4,
+        NONE = 5, // no value: a self call in tail position jumped back to the start
+        UNKNOWN = -1;
+
+    private static final Object SELF = new Object(), CALL = new Object(); // heads that are not builtins
+
+    private static final class local {
+        byte kind = UNKNOWN;
+        int index; // JVM local
+    }
+
+    private final compiler comp;
+    private final lambda self;
+    private final ArrayList<node> def;
+    private final scope sc;
+    private final byte[] param_kinds;
+    private byte ret; // kind the body returns
+
+    // found by check
+    private final HashMap<Integer, local> locals = new HashMap<Integer, local>(); // symbol code -> local
+    private final IdentityHashMap<node, Byte> kinds = new IdentityHashMap<node, Byte>();
+    private final IdentityHashMap<ArrayList<node>, Object> heads = new IdentityHashMap<ArrayList<node>, Object>(); // builtin, SELF or CALL
+    private final LinkedHashMap<cell, Object> guards = new LinkedHashMap<cell, Object>(); // builtin or SELF, checked on entry
+    private final HashSet<Integer> loop_vars = new HashSet<Integer>();
+    private int locals_end; // first JVM local after the variables
+
+    private jit(counter hot, lambda l, frame f) {
+        this.comp = hot.comp;
+        this.self = l;
+        this.def = hot.def;
+        this.sc = hot.sc;
+        param_kinds = new byte[l.params];
+        for (int i = 0; i < l.params; i++) {
+            byte t = f.slots[i].tag;
+            param_kinds[i] = t == INT || t == LONG || t == DOUBLE ? t : NODE;
+        }
+    }
+
+    private static final AtomicInteger classes = new AtomicInteger();
+    private final String this_class = "org/bitbucket/ktg/jit$fn" + classes.incrementAndGet();
+
+    code define() throws unsupported, ReflectiveOperationException {
+        infer();
+        byte[] b = assemble();
+        Class<?> c = define_class(b);
+        return (code) c.getConstructor(Object[].class).newInstance((Object) consts.toArray());
+    }
+
+    // ---- types
+
+    // the first return kind that the body gives back when its self calls return it
+    private void infer() throws unsupported {
+        unsupported last = null;
+        for (byte r : new byte[] {INT, LONG, DOUBLE, BOOL, NODE}) {
+            ret = r;
+            try {
+                byte k = check_body();
+                if (r == NODE || k == r || k == NONE) return;
+            } catch (unsupported e) {
+                last = e;
+            }
+        }
+        throw last;
+    }
+
+    private byte check_body() throws unsupported {
+        locals.clear();
+        kinds.clear();
+        heads.clear();
+        guards.clear();
+        loop_vars.clear();
+        locals_end = 1;
+        ArrayList<node> args = def.get(1).arrayListValue();
+        if (args.size() != self.params || sc.params != self.params) throw new unsupported("parameters");
+        HashSet<Integer> defined = new HashSet<Integer>();
+        for (int i = 0; i < self.params; i++) {
+            local v = local_of(args.get(i));
+            bind(v, param_kinds[i], "parameter");
+            defined.add(((symbol) args.get(i).obj).code);
+        }
+        byte k = NODE;
+        int n = def.size();
+        for (int i = 2; i < n; i++) {
+            k = check(def.get(i), defined, i == n - 1);
+        }
+        return k;
+    }
+
+    private static boolean numeric(byte k) {
+        return k == INT || k == LONG || k == DOUBLE;
+    }
+
+    private static byte join(byte a, byte b) {
+        if (a == NONE || a == b) return b;
+        if (b == NONE) return a;
+        return NODE;
+    }
+
+    private static byte literal_kind(node n) {
+        if (n.tag != node.OBJ) return n.tag;
+        return n.obj instanceof Boolean ? BOOL : NODE;
+    }
+
+    private local local_of(node n) throws unsupported {
+        if (!(n.obj instanceof symbol)) throw new unsupported("not a variable: " + n.str_with_type());
+        int code = ((symbol) n.obj).code;
+        if (!sc.slots.containsKey(code)) throw new unsupported("global variable: " + symbol.name(code));
+        local v = locals.get(code);
+        if (v == null) {
+            v = new local();
+            locals.put(code, v);
+        }
+        return v;
+    }
+
+    private void bind(local v, byte k, String what) throws unsupported {
+        if (k == NONE || k == UNKNOWN) throw new unsupported(what);
+        if (v.kind == UNKNOWN) {
+            v.kind = k;
+            v.index = locals_end;
+            locals_end += k == LONG || k == DOUBLE ? 2 : 1;
+            if (locals_end > 250) throw new unsupported("too many locals");
+        }
+        else if (v.kind != k && v.kind != NODE) {
+            throw new unsupported("type of a local changes: " + what);
+        }
+    }
+
+    // builtin, SELF or CALL
+    private Object head(node head) {
+        if (head.obj instanceof builtin) return head.obj;
+        if (head.obj instanceof symbol && !sc.slots.containsKey(((symbol) head.obj).code)) {
+            cell c = comp.cell(((symbol) head.obj).code);
+            node v = c.value;
+            if (v != null && v.obj instanceof builtin) {
+                guards.put(c, v.obj);
+                return v.obj;
+            }
+            if (v != null && v.obj instanceof fn && ((fn) v.obj).code == self) {
+                guards.put(c, SELF);
+                return SELF;
+            }
+        }
+        return CALL;
+    }
+
+    // the kind of n's value. checks that n compiles and that the locals it reads are bound
+    private byte check(node n, HashSet<Integer> defined, boolean tail) throws unsupported {
+        byte k = check_form(n, defined, tail);
+        kinds.put(n, k);
+        return k;
+    }
+
+    private byte check_form(node n, HashSet<Integer> defined, boolean tail) throws unsupported {
+        if (n.obj instanceof symbol) {
+            int code = ((symbol) n.obj).code;
+            if (!sc.slots.containsKey(code)) return NODE;
+            if (!defined.contains(code)) throw new unsupported("local read before it is bound: " + symbol.name(code));
+            return locals.get(code).kind;
+        }
+        if (!(n.obj instanceof ArrayList)) return literal_kind(n);
+        ArrayList<node> lst = n.arrayListValue();
+        if (lst.isEmpty()) return NODE;
+        Object h = head(lst.get(0));
+        heads.put(lst, h);
+        if (h instanceof builtin) return check_builtin((builtin) h, lst, defined, tail);
+        if (h == SELF) {
+            if (lst.size() - 1 != self.params) throw new unsupported("number of arguments");
+            for (int i = 1; i < lst.size(); i++) {
+                byte k = check(lst.get(i), defined, false);
+                byte p = param_kinds[i - 1];
+                if (p != NODE && k != p) throw new unsupported("argument type");
+            }
+            return tail ? NONE : ret;
+        }
+        if (tail) throw new unsupported("call in tail position");
+        if (!(lst.get(0).obj instanceof symbol) || check(lst.get(0), defined, false) != NODE) throw new unsupported("function");
+        for (int i = 1; i < lst.size(); i++) check(lst.get(i), defined, false);
+        return NODE;
+    }
+
+    private byte check_builtin(builtin b, ArrayList<node> lst, HashSet<Integer> defined, boolean tail) throws unsupported {
+        int len = lst.size();
+        switch (b) {
+        case PLUS: case MINUS: case MUL: case DIV: {
+            if (len <= 1) return INT;
+            byte k = check(lst.get(1), defined, false);
+            for (int i = 2; i < len; i++) check(lst.get(i), defined, false);
+            return numeric(k) ? k : NODE;
+        }
+        case INC: case DEC: {
+            if (len <= 1) return INT;
+            byte k = check(lst.get(1), defined, false);
+            return numeric(k) ? k : NODE;
+        }
+        case PERCENT:
+            if (len < 3) break;
+            check(lst.get(1), defined, false);
+            check(lst.get(2), defined, false);
+            return INT;
+        case LT: case GT: case LTE: case GTE:
+            if (len < 3) break;
+            check(lst.get(1), defined, false);
+            check(lst.get(2), defined, false);
+            return BOOL;
+        case EQ: case EQEQ: case NOTEQ:
+            if (len < 3) break;
+            for (int i = 1; i < len; i++) check(lst.get(i), defined, false);
+            return BOOL;
+        case ANDAND: case OROR:
+            for (int i = 1; i < len; i++) check(lst.get(i), i == 1 ? defined : new HashSet<Integer>(defined), false);
+            return BOOL;
+        case NOT:
+            if (len < 2) break;
+            check(lst.get(1), defined, false);
+            return BOOL;
+        case IF: {
+            if (len < 3) break;
+            check(lst.get(1), defined, false);
+            byte kt = check(lst.get(2), new HashSet<Integer>(defined), tail);
+            byte ke = len > 3 ? check(lst.get(3), new HashSet<Integer>(defined), tail) : NODE;
+            return join(kt, ke);
+        }
+        case WHEN: {
+            if (len < 3) break;
+            check(lst.get(1), defined, false);
+            HashSet<Integer> d = new HashSet<Integer>(defined);
+            for (int i = 2; i < len; i++) check(lst.get(i), d, tail && i == len - 1);
+            return NODE;
+        }
+        case BEGIN: {
+            if (len < 2) break;
+            byte k = NODE;
+            for (int i = 1; i < len; i++) k = check(lst.get(i), defined, tail && i == len - 1);
+            return k;
+        }
+        case DEF: {
+            if (len < 3) break;
+            local v = local_of(lst.get(1));
+            int code = ((symbol) lst.get(1).obj).code;
+            if (loop_vars.contains(code)) throw new unsupported("def of a loop variable");
+            bind(v, check(lst.get(2), defined, false), symbol.name(code));
+            defined.add(code);
+            return v.kind;
+        }
+        case SET: {
+            if (len < 3) break;
+            local v = local_of(lst.get(1));
+            int code = ((symbol) lst.get(1).obj).code;
+            if (!defined.contains(code)) throw new unsupported("set of an unbound local: " + symbol.name(code));
+            bind(v, check(lst.get(2), defined, false), symbol.name(code));
+            return v.kind;
+        }
+        case PLUSPLUS: case MINUSMINUS: {
+            if (len <= 1) return INT;
+            local v = local_of(lst.get(1));
+            if (!defined.contains(((symbol) lst.get(1).obj).code) || v.kind == BOOL) break;
+            return v.kind;
+        }
+        case FOR: {
+            if (len < 5) break;
+            local v = local_of(lst.get(1));
+            int code = ((symbol) lst.get(1).obj).code;
+            if (loop_vars.contains(code)) throw new unsupported("nested loops over one variable");
+            byte k = check(lst.get(2), defined, false);
+            if (!numeric(k) || (v.kind != UNKNOWN && v.kind != k)) throw new unsupported("loop variable type");
+            check(lst.get(3), defined, false);
+            check(lst.get(4), defined, false);
+            bind(v, k, symbol.name(code));
+            HashSet<Integer> d = new HashSet<Integer>(defined);
+            d.add(code);
+            loop_vars.add(code);
+            for (int i = 5; i < len; i++) check(lst.get(i), d, false);
+            loop_vars.remove(code);
+            defined.add(code);
+            return NODE;
+        }
+        case WHILE: {
+            if (len < 2) break;
+            HashSet<Integer> d = new HashSet<Integer>(defined);
+            for (int i = 1; i < len; i++) check(lst.get(i), d, false);
+            return NODE;
+        }
+        default:
+        }
+        throw new unsupported(paren.builtin_names[b.ordinal()]);
+    }
+
+    // ---- class file
+
+    private static final String NODE_C = "org/bitbucket/ktg/paren$node", NODE_T = "L" + NODE_C + ";",
+        FRAME_C = "org/bitbucket/ktg/compiler$frame", CELL_C = "org/bitbucket/ktg/compiler$cell",
+        LAMBDA_C = "org/bitbucket/ktg/compiler$lambda", COMPILER_C = "org/bitbucket/ktg/compiler",
+        FN_C = "org/bitbucket/ktg/paren$fn", BUILTIN_C = "org/bitbucket/ktg/paren$builtin",
+        PAREN_C = "org/bitbucket/ktg/paren", JIT_C = "org/bitbucket/ktg/jit", CODE_C = "org/bitbucket/ktg/jit$code",
+        BREAK_C = "org/bitbucket/ktg/BreakException";
+
+    private static final int ACONST_NULL = 1, ICONST_0 = 3, LCONST_0 = 9, DCONST_0 = 14, DCONST_1 = 15,
+        BIPUSH = 16, SIPUSH = 17, LDC = 18, LDC_W = 19, LDC2_W = 20,
+        ILOAD = 21, LLOAD = 22, DLOAD = 24, ALOAD = 25, AALOAD = 50,
+        ISTORE = 54, LSTORE = 55, DSTORE = 57, ASTORE = 58, AASTORE = 83,
+        POP = 87, POP2 = 88, DUP = 89, DUP2 = 92,
+        IADD = 96, LADD = 97, DADD = 99, ISUB = 100, LSUB = 101, DSUB = 103,
+        IMUL = 104, LMUL = 105, DMUL = 107, IDIV = 108, LDIV = 109, DDIV = 111, IREM = 112, IINC = 132,
+        I2L = 133, I2D = 135, L2I = 136, L2D = 138, D2I = 142, D2L = 143,
+        LCMP = 148, DCMPL = 151, DCMPG = 152,
+        IFEQ = 153, IFNE = 154, IFLT = 155, IFGE = 156, IFGT = 157, IFLE = 158,
+        IF_ICMPEQ = 159, IF_ICMPNE = 160, IF_ICMPLT = 161, IF_ICMPGE = 162, IF_ICMPGT = 163, IF_ICMPLE = 164,
+        IF_ACMPNE = 166, GOTO = 167,
+        IRETURN = 172, LRETURN = 173, DRETURN = 175, ARETURN = 176, RETURN = 177,
+        GETSTATIC = 178, GETFIELD = 180, PUTFIELD = 181,
+        INVOKEVIRTUAL = 182, INVOKESPECIAL = 183, INVOKESTATIC = 184,
+        ANEWARRAY = 189, CHECKCAST = 192, INSTANCEOF = 193, IFNULL = 198;
+
+    // growable byte array
+    private static final class bytes {
+        byte[] b = new byte[256];
+        int n;
+        void u1(int v) {
+            if (n == b.length) b = Arrays.copyOf(b, n * 2);
+            b[n++] = (byte) v;
+        }
+        void u2(int v) {
+            u1(v >>> 8);
+            u1(v);
+        }
+        void u4(int v) {
+            u2(v >>> 16);
+            u2(v);
+        }
+        void put(bytes o) {
+            for (int i = 0; i < o.n; i++) u1(o.b[i]);
+        }
+    }
+
+    // constant pool
+    private final bytes pool = new bytes();
+    private final HashMap<String, Integer> pool_index = new HashMap<String, Integer>();
+    private int pool_size = 1;
+
+    private int added(String key, int slots) {
+        int i = pool_size;
+        pool_size += slots;
+        pool_index.put(key, i);
+        return i;
+    }
+
+    private int utf8(String s) {
+        Integer i = pool_index.get("U" + s);
+        if (i != null) return i;
+        byte[] b = s.getBytes(StandardCharsets.UTF_8); // names here have no NUL and no surrogates
+        pool.u1(1);
+        pool.u2(b.length);
+        for (byte x : b) pool.u1(x);
+        return added("U" + s, 1);
+    }
+
+    private int class_ref(String name) {
+        Integer i = pool_index.get("C" + name);
+        if (i != null) return i;
+        int u = utf8(name);
+        pool.u1(7);
+        pool.u2(u);
+        return added("C" + name, 1);
+    }
+
+    private int member(int tag, String owner, String name, String desc) {
+        String key = tag + owner + "." + name + desc;
+        Integer i = pool_index.get(key);
+        if (i != null) return i;
+        int c = class_ref(owner);
+        Integer nt = pool_index.get("N" + name + desc);
+        if (nt == null) {
+            int u = utf8(name), d = utf8(desc);
+            pool.u1(12);
+            pool.u2(u);
+            pool.u2(d);
+            nt = added("N" + name + desc, 1);
+        }
+        pool.u1(tag);
+        pool.u2(c);
+        pool.u2(nt);
+        return added(key, 1);
+    }
+
+    private int field_ref(String owner, String name, String desc) {
+        return member(9, owner, name, desc);
+    }
+
+    private int method_ref(String owner, String name, String desc) {
+        return member(10, owner, name, desc);
+    }
+
+    private int int_const(int v) {
+        Integer i = pool_index.get("I" + v);
+        if (i != null) return i;
+        pool.u1(3);
+        pool.u4(v);
+        return added("I" + v, 1);
+    }
+
+    private int long_const(long v, int tag, String key) { // tag 5: long, 6: double bits
+        Integer i = pool_index.get(key);
+        if (i != null) return i;
+        pool.u1(tag);
+        pool.u4((int) (v >>> 32));
+        pool.u4((int) v);
+        return added(key, 2);
+    }
+
+    // values the code refers to: final fields k0 .. of the compiled object
+    private final ArrayList<Object> consts = new ArrayList<Object>();
+    private final ArrayList<String> const_types = new ArrayList<String>();
+    private final IdentityHashMap<Object, Integer> const_index = new IdentityHashMap<Object, Integer>();
+
+    // method being written
+    private bytes code;
+    private int sp, max_sp, next_local, max_locals;
+    private ArrayList<label> labels;
+    private ArrayList<label[]> handlers; // start, end, handler of each BreakException handler
+    private static final int DEAD = -1; // sp after a goto
+
+    private static final class label {
+        int pos = -1, sp = DEAD;
+        final ArrayList<Integer> refs = new ArrayList<Integer>(); // branch instructions to it
+    }
+
+    private final bytes methods = new bytes();
+    private int method_count;
+
+    private label label() {
+        label l = new label();
+        labels.add(l);
+        return l;
+    }
+
+    private void begin_method(int first_local) {
+        code = new bytes();
+        sp = max_sp = 0;
+        next_local = max_locals = first_local;
+        labels = new ArrayList<label>();
+        handlers = new ArrayList<label[]>();
+    }
+
+    private void end_method(int access, String name, String desc) throws unsupported {
+        for (label l : labels) {
+            for (int at : l.refs) {
+                int off = l.pos - at;
+                if (off != (short) off) throw new unsupported("method too large");
+                code.b[at + 1] = (byte) (off >>> 8);
+                code.b[at + 2] = (byte) off;
+            }
+        }
+        if (code.n > 65535) throw new unsupported("method too large");
+        methods.u2(access);
+        methods.u2(utf8(name));
+        methods.u2(utf8(desc));
+        methods.u2(1);
+        methods.u2(utf8("Code"));
+        methods.u4(12 + code.n + 8 * handlers.size());
+        methods.u2(max_sp);
+        methods.u2(max_locals);
+        methods.u4(code.n);
+        methods.put(code);
+        methods.u2(handlers.size());
+        for (label[] h : handlers) {
+            methods.u2(h[0].pos);
+            methods.u2(h[1].pos);
+            methods.u2(h[2].pos);
+            methods.u2(class_ref(BREAK_C));
+        }
+        methods.u2(0);
+        method_count++;
+    }
+
+    private void stack(int delta) {
+        sp += delta;
+        if (sp > max_sp) max_sp = sp;
+    }
+
+    private void op(int opcode, int delta) {
+        code.u1(opcode);
+        stack(delta);
+    }
+
+    private void op1(int opcode, int arg, int delta) {
+        code.u1(opcode);
+        code.u1(arg);
+        stack(delta);
+    }
+
+    private void op2(int opcode, int arg, int delta) {
+        code.u1(opcode);
+        code.u2(arg);
+        stack(delta);
+    }
+
+    private void jump(int opcode, label l, int delta) {
+        l.refs.add(code.n);
+        op2(opcode, 0, delta);
+        l.sp = sp;
+        if (opcode == GOTO) sp = DEAD;
+    }
+
+    private void place(label l) {
+        l.pos = code.n;
+        if (sp == DEAD) sp = l.sp;
+        else l.sp = sp;
+    }
+
+    private int temp(byte k) throws unsupported {
+        int i = next_local;
+        next_local += k == LONG || k == DOUBLE ? 2 : 1;
+        if (next_local > 255) throw new unsupported("too many locals");
+        max_locals = Math.max(max_locals, next_local);
+        return i;
+    }
+
+    private static int size(char t) {
+        return t == 'V' ? 0 : t == 'J' || t == 'D' ? 2 : 1;
+    }
+
+    private void invoke(int opcode, String owner, String name, String desc) {
+        int delta = opcode == INVOKESTATIC ? 0 : -1;
+        int i = 1;
+        while (desc.charAt(i) != ')') {
+            char c = desc.charAt(i);
+            delta -= size(c);
+            while (desc.charAt(i) == '[') i++;
+            i = desc.charAt(i) == 'L' ? desc.indexOf(';', i) + 1 : i + 1;
+        }
+        delta += size(desc.charAt(i + 1));
+        op2(opcode, method_ref(owner, name, desc), delta);
+    }
+
+    private void get_field(String owner, String name, String desc) {
+        op2(GETFIELD, field_ref(owner, name, desc), size(desc.charAt(0)) - 1);
+    }
+
+    private void get_static(String owner, String name, String desc) {
+        op2(GETSTATIC, field_ref(owner, name, desc), size(desc.charAt(0)));
+    }
+
+    private void load(byte k, int index) {
+        switch (k) {
+        case INT: case BOOL: op1(ILOAD, index, 1); break;
+        case LONG: op1(LLOAD, index, 2); break;
+        case DOUBLE: op1(DLOAD, index, 2); break;
+        default: op1(ALOAD, index, 1);
+        }
+    }
+
+    private void store(byte k, int index) {
+        switch (k) {
+        case INT: case BOOL: op1(ISTORE, index, -1); break;
+        case LONG: op1(LSTORE, index, -2); break;
+        case DOUBLE: op1(DSTORE, index, -2); break;
+        default: op1(ASTORE, index, -1);
+        }
+    }
+
+    private void pop(byte k) {
+        if (k == LONG || k == DOUBLE) op(POP2, -2);
+        else if (k != NONE) op(POP, -1);
+    }
+
+    private void dup(byte k) {
+        if (k == LONG || k == DOUBLE) op(DUP2, 2);
+        else op(DUP, 1);
+    }
+
+    private void push_int(int v) {
+        if (v >= -1 && v <= 5) op(ICONST_0 + v, 1);
+        else if (v == (byte) v) op1(BIPUSH, v, 1);
+        else if (v == (short) v) op2(SIPUSH, v, 1);
+        else ldc(int_const(v));
+    }
+
+    private void ldc(int index) {
+        if (index < 256) op1(LDC, index, 1);
+        else op2(LDC_W, index, 1);
+    }
+
+    private void push_long(long v) {
+        if (v == 0 || v == 1) op(LCONST_0 + (int) v, 2);
+        else op2(LDC2_W, long_const(v, 5, "J" + v), 2);
+    }
+
+    private void push_double(double v) {
+        long bits = Double.doubleToRawLongBits(v);
+        if (bits == 0) op(DCONST_0, 2);
+        else if (v == 1.0) op(DCONST_1, 2);
+        else op2(LDC2_W, long_const(bits, 6, "D" + bits), 2);
+    }
+
+    // pushes v, held in a final field of the compiled object
+    private void push_const(Object v, String type) {
+        Integer i = const_index.get(v);
+        if (i == null) {
+            i = consts.size();
+            consts.add(v);
+            const_types.add("L" + type + ";");
+            const_index.put(v, i);
+        }
+        op1(ALOAD, 0, 1);
+        get_field(this_class, "k" + i, const_types.get(i));
+    }
+
+    private void push_null() {
+        get_static(PAREN_C, "node_null", NODE_T);
+    }
+
+    private static String desc(byte k) {
+        switch (k) {
+        case INT: return "I";
+        case LONG: return "J";
+        case DOUBLE: return "D";
+        case BOOL: return "Z";
+        default: return NODE_T;
+        }
+    }
+
+    private String body_desc() {
+        StringBuilder s = new StringBuilder("(");
+        for (byte k : param_kinds) s.append(desc(k));
+        return s.append(')').append(desc(ret)).toString();
+    }
+
+    private void box(byte k) {
+        if (k != NODE && k != NONE) invoke(INVOKESTATIC, JIT_C, "box", "(" + desc(k) + ")" + NODE_T);
+    }
+
+    // a node no one else refers to, from a value of kind k
+    private void fresh(byte k) throws unsupported {
+        convert(k, NODE);
+        if (k == NODE || k == BOOL) invoke(INVOKEVIRTUAL, NODE_C, "clone", "()" + NODE_T);
+    }
+
+    // the conversions of the closure engine: intValue(), longValue(), doubleValue()
+    private void convert(byte from, byte to) throws unsupported {
+        if (from == to || from == NONE) return;
+        if (to == NODE) {
+            box(from);
+            return;
+        }
+        if (from == BOOL) {
+            box(BOOL);
+            from = NODE;
+        }
+        switch (to) {
+        case INT:
+            if (from == LONG) op(L2I, -1);
+            else if (from == DOUBLE) op(D2I, -1);
+            else invoke(INVOKEVIRTUAL, NODE_C, "intValue", "()I");
+            return;
+        case LONG:
+            if (from == INT) op(I2L, 1);
+            else if (from == DOUBLE) op(D2L, 0);
+            else invoke(INVOKEVIRTUAL, NODE_C, "longValue", "()J");
+            return;
+        case DOUBLE:
+            if (from == INT) op(I2D, 1);
+            else if (from == LONG) op(L2D, 0);
+            else invoke(INVOKEVIRTUAL, NODE_C, "doubleValue", "()D");
+            return;
+        default:
+            throw new unsupported("boolean");
+        }
+    }
+
+    private byte[] assemble() throws unsupported {
+        String body = body_desc();
+
+        // body(ARGUMENT ..): the fn body
+        begin_method(locals_end);
+        label start = label();
+        place(start);
+        byte k = NODE;
+        int n = def.size();
+        if (n <= 2) push_null();
+        for (int i = 2; i < n; i++) {
+            if (i < n - 1) statement(def.get(i));
+            else k = emit(def.get(i), true, start);
+        }
+        if (k != NONE) {
+            convert(k, ret);
+            switch (ret) {
+            case INT: case BOOL: op(IRETURN, -1); break;
+            case LONG: op(LRETURN, -2); break;
+            case DOUBLE: op(DRETURN, -2); break;
+            default: op(ARETURN, -1);
+            }
+        }
+        end_method(0x0010, "body", body); // final
+
+        // run(frame): guards, then body with the arguments unboxed
+        begin_method(3);
+        label fallback = label();
+        for (int i = 0; i < param_kinds.length; i++) {
+            if (param_kinds[i] == NODE) continue;
+            slot(i);
+            get_field(NODE_C, "tag", "B");
+            push_int(param_kinds[i]);
+            jump(IF_ICMPNE, fallback, -2);
+        }
+        for (Map.Entry<cell, Object> e : guards.entrySet()) {
+            push_const(e.getKey(), CELL_C);
+            get_field(CELL_C, "value", NODE_T);
+            op1(ASTORE, 2, -1);
+            op1(ALOAD, 2, 1);
+            jump(IFNULL, fallback, -1);
+            op1(ALOAD, 2, 1);
+            get_field(NODE_C, "obj", "Ljava/lang/Object;");
+            if (e.getValue() == SELF) {
+                op2(INSTANCEOF, class_ref(FN_C), 0);
+                jump(IFEQ, fallback, -1);
+                op1(ALOAD, 2, 1);
+                get_field(NODE_C, "obj", "Ljava/lang/Object;");
+                op2(CHECKCAST, class_ref(FN_C), 0);
+                get_field(FN_C, "code", "L" + LAMBDA_C + ";");
+                push_const(self, LAMBDA_C);
+            }
+            else {
+                get_static(BUILTIN_C, ((builtin) e.getValue()).name(), "L" + BUILTIN_C + ";");
+            }
+            jump(IF_ACMPNE, fallback, -2);
+        }
+        op1(ALOAD, 0, 1);
+        for (int i = 0; i < param_kinds.length; i++) {
+            slot(i);
+            if (param_kinds[i] == NODE) continue;
+            get_field(NODE_C, "bits", "J");
+            if (param_kinds[i] == INT) op(L2I, -1);
+            else if (param_kinds[i] == DOUBLE) invoke(INVOKESTATIC, "java/lang/Double", "longBitsToDouble", "(J)D");
+        }
+        invoke(INVOKEVIRTUAL, this_class, "body", body);
+        box(ret);
+        op(ARETURN, -1);
+        place(fallback);
+        get_static(JIT_C, "INTERPRET", NODE_T);
+        op(ARETURN, -1);
+        end_method(0x0001, "run", "(L" + FRAME_C + ";)" + NODE_T);
+
+        // <init>(Object[]): the constants
+        begin_method(2);
+        op1(ALOAD, 0, 1);
+        invoke(INVOKESPECIAL, CODE_C, "<init>", "()V");
+        for (int i = 0; i < consts.size(); i++) {
+            op1(ALOAD, 0, 1);
+            op1(ALOAD, 1, 1);
+            push_int(i);
+            op(AALOAD, -1);
+            String t = const_types.get(i);
+            op2(CHECKCAST, class_ref(t.substring(1, t.length() - 1)), 0);
+            op2(PUTFIELD, field_ref(this_class, "k" + i, t), -2);
+        }
+        op(RETURN, 0);
+        end_method(0x0001, "<init>", "([Ljava/lang/Object;)V");
+
+        int this_i = class_ref(this_class), super_i = class_ref(CODE_C);
+        int[] field_names = new int[consts.size()], field_types = new int[consts.size()];
+        for (int i = 0; i < consts.size(); i++) {
+            field_names[i] = utf8("k" + i);
+            field_types[i] = utf8(const_types.get(i));
+        }
+        bytes out = new bytes();
+        out.u4(0xCAFEBABE);
+        out.u2(0);
+        out.u2(49);
+        out.u2(pool_size);
+        out.put(pool);
+        out.u2(0x0030); // final super
+        out.u2(this_i);
+        out.u2(super_i);
+        out.u2(0);
+        out.u2(consts.size());
+        for (int i = 0; i < consts.size(); i++) {
+            out.u2(0x0010); // final
+            out.u2(field_names[i]);
+            out.u2(field_types[i]);
+            out.u2(0);
+        }
+        out.u2(method_count);
+        out.put(methods);
+        out.u2(0);
+        return Arrays.copyOf(out.b, out.n);
+    }
+
+    // the node of argument i, from run's frame
+    private void slot(int i) {
+        op1(ALOAD, 1, 1);
+        get_field(FRAME_C, "slots", "[" + NODE_T);
+        push_int(i);
+        op(AALOAD, -1);
+    }
+
+    // ---- code
+
+    private void statement(node n) throws unsupported {
+        pop(emit(n, false, null));
+    }
+
+    private void emit_as(node n, byte k) throws unsupported {
+        convert(emit(n, false, null), k);
+    }
+
+    private local local(node n) {
+        return locals.get(((symbol) n.obj).code);
+    }
+
+    // emits n and returns the kind of the value it leaves. start: where a self call in tail position jumps
+    private byte emit(node n, boolean tail, label start) throws unsupported {
+        if (n.obj instanceof symbol) {
+            int code = ((symbol) n.obj).code;
+            local v = locals.get(code);
+            if (v != null) {
+                load(v.kind, v.index);
+                return v.kind;
+            }
+            push_const(comp.cell(code), CELL_C);
+            get_field(CELL_C, "value", NODE_T);
+            return NODE;
+        }
+        if (!(n.obj instanceof ArrayList)) {
+            byte k = literal_kind(n);
+            switch (k) {
+            case INT: push_int(n.intValue()); break;
+            case LONG: push_long(n.longValue()); break;
+            case DOUBLE: push_double(n.doubleValue()); break;
+            case BOOL: push_int(n.booleanValue() ? 1 : 0); break;
+            default:
+                if (n == paren.node_null) push_null();
+                else push_const(n, NODE_C);
+            }
+            return k;
+        }
+        ArrayList<node> lst = n.arrayListValue();
+        if (lst.isEmpty()) {
+            push_null();
+            return NODE;
+        }
+        Object h = heads.get(lst);
+        if (h instanceof builtin) return emit_builtin((builtin) h, lst, kinds.get(n), tail, start);
+        if (h == SELF) {
+            if (!tail) op1(ALOAD, 0, 1);
+            for (int i = 1; i < lst.size(); i++) {
+                byte k = emit(lst.get(i), false, null);
+                if (param_kinds[i - 1] == NODE) fresh(k);
+            }
+            if (!tail) {
+                invoke(INVOKEVIRTUAL, this_class, "body", body_desc());
+                return ret;
+            }
+            for (int i = param_kinds.length - 1; i >= 0; i--) store(param_kinds[i], local(def.get(1).arrayListValue().get(i)).index);
+            jump(GOTO, start, 0);
+            return NONE;
+        }
+        // (FUNCTION ARGUMENT ..): compiler.invoke
+        push_const(comp, COMPILER_C);
+        emit(lst.get(0), false, null);
+        push_int(lst.size() - 1);
+        op2(ANEWARRAY, class_ref(NODE_C), 0);
+        for (int i = 1; i < lst.size(); i++) {
+            op(DUP, 1);
+            push_int(i - 1);
+            emit_as(lst.get(i), NODE);
+            op(AASTORE, -3);
+        }
+        invoke(INVOKEVIRTUAL, COMPILER_C, "invoke", "(" + NODE_T + "[" + NODE_T + ")" + NODE_T);
+        return NODE;
+    }
+
+    private static final int ADD = 0, SUB = 1, MUL = 2, DIV = 3; // ops of arith
+    private static final int LT = 0, GT = 1, LTE = 2, GTE = 3; // ops of compare
+
+    private static int arith_op(builtin b) {
+        switch (b) {
+        case PLUS: return ADD;
+        case MINUS: return SUB;
+        case MUL: return MUL;
+        default: return DIV;
+        }
+    }
+
+    private static int compare_op(builtin b) {
+        switch (b) {
+        case LT: return LT;
+        case GT: return GT;
+        case LTE: return LTE;
+        default: return GTE;
+        }
+    }
+
+    private void arith(int op, byte k) {
+        int[] ops;
+        switch (k) {
+        case INT: ops = new int[] {IADD, ISUB, IMUL, IDIV}; break;
+        case LONG: ops = new int[] {LADD, LSUB, LMUL, LDIV}; break;
+        default: ops = new int[] {DADD, DSUB, DMUL, DDIV};
+        }
+        op(ops[op], k == INT ? -1 : -2);
+    }
+
+    private byte emit_builtin(builtin b, ArrayList<node> lst, byte k, boolean tail, label start) throws unsupported {
+        int len = lst.size();
+        switch (b) {
+        case PLUS: case MINUS: case MUL: case DIV: {
+            if (len <= 1) {
+                push_int(b == builtin.PLUS || b == builtin.MINUS ? 0 : 1);
+                return INT;
+            }
+            int op = arith_op(b);
+            if (k != NODE) {
+                emit_as(lst.get(1), k);
+                for (int i = 2; i < len; i++) {
+                    emit_as(lst.get(i), k);
+                    arith(op, k);
+                }
+                return k;
+            }
+            emit_as(lst.get(1), NODE);
+            if (len == 2) invoke(INVOKESTATIC, JIT_C, "number", "(" + NODE_T + ")" + NODE_T);
+            for (int i = 2; i < len; i++) {
+                emit_as(lst.get(i), NODE);
+                push_int(op);
+                invoke(INVOKESTATIC, JIT_C, "arith", "(" + NODE_T + NODE_T + "I)" + NODE_T);
+            }
+            return NODE;
+        }
+        case INC: case DEC: {
+            if (len <= 1) {
+                push_int(0);
+                return INT;
+            }
+            int delta = b == builtin.INC ? 1 : -1;
+            emit_as(lst.get(1), k);
+            switch (k) {
+            case INT: push_int(delta); op(IADD, -1); break;
+            case LONG: push_long(delta); op(LADD, -2); break;
+            case DOUBLE: push_double(delta); op(DADD, -2); break;
+            default:
+                push_int(delta);
+                invoke(INVOKESTATIC, JIT_C, "step", "(" + NODE_T + "I)" + NODE_T);
+            }
+            return k;
+        }
+        case PERCENT:
+            emit_as(lst.get(1), INT);
+            emit_as(lst.get(2), INT);
+            op(IREM, -1);
+            return INT;
+        case LT: case GT: case LTE: case GTE: case EQ: case EQEQ: case NOTEQ: case ANDAND: case OROR: case NOT: {
+            label no = label(), end = label();
+            branch(lst, b, no, false);
+            push_int(1);
+            jump(GOTO, end, 0);
+            place(no);
+            push_int(0);
+            place(end);
+            return BOOL;
+        }
+        case IF: {
+            label otherwise = label(), end = label();
+            branch(lst.get(1), otherwise, false);
+            byte kt = emit(lst.get(2), tail, start);
+            if (kt != NONE) {
+                convert(kt, k);
+                jump(GOTO, end, 0);
+            }
+            place(otherwise);
+            byte ke = NODE;
+            if (len > 3) ke = emit(lst.get(3), tail, start);
+            else push_null();
+            convert(ke, k);
+            place(end);
+            return k;
+        }
+        case WHEN: {
+            label otherwise = label(), end = label();
+            branch(lst.get(1), otherwise, false);
+            for (int i = 2; i < len - 1; i++) statement(lst.get(i));
+            byte kl = emit(lst.get(len - 1), tail, start);
+            if (kl != NONE) {
+                convert(kl, NODE);
+                jump(GOTO, end, 0);
+            }
+            place(otherwise);
+            push_null();
+            place(end);
+            return NODE;
+        }
+        case BEGIN: {
+            for (int i = 1; i < len - 1; i++) statement(lst.get(i));
+            return emit(lst.get(len - 1), tail, start);
+        }
+        case DEF: case SET: {
+            local v = local(lst.get(1));
+            byte kv = emit(lst.get(2), false, null);
+            if (v.kind != NODE) {
+                convert(kv, v.kind);
+            }
+            else if (b == builtin.DEF && (kv == NODE || kv == BOOL)) { // binder: names a fn, binds a copy
+                convert(kv, NODE);
+                push_int(((symbol) lst.get(1).obj).code);
+                invoke(INVOKESTATIC, JIT_C, "bind", "(" + NODE_T + "I)" + NODE_T);
+            }
+            else {
+                fresh(kv);
+            }
+            dup(v.kind);
+            store(v.kind, v.index);
+            return v.kind;
+        }
+        case PLUSPLUS: case MINUSMINUS: {
+            if (len <= 1) {
+                push_int(0);
+                return INT;
+            }
+            local v = local(lst.get(1));
+            int delta = b == builtin.PLUSPLUS ? 1 : -1;
+            switch (v.kind) {
+            case INT:
+                code.u1(IINC);
+                code.u1(v.index);
+                code.u1(delta);
+                load(INT, v.index);
+                break;
+            case LONG: case DOUBLE:
+                load(v.kind, v.index);
+                if (v.kind == LONG) {
+                    push_long(delta);
+                    op(LADD, -2);
+                }
+                else {
+                    push_double(delta);
+                    op(DADD, -2);
+                }
+                op(DUP2, 2);
+                store(v.kind, v.index);
+                break;
+            default:
+                load(NODE, v.index);
+                push_int(delta);
+                invoke(INVOKESTATIC, JIT_C, "step_var", "(" + NODE_T + "I)" + NODE_T);
+            }
+            return v.kind;
+        }
+        case FOR:
+            emit_for(lst);
+            return NODE;
+        case WHILE: {
+            if (sp != 0) throw new unsupported("loop inside an expression");
+            label try_start = label(), head = label(), try_end = label(), handler = label(), done = label();
+            place(try_start);
+            place(head);
+            branch(lst.get(1), done, false);
+            for (int i = 2; i < len; i++) statement(lst.get(i));
+            jump(GOTO, head, 0);
+            loop_end(try_start, try_end, handler, done);
+            return NODE;
+        }
+        default:
+            throw new unsupported(paren.builtin_names[b.ordinal()]);
+        }
+    }
+
+    // the end of a loop: (break) leaves it; its value is null
+    private void loop_end(label try_start, label try_end, label handler, label done) {
+        place(try_end);
+        handlers.add(new label[] {try_start, try_end, handler});
+        place(handler);
+        sp = 0;
+        stack(1); // the BreakException
+        op(POP, -1);
+        place(done);
+        push_null();
+    }
+
+    // (for SYMBOL START END STEP EXPR ..), as compiler.for_expr: the variable is
+    // bound before the loop and set to each value; the body does not change the count
+    private void emit_for(ArrayList<node> lst) throws unsupported {
+        if (sp != 0) throw new unsupported("loop inside an expression");
+        local v = local(lst.get(1));
+        byte k = v.kind;
+        label try_start = label(), head = label(), body = label(), try_end = label(), handler = label(), done = label();
+        place(try_start);
+        emit_as(lst.get(2), k);
+        int a = temp(k), last = temp(k);
+        store(k, a);
+        emit_as(lst.get(3), k);
+        store(k, last);
+        node step = lst.get(4);
+        boolean literal = !(step.obj instanceof symbol) && !(step.obj instanceof ArrayList) && literal_kind(step) == k;
+        int s = -1;
+        if (!literal) {
+            emit_as(step, k);
+            s = temp(k);
+            store(k, s);
+        }
+        load(k, a);
+        store(k, v.index);
+        place(head);
+        if (literal) {
+            boolean up = step.doubleValue() >= 0;
+            load(k, a);
+            load(k, last);
+            compare_jump(up ? LTE : GTE, k, done, false);
+        }
+        else {
+            label down = label();
+            load(k, s);
+            switch (k) {
+            case INT: jump(IFLT, down, -1); break;
+            case LONG: push_long(0); op(LCMP, -3); jump(IFLT, down, -1); break;
+            default: push_double(0); op(DCMPL, -3); jump(IFLT, down, -1); // NaN: down, as step >= 0 is false
+            }
+            load(k, a);
+            load(k, last);
+            compare_jump(LTE, k, done, false);
+            jump(GOTO, body, 0);
+            place(down);
+            load(k, a);
+            load(k, last);
+            compare_jump(GTE, k, done, false);
+        }
+        place(body);
+        load(k, a);
+        store(k, v.index);
+        for (int i = 5; i < lst.size(); i++) statement(lst.get(i));
+        if (literal && k == INT && step.intValue() == (byte) step.intValue()) {
+            code.u1(IINC);
+            code.u1(a);
+            code.u1(step.intValue());
+        }
+        else {
+            load(k, a);
+            if (literal) emit_as(step, k);
+            else load(k, s);
+            arith(ADD, k);
+            store(k, a);
+        }
+        jump(GOTO, head, 0);
+        loop_end(try_start, try_end, handler, done);
+    }
+
+    // jumps to target if (op A B) is when, A and B of kind k on the stack
+    private void compare_jump(int op, byte k, label target, boolean when) {
+        if (k == INT) {
+            int[] t = when ? new int[] {IF_ICMPLT, IF_ICMPGT, IF_ICMPLE, IF_ICMPGE} : new int[] {IF_ICMPGE, IF_ICMPLE, IF_ICMPGT, IF_ICMPLT};
+            jump(t[op], target, -2);
+            return;
+        }
+        if (k == LONG) op(LCMP, -3);
+        else op(op == LT || op == LTE ? DCMPG : DCMPL, -3); // NaN compares false
+        int[] t = when ? new int[] {IFLT, IFGT, IFLE, IFGE} : new int[] {IFGE, IFLE, IFGT, IFLT};
+        jump(t[op], target, -1);
+    }
+
+    // jumps to target if A == B is when, A and B of kind k on the stack
+    private void equal_jump(byte k, label target, boolean when) {
+        if (k == INT) {
+            jump(when ? IF_ICMPEQ : IF_ICMPNE, target, -2);
+            return;
+        }
+        op(k == LONG ? LCMP : DCMPL, -3);
+        jump(when ? IFEQ : IFNE, target, -1);
+    }
+
+    // jumps to target if the truth of cond is when, else falls through
+    private void branch(node cond, label target, boolean when) throws unsupported {
+        if (cond.obj instanceof ArrayList) {
+            ArrayList<node> lst = cond.arrayListValue();
+            Object h = heads.get(lst);
+            if (h instanceof builtin) {
+                switch ((builtin) h) {
+                case LT: case GT: case LTE: case GTE: case EQ: case EQEQ: case NOTEQ: case ANDAND: case OROR: case NOT:
+                    branch(lst, (builtin) h, target, when);
+                    return;
+                default:
+                }
+            }
+        }
+        byte k = emit(cond, false, null);
+        switch (k) {
+        case BOOL: break;
+        case NODE: invoke(INVOKEVIRTUAL, NODE_C, "booleanValue", "()Z"); break;
+        default: // numbers are true
+            pop(k);
+            push_int(1);
+        }
+        jump(when ? IFNE : IFEQ, target, -1);
+    }
+
+    private void branch(ArrayList<node> lst, builtin b, label target, boolean when) throws unsupported {
+        int len = lst.size();
+        switch (b) {
+        case LT: case GT: case LTE: case GTE: {
+            byte k = kinds.get(lst.get(1));
+            if (numeric(k)) {
+                emit(lst.get(1), false, null);
+                emit_as(lst.get(2), k);
+                compare_jump(compare_op(b), k, target, when);
+            }
+            else {
+                emit_as(lst.get(1), NODE);
+                emit_as(lst.get(2), NODE);
+                push_int(compare_op(b));
+                invoke(INVOKESTATIC, JIT_C, "compare", "(" + NODE_T + NODE_T + "I)Z");
+                jump(when ? IFNE : IFEQ, target, -1);
+            }
+            return;
+        }
+        case EQ: case EQEQ: case NOTEQ: {
+            boolean equal = b != builtin.NOTEQ;
+            byte k = b == builtin.EQ ? NODE : kinds.get(lst.get(1));
+            if (!numeric(k)) k = NODE;
+            if (len == 3 && k != NODE) {
+                emit(lst.get(1), false, null);
+                emit_as(lst.get(2), k);
+                equal_jump(k, target, equal == when);
+                return;
+            }
+            // fails as soon as one (ARG == FIRST) is not equal
+            label fail = when ? label() : target;
+            emit_as(lst.get(1), k);
+            int first = temp(k);
+            store(k, first);
+            for (int i = 2; i < len; i++) {
+                load(k, first);
+                emit_as(lst.get(i), k);
+                if (k != NODE) {
+                    equal_jump(k, fail, !equal);
+                }
+                else {
+                    invoke(INVOKESTATIC, JIT_C, b == builtin.EQ ? "equal" : "same", "(" + NODE_T + NODE_T + ")Z");
+                    jump(equal ? IFEQ : IFNE, fail, -1);
+                }
+            }
+            if (when) {
+                jump(GOTO, target, 0);
+                place(fail);
+            }
+            return;
+        }
+        case ANDAND: case OROR: {
+            boolean stop = b == builtin.OROR; // truth that decides
+            if (when == stop) {
+                for (int i = 1; i < len; i++) branch(lst.get(i), target, stop);
+            }
+            else {
+                label decided = label();
+                for (int i = 1; i < len; i++) branch(lst.get(i), decided, stop);
+                jump(GOTO, target, 0);
+                place(decided);
+            }
+            return;
+        }
+        default: // NOT
+            branch(lst.get(1), target, !when);
+        }
+    }
+
+    // ---- run time
+
+    static node box(int v) {
+        return new node(v);
+    }
+
+    static node box(long v) {
+        return new node(v);
+    }
+
+    static node box(double v) {
+        return new node(v);
+    }
+
+    static node box(boolean v) {
+        return v ? paren.node_true : paren.node_false;
+    }
+
+    // (def SYMBOL V) of a local
+    static node bind(node v, int code) {
+        paren.name_fn(v, code);
+        return v.clone();
+    }
+
+    // (+ A), (- A), (* A), (/ A)
+    static node number(node a) {
+        switch (a.tag) {
+        case node.INT: return new node(a.intValue());
+        case node.LONG: return new node(a.longValue());
+        default: return new node(a.doubleValue());
+        }
+    }
+
+    // A op B where the type of A is known only at run time. it decides the type of the result
+    static node arith(node a, node b, int op) {
+        switch (a.tag) {
+        case node.INT: {
+            int x = a.intValue(), y = b.intValue();
+            switch (op) {
+            case ADD: return new node(x + y);
+            case SUB: return new node(x - y);
+            case MUL: return new node(x * y);
+            default: return new node(x / y);
+            }
+        }
+        case node.LONG: {
+            long x = a.longValue(), y = b.longValue();
+            switch (op) {
+            case ADD: return new node(x + y);
+            case SUB: return new node(x - y);
+            case MUL: return new node(x * y);
+            default: return new node(x / y);
+            }
+        }
+        default: {
+            double x = a.doubleValue(), y = b.doubleValue();
+            switch (op) {
+            case ADD: return new node(x + y);
+            case SUB: return new node(x - y);
+            case MUL: return new node(x * y);
+            default: return new node(x / y);
+            }
+        }
+        }
+    }
+
+    // (inc A), (dec A)
+    static node step(node a, int delta) {
+        switch (a.tag) {
+        case node.INT: return new node(a.intValue() + delta);
+        case node.LONG: return new node(a.longValue() + delta);
+        default: return new node(a.doubleValue() + delta);
+        }
+    }
+
+    // (++ A), (-- A): A changes in place
+    static node step_var(node a, int delta) {
+        if (a.tag == node.INT) a.set(a.intValue() + delta);
+        else if (a.tag == node.LONG) a.set(a.longValue() + delta);
+        else a.set(a.doubleValue() + delta);
+        return a;
+    }
+
+    static boolean compare(node a, node b, int op) {
+        switch (a.tag) {
+        case node.INT: {
+            int x = a.intValue(), y = b.intValue();
+            return op == LT ? x < y : op == GT ? x > y : op == LTE ? x <= y : x >= y;
+        }
+        case node.LONG: {
+            long x = a.longValue(), y = b.longValue();
+            return op == LT ? x < y : op == GT ? x > y : op == LTE ? x <= y : x >= y;
+        }
+        default: {
+            double x = a.doubleValue(), y = b.doubleValue();
+            return op == LT ? x < y : op == GT ? x > y : op == LTE ? x <= y : x >= y;
+        }
+        }
+    }
+
+    // (== FIRST B)
+    static boolean same(node first, node b) {
+        switch (first.tag) {
+        case node.INT: return b.intValue() == first.intValue();
+        case node.LONG: return b.longValue() == first.longValue();
+        default: return b.doubleValue() == first.doubleValue();
+        }
+    }
+
+    // (= FIRST B)
+    static boolean equal(node first, node b) {
+        return b.value().equals(first.value());
+    }
+
+    // ---- loading
+
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+    private static final Method define_hidden = define_hidden();
+
+    // Lookup.defineHiddenClass, Java 15 and later
+    private static Method define_hidden() {
+        try {
+            Class<?> option = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            return MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class, boolean.class,
+                Array.newInstance(option, 0).getClass());
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    // a hidden class can be unloaded once its fn is gone
+    private static Class<?> define_class(byte[] b) throws ReflectiveOperationException {
+        if (define_hidden != null) {
+            Object no_options = Array.newInstance(define_hidden.getParameterTypes()[2].getComponentType(), 0);
+            return ((MethodHandles.Lookup) define_hidden.invoke(lookup, b, true, no_options)).lookupClass();
+        }
+        return lookup.defineClass(b);
+    }
+}
@@ -0,0 +1,301 @@
+// (C) 2013-2015 Kim, Taegyoon
+// Paren lazy sequence
+//
+// The list value of (range), (map), (filter), (take) and (drop). It keeps how
+// its elements are made. A sequence passed straight to (fold), (map),
+// (filter), (take) or (drop) is never seen again, so its one pass pulls
+// the elements through all the stages CHUNK at a time, and
+//   (fold + (filter even? (map f (range 1 10000000 1))))
+// runs in constant memory and makes no intermediate lists. Any other use
+// shares the sequence (see share): one that calls fns is realized then, as
+// a list would be, and the others keep each chunk the first pass makes, so
+// every pass sees the same elements. nth, length and Java code that
+// indexes the list realize it into a pvector.
+package org.bitbucket.ktg;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.bitbucket.ktg.paren.node;
+
+final class lseq extends AbstractList<node> {
+    static final int CHUNK = 32;
+
+    interface fn1 {
+        node call(node x) throws Exception;
+    }
+
+    // one pass over the elements
+    interface cursor {
+        // writes the next elements, at most max, to out[0 ..]. returns how many; 0 at the end
+        int next(node[] out, int max) throws Exception;
+    }
+
+    interface source {
+        cursor open();
+    }
+
+    private final source src;
+    private final boolean pure; // its passes call no fns
+    private volatile boolean shared; // the value of a variable, an argument, ..: passes reuse the chunks
+    private volatile pvector realized;
+    private ArrayList<node[]> chunks; // made so far by the pass in up. guarded by this
+    private cursor up;
+    private boolean done; // up has ended
+
+    private lseq(boolean pure, source src) {
+        this.src = src;
+        this.pure = pure;
+    }
+
+    // whether a pass over lst calls no fns
+    private static boolean pure(List<node> lst) {
+        if (!(lst instanceof lseq)) return true;
+        lseq s = (lseq) lst;
+        return s.pure || s.realized != null;
+    }
+
+    // this sequence, now that it may be read more than once. one that calls
+    // fns is realized, so they run now and once
+    lseq share() throws Exception {
+        if (!pure) realize();
+        shared = true;
+        return this;
+    }
+
+    // chunk k of the elements, made by the shared pass when no pass has; null after the last
+    private synchronized node[] chunk(int k) throws Exception {
+        if (chunks == null) chunks = new ArrayList<node[]>();
+        while (k >= chunks.size() && !done) {
+            if (up == null) up = src.open();
+            node[] buf = new node[CHUNK];
+            int n = up.next(buf, CHUNK);
+            if (n == 0) {
+                done = true;
+                up = null;
+            } else {
+                chunks.add(n == CHUNK ? buf : Arrays.copyOf(buf, n));
+            }
+        }
+        return k < chunks.size() ? chunks.get(k) : null;
+    }
+
+    static cursor cursor(List<node> lst) {
+        if (lst instanceof lseq) {
+            lseq s = (lseq) lst;
+            if (s.realized == null) {
+                if (!s.shared) return s.src.open();
+                return new cursor() {
+                    int k, i; // chunk, index in it
+                    public int next(node[] out, int max) throws Exception {
+                        for (;; k++, i = 0) {
+                            node[] c = s.chunk(k);
+                            if (c == null) return 0;
+                            if (i < c.length) {
+                                int n = Math.min(max, c.length - i);
+                                System.arraycopy(c, i, out, 0, n);
+                                i += n;
+                                return n;
+                            }
+                        }
+                    }
+                };
+            }
+            lst = s.realized;
+        }
+        final Iterator<node> it = lst.iterator();
+        return (out, max) -> {
+            int n = 0;
+            while (n < max && it.hasNext()) out[n++] = it.next();
+            return n;
+        };
+    }
+
+    static lseq range(node start, node end, node step) {
+        if (start.tag == node.INT) {
+            final int a0 = start.intValue(), last = end.intValue(), s = step.intValue();
+            return new lseq(true, () -> new cursor() {
+                int a = a0;
+                public int next(node[] out, int max) {
+                    int n = 0;
+                    if (s >= 0) {
+                        for (; n < max && a <= last; a += s) out[n++] = new node(a);
+                    }
+                    else {
+                        for (; n < max && a >= last; a += s) out[n++] = new node(a);
+                    }
+                    return n;
+                }
+            });
+        }
+        else if (start.tag == node.LONG) {
+            final long a0 = start.longValue(), last = end.longValue(), s = step.longValue();
+            return new lseq(true, () -> new cursor() {
+                long a = a0;
+                public int next(node[] out, int max) {
+                    int n = 0;
+                    if (s >= 0) {
+                        for (; n < max && a <= last; a += s) out[n++] = new node(a);
+                    }
+                    else {
+                        for (; n < max && a >= last; a += s) out[n++] = new node(a);
+                    }
+                    return n;
+                }
+            });
+        }
+        else {
+            final double a0 = start.doubleValue(), last = end.doubleValue(), s = step.doubleValue();
+            return new lseq(true, () -> new cursor() {
+                double a = a0;
+                public int next(node[] out, int max) {
+                    int n = 0;
+                    if (s >= 0) {
+                        for (; n < max && a <= last; a += s) out[n++] = new node(a);
+                    }
+                    else {
+                        for (; n < max && a >= last; a += s) out[n++] = new node(a);
+                    }
+                    return n;
+                }
+            });
+        }
+    }
+
+    static lseq map(final fn1 f, final List<node> lst) {
+        return new lseq(false, () -> {
+            final cursor up = cursor(lst);
+            return (out, max) -> {
+                int n = up.next(out, max);
+                for (int i = 0; i < n; i++) out[i] = f.call(out[i]);
+                return n;
+            };
+        });
+    }
+
+    static lseq filter(final fn1 f, final List<node> lst) {
+        return new lseq(false, () -> {
+            final cursor up = cursor(lst);
+            return (out, max) -> {
+                for (;;) {
+                    int n = up.next(out, max);
+                    if (n == 0) return 0;
+                    int k = 0;
+                    for (int i = 0; i < n; i++) {
+                        if (f.call(out[i]).booleanValue()) out[k++] = out[i];
+                    }
+                    if (k > 0) return k;
+                }
+            };
+        });
+    }
+
+    static lseq take(final int count, final List<node> lst) {
+        return new lseq(pure(lst), () -> {
+            final cursor up = cursor(lst);
+            return new cursor() {
+                int left = count;
+                public int next(node[] out, int max) throws Exception {
+                    if (left <= 0) return 0;
+                    int n = up.next(out, Math.min(max, left));
+                    left -= n;
+                    return n;
+                }
+            };
+        });
+    }
+
+    static lseq drop(final int count, final List<node> lst) {
+        return new lseq(pure(lst), () -> {
+            final cursor up = cursor(lst);
+            return new cursor() {
+                int skip = count;
+                public int next(node[] out, int max) throws Exception {
+                    while (skip > 0) {
+                        int n = up.next(out, Math.min(max, skip));
+                        if (n == 0) return 0;
+                        skip -= n;
+                    }
+                    return up.next(out, max);
+                }
+            };
+        });
+    }
+
+    // pulls the elements of a list one at a time, CHUNK at a time from its stages
+    static final class reader {
+        private final cursor c;
+        private final node[] buf = new node[CHUNK];
+        private int i, n;
+
+        reader(List<node> lst) {
+            c = cursor(lst);
+        }
+
+        boolean has_next() throws Exception {
+            if (i < n) return true;
+            budget b = budget.current();
+            if (b != null) b.step();
+            n = c.next(buf, CHUNK);
+            i = 0;
+            return n > 0;
+        }
+
+        node next() {
+            return buf[i++];
+        }
+    }
+
+    pvector realize() throws Exception {
+        pvector r = realized;
+        if (r == null) {
+            pvector.builder b = new pvector.builder();
+            reader it = new reader(this);
+            while (it.has_next()) b.add(it.next());
+            realized = r = b.build();
+        }
+        return r;
+    }
+
+    private pvector realized() {
+        try {
+            return realize();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public int size() {
+        return realized().size();
+    }
+
+    public node get(int i) {
+        return realized().get(i);
+    }
+
+    public Iterator<node> iterator() {
+        pvector r = realized;
+        if (r != null) return r.iterator();
+        final reader it = new reader(this);
+        return new Iterator<node>() {
+            public boolean hasNext() {
+                try {
+                    return it.has_next();
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            public node next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return it.next();
+            }
+        };
+    }
+}
@@ -0,0 +1,101 @@
+// (C) 2013-2015 Kim, Taegyoon
+// Paren modules
+//
+// (load FILE) runs FILE in the globals of the interpreter calling it;
+// (require FILE) does it once per interpreter. The compiled forms of FILE
+// come from a cache every interpreter of the JVM shares, so a pool of
+// interpreters reads, parses, expands and optimizes each file once. A file
+// is compiled as parenj would compile it alone, in a new interpreter: with
+// the standard builtins and macros, not the caller's. Interpreters share
+// the forms, which evaluation does not change, and keep their own
+// variables and macros.
+//
+// The cache holds the last CAPACITY files used (-Dparen.modules=N), keyed
+// by real path. An entry is used while the file has the same modification
+// time and size; after that, the SHA-256 of the file decides whether it is
+// compiled again. Precompiled files (see precompiled) are decoded, not
+// compiled. Two interpreters missing the same file at once both compile it.
+package org.bitbucket.ktg;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+final class modules {
+    static final int CAPACITY = Integer.getInteger("paren.modules", 64); // files kept
+
+    private static final class entry {
+        final precompiled code;
+        final byte[] hash; // of the file: code.hash is the source's
+        final FileTime modified;
+        final long size;
+        final boolean optimized;
+        entry(precompiled code, byte[] hash, FileTime modified, long size, boolean optimized) {
+            this.code = code;
+            this.hash = hash;
+            this.modified = modified;
+            this.size = size;
+            this.optimized = optimized;
+        }
+    }
+
+    // least recently used first. guarded by itself
+    private static final LinkedHashMap<Path, entry> cache = new LinkedHashMap<Path, entry>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        protected boolean removeEldestEntry(Map.Entry<Path, entry> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+
+    // the real path of file, the key of its entry
+    static Path path(String file) throws IOException {
+        return Paths.get(file).toRealPath();
+    }
+
+    // the compiled forms of file, optimized or not
+    static precompiled get(Path file, boolean optimize) throws IOException {
+        BasicFileAttributes a = Files.readAttributes(file, BasicFileAttributes.class);
+        FileTime modified = a.lastModifiedTime();
+        long size = a.size();
+        entry e;
+        synchronized (cache) {
+            e = cache.get(file);
+            if (e != null && e.modified.equals(modified) && e.size == size && e.optimized == optimize) {
+                return e.code;
+            }
+        }
+        byte[] b = Files.readAllBytes(file);
+        byte[] hash = precompiled.hash(b);
+        precompiled code;
+        if (e != null && e.optimized == optimize && Arrays.equals(e.hash, hash)) { // touched, not changed
+            code = e.code;
+        } else if (precompiled.is_precompiled(b)) {
+            code = precompiled.read(ByteBuffer.wrap(b), file.toString());
+        } else {
+            paren p;
+            try {
+                p = new paren();
+            } catch (Exception x) { // init evaluates only the standard macros
+                throw new IllegalStateException(x);
+            }
+            p.set_optimize(optimize);
+            code = precompiled.compile(p, b);
+        }
+        synchronized (cache) {
+            cache.put(file, new entry(code, hash, modified, b.length, optimize));
+        }
+        return code;
+    }
+
+    static void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+}
@@ -0,0 +1,406 @@
+// (C) 2013-2015 Kim, Taegyoon
+// Paren optimizer
+//
+// Rewrites the compiled forms of one eval_string or eval_reader before they
+// run, on both engines:
+//   (* 2 PI)                 -> 6.283185307179586   pure builtins of constants
+//   (if true A B)            -> A                   constant if and when
+//   (begin A (begin B C))    -> (begin A B C)
+//   (defn sq (x) (* x x)) .. (sq y)  ->  .. (* y y)
+// A variable is constant when no form of the batch binds it with (def),
+// (set), (++), (--), (for) or as a parameter; constants are the builtins,
+// true, false, null, E and PI. A fn is inlined when it is defined at top
+// level by (defn NAME (PARAMETER ..) BODY) with BODY one small expression of
+// pure builtins, parameters and variables, NAME is bound nowhere else in
+// the batch, and the call comes in a later form with constants or variables
+// as arguments, outside any fn or thread body: those may run after code
+// evaluated later has rebound NAME, so they keep the call. A batch that
+// uses (eval), (load) or (require) is left as it is. Code evaluated later
+// that rebinds a builtin does not change forms already optimized, nor does
+// a fn of an earlier batch, called by this one, that rebinds NAME;
+// p.set_optimize(false) or parenj -n turns the pass off.
+package org.bitbucket.ktg;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+
+import org.bitbucket.ktg.paren.builtin;
+import org.bitbucket.ktg.paren.node;
+import org.bitbucket.ktg.paren.symbol;
+
+final class optimizer {
+    static final int MAX_INLINE = 16; // nodes in the body of an inlined fn
+
+    // no side effects, and a new value or a constant as result
+    private static final EnumSet<builtin> PURE = EnumSet.of(
+        builtin.PLUS, builtin.MINUS, builtin.MUL, builtin.DIV, builtin.CARET, builtin.PERCENT, builtin.SQRT,
+        builtin.INC, builtin.DEC, builtin.FLOOR, builtin.CEIL, builtin.LN, builtin.LOG10,
+        builtin.EQ, builtin.EQEQ, builtin.NOTEQ, builtin.LT, builtin.GT, builtin.LTE, builtin.GTE,
+        builtin.ANDAND, builtin.OROR, builtin.NOT,
+        builtin.STRLEN, builtin.STRCAT, builtin.CHAR_AT, builtin.CHR,
+        builtin.INT, builtin.DOUBLE, builtin.STRING, builtin.LONG, builtin.NULLP, builtin.TYPE);
+
+    // builtins that bind the variable after them
+    private static final EnumSet<builtin> BINDING = EnumSet.of(
+        builtin.DEF, builtin.SET, builtin.FOR, builtin.PLUSPLUS, builtin.MINUSMINUS);
+
+    // builtins that run code the scan does not see
+    private static final EnumSet<builtin> DYNAMIC = EnumSet.of(builtin.EVAL, builtin.LOAD, builtin.REQUIRE);
+
+    private static final int[] CONSTANTS = {
+        symbol.ToCode("true"), symbol.ToCode("false"), symbol.ToCode("null"), symbol.ToCode("E"), symbol.ToCode("PI")};
+
+    private final paren p;
+    private final HashMap<Integer, Integer> bound = new HashMap<Integer, Integer>(); // times each variable is bound in the batch
+    private boolean dynamic; // the batch may bind variables the scan does not see
+    private final HashMap<Integer, ArrayList<node>> inline = new HashMap<Integer, ArrayList<node>>(); // (fn (PARAMETER ..) BODY) by name
+    private int deferred; // fn and thread bodies opt is in: calls there are not inlined
+
+    optimizer(paren p) {
+        this.p = p;
+    }
+
+    ArrayList<node> optimize(ArrayList<node> forms) {
+        for (node n : forms) scan(n);
+        for (builtin b : EnumSet.of(builtin.QUOTE, builtin.FN, builtin.DEF, builtin.SET, builtin.FOR,
+                builtin.PLUSPLUS, builtin.MINUSMINUS, builtin.EVAL, builtin.LOAD, builtin.REQUIRE)) {
+            if (bound.containsKey(symbol.ToCode(paren.builtin_names[b.ordinal()]))) dynamic = true;
+        }
+        if (dynamic) return forms;
+        ArrayList<node> r = new ArrayList<node>(forms.size());
+        for (node n : forms) {
+            node o = opt(n);
+            r.add(o);
+            define(o);
+        }
+        return r;
+    }
+
+    // the builtin a symbol is bound to in the globals, whatever the batch does
+    private builtin global_builtin(node n) {
+        if (n.obj instanceof builtin) return (builtin) n.obj;
+        if (!(n.obj instanceof symbol)) return null;
+        node v = p.global_env.get(((symbol) n.obj).code);
+        return v != null && v.obj instanceof builtin ? (builtin) v.obj : null;
+    }
+
+    // the builtin n stands for in every form of the batch
+    private builtin builtin_of(node n) {
+        if (n.obj instanceof symbol && bound.containsKey(((symbol) n.obj).code)) return null;
+        return global_builtin(n);
+    }
+
+    private void bind(node n) {
+        if (!(n.obj instanceof symbol)) return;
+        int code = ((symbol) n.obj).code;
+        Integer k = bound.get(code);
+        bound.put(code, k == null ? 1 : k + 1);
+    }
+
+    // counts the bindings of variables; finds (eval) and binding builtins passed as values
+    private void scan(node n) {
+        if (n.obj instanceof symbol) {
+            builtin b = global_builtin(n);
+            if (DYNAMIC.contains(b) || BINDING.contains(b)) dynamic = true;
+            return;
+        }
+        if (!(n.obj instanceof ArrayList)) return;
+        ArrayList<node> lst = n.arrayListValue();
+        if (lst.isEmpty()) return;
+        node head = lst.get(0);
+        builtin b = global_builtin(head);
+        int from = 1; // first argument that is an expression
+        if (b == null) {
+            if (!(head.obj instanceof symbol)) scan(head);
+        }
+        else if (b == builtin.QUOTE) {
+            return;
+        }
+        else if (DYNAMIC.contains(b)) {
+            dynamic = true;
+            return;
+        }
+        else if (b == builtin.FN) {
+            if (lst.size() > 1 && lst.get(1).obj instanceof ArrayList) {
+                for (node a : lst.get(1).arrayListValue()) bind(a);
+            }
+            from = 2;
+        }
+        else if (BINDING.contains(b) && lst.size() > 1 && lst.get(1).obj instanceof symbol) {
+            bind(lst.get(1));
+            from = 2;
+        }
+        else if (b == builtin.DOT || b == builtin.DOTGET || b == builtin.DOTSET) { // class and member names
+            if (lst.size() > 1 && !(lst.get(1).obj instanceof symbol)) scan(lst.get(1));
+            from = 3;
+        }
+        else if (b == builtin.NEW || b == builtin.CAST) {
+            from = 2;
+        }
+        for (int i = from; i < lst.size(); i++) scan(lst.get(i));
+    }
+
+    static boolean literal(node n) {
+        if (n.clazz != null) return false;
+        if (n.tag != node.OBJ) return true;
+        return n.obj == null || n.obj instanceof String || n.obj instanceof Boolean;
+    }
+
+    private node opt(node n) {
+        if (n.obj instanceof symbol) {
+            int code = ((symbol) n.obj).code;
+            if (bound.containsKey(code)) return n;
+            for (int c : CONSTANTS) {
+                if (c == code) {
+                    node v = p.global_env.get(code);
+                    return v == null ? n : v.clone();
+                }
+            }
+            return n;
+        }
+        if (!(n.obj instanceof ArrayList)) return n;
+        ArrayList<node> lst = n.arrayListValue();
+        if (lst.isEmpty()) return n;
+        node head = lst.get(0);
+        builtin b = builtin_of(head);
+        int len = lst.size();
+        if (b == null) {
+            if (head.obj instanceof symbol && deferred == 0) {
+                ArrayList<node> f = inline.get(((symbol) head.obj).code);
+                if (f != null) {
+                    node r = inline(f, lst);
+                    if (r != null) return r;
+                }
+            }
+            return rebuild(lst, 0, len);
+        }
+        switch (b) {
+        case QUOTE:
+            return n;
+        case FN: case THREAD: {
+            int from = b == builtin.FN ? 2 : 1;
+            if (len < from) return n;
+            ArrayList<node> r = new ArrayList<node>(lst.subList(0, from));
+            deferred++;
+            body(lst, from, r);
+            deferred--;
+            return new node(r);
+        }
+        case DEF: case SET: case PLUSPLUS: case MINUSMINUS: case NEW: case CAST:
+            return rebuild(lst, 2, len); // variable or class name, or the place (set) changes
+        case DOT: case DOTGET: case DOTSET: {
+            if (len < 3) return n;
+            node r = rebuild(lst, 3, len);
+            if (!(lst.get(1).obj instanceof symbol)) r.arrayListValue().set(1, opt(lst.get(1)));
+            return r;
+        }
+        case FOR: {
+            if (len < 5) return n;
+            ArrayList<node> r = new ArrayList<node>(len);
+            r.add(head);
+            r.add(lst.get(1));
+            for (int i = 2; i < 5; i++) r.add(opt(lst.get(i)));
+            body(lst, 5, r);
+            return new node(r);
+        }
+        case WHILE: {
+            if (len < 2) return n;
+            ArrayList<node> r = new ArrayList<node>(len);
+            r.add(head);
+            r.add(opt(lst.get(1)));
+            body(lst, 2, r);
+            return new node(r);
+        }
+        case IF: {
+            if (len < 3) return n;
+            node cond = opt(lst.get(1));
+            if (literal(cond)) {
+                if (cond.booleanValue()) return opt(lst.get(2));
+                if (len > 3) return opt(lst.get(3));
+            }
+            node r = rebuild(lst, 2, len);
+            r.arrayListValue().set(1, cond);
+            return r;
+        }
+        case WHEN: {
+            if (len < 3) return n;
+            node cond = opt(lst.get(1));
+            if (literal(cond)) {
+                if (!cond.booleanValue()) return paren.node_null;
+                if (len == 3) return opt(lst.get(2));
+                node begin = new node(symbol.intern("begin"));
+                if (builtin_of(begin) == builtin.BEGIN) {
+                    ArrayList<node> r = new ArrayList<node>(len - 1);
+                    r.add(begin);
+                    body(lst, 2, r);
+                    return r.size() == 2 ? r.get(1) : new node(r);
+                }
+            }
+            ArrayList<node> r = new ArrayList<node>(len);
+            r.add(head);
+            r.add(cond);
+            body(lst, 2, r);
+            return new node(r);
+        }
+        case BEGIN: {
+            ArrayList<node> r = new ArrayList<node>(len);
+            r.add(head);
+            body(lst, 1, r);
+            return r.size() == 2 ? r.get(1) : new node(r);
+        }
+        default: {
+            node r = rebuild(lst, 1, len);
+            return PURE.contains(b) ? fold(b, r) : r;
+        }
+        }
+    }
+
+    // lst with its elements from 'from' optimized; a symbol head is kept
+    private node rebuild(ArrayList<node> lst, int from, int to) {
+        ArrayList<node> r = new ArrayList<node>(to);
+        for (int i = 0; i < to; i++) {
+            node x = lst.get(i);
+            r.add(i >= from && !(i == 0 && x.obj instanceof symbol) ? opt(x) : x);
+        }
+        return new node(r);
+    }
+
+    // the forms of a body, with the forms of a nested (begin ..) put in its place
+    private void body(ArrayList<node> lst, int from, ArrayList<node> out) {
+        for (int i = from; i < lst.size(); i++) {
+            node x = opt(lst.get(i));
+            if (x.obj instanceof ArrayList) {
+                ArrayList<node> inner = x.arrayListValue();
+                if (inner.size() > 1 && builtin_of(inner.get(0)) == builtin.BEGIN) {
+                    out.addAll(inner.subList(1, inner.size()));
+                    continue;
+                }
+            }
+            out.add(x);
+        }
+    }
+
+    // the value of a pure builtin applied to constants, or the application
+    private node fold(builtin b, node form) {
+        ArrayList<node> lst = form.arrayListValue();
+        for (int i = 1; i < lst.size(); i++) {
+            if (!literal(lst.get(i))) return form;
+        }
+        node r;
+        try {
+            r = apply(b, lst);
+        } catch (Exception e) { // left to fail when it runs
+            return form;
+        }
+        return r != null && literal(r) ? r : form;
+    }
+
+    private node apply(builtin b, ArrayList<node> lst) throws Exception {
+        paren.environment env = p.global_env;
+        switch (b) {
+        case PLUS: return p.builtin_plus(lst, env);
+        case MINUS: return p.builtin_minus(lst, env);
+        case MUL: return p.builtin_mul(lst, env);
+        case DIV: return p.builtin_div(lst, env);
+        case CARET: return p.builtin_caret(lst, env);
+        case PERCENT: return p.builtin_percent(lst, env);
+        case SQRT: return p.builtin_sqrt(lst, env);
+        case INC: return p.builtin_inc(lst, env);
+        case DEC: return p.builtin_dec(lst, env);
+        case FLOOR: return p.builtin_floor(lst, env);
+        case CEIL: return p.builtin_ceil(lst, env);
+        case LN: return p.builtin_ln(lst, env);
+        case LOG10: return p.builtin_log10(lst, env);
+        case EQ: return p.builtin_eq(lst, env);
+        case EQEQ: return p.builtin_eqeq(lst, env);
+        case NOTEQ: return p.builtin_noteq(lst, env);
+        case LT: return p.builtin_lt(lst, env);
+        case GT: return p.builtin_gt(lst, env);
+        case LTE: return p.builtin_lte(lst, env);
+        case GTE: return p.builtin_gte(lst, env);
+        case ANDAND: return p.builtin_andand(lst, env);
+        case OROR: return p.builtin_oror(lst, env);
+        case NOT: return p.builtin_not(lst, env);
+        case STRLEN: return p.builtin_strlen(lst, env);
+        case STRCAT: return p.builtin_strcat(lst, env);
+        case CHAR_AT: return p.builtin_char_at(lst, env);
+        case CHR: return p.builtin_chr(lst, env);
+        case INT: return p.builtin_int(lst, env);
+        case DOUBLE: return p.builtin_double(lst, env);
+        case STRING: return p.builtin_string(lst, env);
+        case LONG: return p.builtin_long(lst, env);
+        case NULLP: return p.builtin_nullp(lst, env);
+        case TYPE: return p.builtin_type(lst, env);
+        default: return null;
+        }
+    }
+
+    // a top-level (def NAME (fn (PARAMETER ..) BODY)) that calls in later forms may be replaced with
+    private void define(node form) {
+        if (!(form.obj instanceof ArrayList)) return;
+        ArrayList<node> lst = form.arrayListValue();
+        if (lst.size() != 3 || builtin_of(lst.get(0)) != builtin.DEF || !(lst.get(1).obj instanceof symbol)) return;
+        int name = ((symbol) lst.get(1).obj).code;
+        node v = lst.get(2);
+        if (bound.get(name) != 1 || !(v.obj instanceof ArrayList)) return;
+        ArrayList<node> f = v.arrayListValue();
+        if (f.size() != 3 || builtin_of(f.get(0)) != builtin.FN || !(f.get(1).obj instanceof ArrayList)) return;
+        ArrayList<Integer> params = new ArrayList<Integer>();
+        for (node a : f.get(1).arrayListValue()) {
+            if (!(a.obj instanceof symbol)) return;
+            int code = ((symbol) a.obj).code;
+            if (code == paren.ELLIPSIS || params.contains(code)) return;
+            params.add(code);
+        }
+        node body = f.get(2);
+        if (!(body.obj instanceof ArrayList) || body.arrayListValue().isEmpty()) return;
+        builtin b = builtin_of(body.arrayListValue().get(0));
+        if (b == null || !PURE.contains(b)) return; // a new value, never a parameter's own node
+        int[] size = {0};
+        if (pure(body, params, size)) inline.put(name, f);
+    }
+
+    private boolean pure(node n, ArrayList<Integer> params, int[] size) {
+        if (++size[0] > MAX_INLINE) return false;
+        if (n.obj instanceof symbol) { // a parameter, or a variable no parameter of the batch hides
+            int code = ((symbol) n.obj).code;
+            return params.contains(code) || !bound.containsKey(code);
+        }
+        if (!(n.obj instanceof ArrayList)) return literal(n);
+        ArrayList<node> lst = n.arrayListValue();
+        if (lst.isEmpty()) return false;
+        builtin b = builtin_of(lst.get(0));
+        if (b == null || !(PURE.contains(b) || b == builtin.IF && lst.size() == 4)) return false;
+        for (int i = 1; i < lst.size(); i++) {
+            if (!pure(lst.get(i), params, size)) return false;
+        }
+        return true;
+    }
+
+    // the body of f with the arguments of the call for its parameters, optimized again;
+    // null if the call does not fit
+    private node inline(ArrayList<node> f, ArrayList<node> call) {
+        ArrayList<node> params = f.get(1).arrayListValue();
+        if (call.size() != params.size() + 1) return null;
+        HashMap<Integer, node> args = new HashMap<Integer, node>();
+        for (int i = 0; i < params.size(); i++) {
+            node a = opt(call.get(i + 1));
+            if (!(literal(a) || a.obj instanceof symbol)) return null; // evaluated once, in order
+            args.put(((symbol) params.get(i).obj).code, a);
+        }
+        return opt(substitute(f.get(2), args));
+    }
+
+    private static node substitute(node n, HashMap<Integer, node> args) {
+        if (n.obj instanceof symbol) {
+            node a = args.get(((symbol) n.obj).code);
+            return a == null ? n : a;
+        }
+        if (!(n.obj instanceof ArrayList)) return n;
+        ArrayList<node> lst = n.arrayListValue();
+        ArrayList<node> r = new ArrayList<node>(lst.size());
+        r.add(lst.get(0)); // a builtin
+        for (int i = 1; i < lst.size(); i++) r.add(substitute(lst.get(i), args));
+        return new node(r);
+    }
+}
@@ -0,0 +1,165 @@
+// (C) 2013-2015 Kim, Taegyoon
+// Paren parallel collection functions
+//
+// (pmap), (pfilter) and (preduce) split a list into ranges and run FUNC on
+// them in the common ForkJoinPool. Results keep the order of the list.
+// FUNC should not change shared variables. Lists shorter than SEQUENTIAL are
+// done on the calling thread. The pool's size is set with
+// -Djava.util.concurrent.ForkJoinPool.common.parallelism=N
+package org.bitbucket.ktg;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+import org.bitbucket.ktg.paren.node;
+
+final class parallel {
+    private parallel() {}
+
+    static final int SEQUENTIAL = 512; // shorter lists are not split
+    static final int MIN_RANGE = 16; // elements one task takes at least
+
+    interface fn2 {
+        node call(node a, node b) throws Exception;
+    }
+
+    // carries FUNC's exception out of the pool
+    private static final class failure extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        failure(Exception e) {
+            super(e);
+        }
+    }
+
+    private static Exception cause(failure e) {
+        Throwable t = e;
+        while (t instanceof failure) t = t.getCause();
+        return t instanceof Exception ? (Exception) t : e;
+    }
+
+    // elements per task: about eight tasks per worker
+    private static int range(int n) {
+        return Math.max(MIN_RANGE, n / (8 * ForkJoinPool.getCommonPoolParallelism()));
+    }
+
+    static pvector map(final lseq.fn1 f, List<node> lst) throws Exception {
+        final node[] a = lst.toArray(new node[0]);
+        final node[] r = new node[a.length];
+        if (a.length < SEQUENTIAL) {
+            for (int i = 0; i < a.length; i++) r[i] = f.call(a[i]);
+        }
+        else {
+            final int grain = range(a.length);
+            final class task extends RecursiveAction {
+                private static final long serialVersionUID = 1L;
+                final int from, to;
+                task(int from, int to) {
+                    this.from = from;
+                    this.to = to;
+                }
+                protected void compute() {
+                    if (to - from <= grain) {
+                        try {
+                            for (int i = from; i < to; i++) r[i] = f.call(a[i]);
+                        } catch (Exception e) {
+                            throw new failure(e);
+                        }
+                        return;
+                    }
+                    int mid = (from + to) >>> 1;
+                    invokeAll(new task(from, mid), new task(mid, to));
+                }
+            }
+            try {
+                ForkJoinPool.commonPool().invoke(new task(0, a.length));
+            } catch (failure e) {
+                throw cause(e);
+            }
+        }
+        pvector.builder b = new pvector.builder();
+        for (node x : r) b.add(x);
+        return b.build();
+    }
+
+    static pvector filter(final lseq.fn1 f, List<node> lst) throws Exception {
+        final node[] a = lst.toArray(new node[0]);
+        final boolean[] keep = new boolean[a.length];
+        if (a.length < SEQUENTIAL) {
+            for (int i = 0; i < a.length; i++) keep[i] = f.call(a[i]).booleanValue();
+        }
+        else {
+            final int grain = range(a.length);
+            final class task extends RecursiveAction {
+                private static final long serialVersionUID = 1L;
+                final int from, to;
+                task(int from, int to) {
+                    this.from = from;
+                    this.to = to;
+                }
+                protected void compute() {
+                    if (to - from <= grain) {
+                        try {
+                            for (int i = from; i < to; i++) keep[i] = f.call(a[i]).booleanValue();
+                        } catch (Exception e) {
+                            throw new failure(e);
+                        }
+                        return;
+                    }
+                    int mid = (from + to) >>> 1;
+                    invokeAll(new task(from, mid), new task(mid, to));
+                }
+            }
+            try {
+                ForkJoinPool.commonPool().invoke(new task(0, a.length));
+            } catch (failure e) {
+                throw cause(e);
+            }
+        }
+        pvector.builder b = new pvector.builder();
+        for (int i = 0; i < a.length; i++) {
+            if (keep[i]) b.add(a[i]);
+        }
+        return b.build();
+    }
+
+    // f must be associative: ranges are folded on their own, then combined left to right
+    static node reduce(final fn2 f, List<node> lst) throws Exception {
+        final node[] a = lst.toArray(new node[0]);
+        if (a.length < SEQUENTIAL) return fold(f, a, 0, a.length);
+        final int grain = range(a.length);
+        final class task extends RecursiveTask<node> {
+            private static final long serialVersionUID = 1L;
+            final int from, to;
+            task(int from, int to) {
+                this.from = from;
+                this.to = to;
+            }
+            protected node compute() {
+                try {
+                    if (to - from <= grain) return fold(f, a, from, to);
+                    int mid = (from + to) >>> 1;
+                    task right = new task(mid, to);
+                    right.fork();
+                    node left = new task(from, mid).compute();
+                    return f.call(left, right.join());
+                } catch (failure e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new failure(e);
+                }
+            }
+        }
+        try {
+            return ForkJoinPool.commonPool().invoke(new task(0, a.length));
+        } catch (failure e) {
+            throw cause(e);
+        }
+    }
+
+    private static node fold(fn2 f, node[] a, int from, int to) throws Exception {
+        node acc = a[from];
+        for (int i = from + 1; i < to; i++) acc = f.call(acc, a[i]);
+        return acc;
+    }
+}
@@ -21,75 +21,417 @@ import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Method;
+import java.io.Reader;
+import java.lang.invoke.MethodHandle;
 import java.util.Collection;
+import java.nio.file.Path;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Set;
 import java.util.TreeSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.ArrayList;
 import java.lang.Math;
 
 public class paren {
 	public static final String VERSION = "1.12.1";
+
+    // execution engines
+    public enum engine {
+        TREE, // walks the compiled forms on every evaluation
+        CLOSURE // compiles each form once into executable objects (see compiler)
+    }
+    final engine mode;
+    final compiler closure_compiler;
+
     public paren() throws Exception {
+        this(engine.TREE);
+    }
+
+    public paren(engine mode) throws Exception {
+        this.mode = mode;
+        this.closure_compiler = mode == engine.CLOSURE ? new compiler(this) : null;
         init();
     }
 
+    // globals and macros forks start from
+    private static final class snapshot {
+        final ConcurrentHashMap<Integer, node> globals;
+        final ArrayList<Integer> deep; // globals holding closures or atoms: each fork copies them again
+        final HashMap<Integer, macro> macros;
+        final Set<Path> loaded;
+        snapshot(ConcurrentHashMap<Integer, node> globals, ArrayList<Integer> deep, HashMap<Integer, macro> macros, Set<Path> loaded) {
+            this.globals = globals;
+            this.deep = deep;
+            this.macros = macros;
+            this.loaded = loaded;
+        }
+    }
+    private snapshot forked_from; // taken at the first fork
+
+    // A new interpreter with this one's globals, macros, class loader and
+    // executor, without running init(). The first fork takes a snapshot of this
+    // interpreter; later forks start from the same snapshot. Forks share the
+    // snapshot's variables until they change them, and do not see each other's
+    // changes or this interpreter's. Closures and atoms are copied for each
+    // fork (see copier).
+    public paren fork() {
+        snapshot s;
+        synchronized (this) {
+            s = forked_from;
+            if (s == null) {
+                ConcurrentHashMap<Integer, node> globals = new ConcurrentHashMap<Integer, node>();
+                copier c = new copier(new environment(), null);
+                for (Map.Entry<Integer, node> e : global_env.env.entrySet()) {
+                    globals.put(e.getKey(), c.copy(e.getValue()));
+                }
+                if (closure_compiler != null) closure_compiler.globals_into(globals, c);
+                ArrayList<Integer> deep = new ArrayList<Integer>();
+                for (Map.Entry<Integer, node> e : globals.entrySet()) {
+                    if (copier.deep(e.getValue())) deep.add(e.getKey());
+                }
+                forked_from = s = new snapshot(globals, deep, new HashMap<Integer, macro>(macros), new HashSet<Path>(loaded));
+            }
+        }
+        return new paren(this, s);
+    }
+
+    private paren(paren template, snapshot s) {
+        this.mode = template.mode;
+        this.global_env = new environment(s.globals);
+        this.macros = new HashMap<Integer, macro>(s.macros);
+        this.loaded.addAll(s.loaded);
+        this.class_loader = template.class_loader;
+        this.classes.putAll(template.classes);
+        this.executor = template.executor;
+        this.prof = template.prof;
+        this.optimize = template.optimize;
+        this.use_jit = template.use_jit;
+        this.closure_compiler = mode == engine.CLOSURE ? new compiler(this) : null;
+        if (closure_compiler == null) { // the closure engine copies them as it binds its cells
+            copier c = new copier(global_env, null);
+            for (int code : s.deep) global_env.env.put(code, c.copy(s.globals.get(code)));
+        }
+    }
+
+    // Copies of a template's values for a fork, so that changing them in place
+    // reaches neither the template nor other forks: closures get copies of the
+    // environments or frames they captured, atoms new cells, and lists holding
+    // either new lists (vectors). Environments end in globals, which become
+    // root. A value reached twice is copied once. comp, if not null, compiles
+    // the copied fns again, so that their globals are its cells.
+    static final class copier {
+        private final environment root;
+        private final compiler comp;
+        private final IdentityHashMap<Object, Object> copies = new IdentityHashMap<Object, Object>();
+        copier(environment root, compiler comp) {
+            this.root = root;
+            this.comp = comp;
+        }
+
+        // whether v needs copying for each fork
+        static boolean deep(node v) {
+            Object o = v.obj;
+            if (o instanceof fn) return ((fn) o).outer_env != null || ((fn) o).outer_frame != null;
+            if (o instanceof atom) return true;
+            if (o instanceof pvector || o instanceof plist) {
+                for (node n : v.listValue()) {
+                    if (deep(n)) return true;
+                }
+            }
+            return false;
+        }
+
+        node copy(node v) {
+            Object o = v.obj;
+            node r = v.clone();
+            if (o instanceof fn || o instanceof atom || o instanceof pvector || o instanceof plist) {
+                Object c = copies.get(o);
+                if (c == null) c = copy_obj(o);
+                r.obj = c;
+            }
+            return r;
+        }
+
+        @SuppressWarnings("unchecked")
+        private Object copy_obj(Object o) {
+            if (o instanceof fn) {
+                fn f = (fn) o;
+                if (f.outer_env == null && f.outer_frame == null && (f.code == null || comp == null)) return f;
+                fn g = new fn(f.def, null);
+                g.name = f.name;
+                copies.put(f, g); // before its environment, which may hold it
+                if (f.code == null) {
+                    g.outer_env = env(f.outer_env);
+                } else {
+                    g.outer_frame = frame(f.outer_frame);
+                    g.code = comp == null ? f.code : lambda(f.code, f.def);
+                }
+                return g;
+            }
+            if (o instanceof atom) {
+                atom a = new atom(node_null);
+                copies.put(o, a);
+                a.reset(copy(((atom) o).deref()));
+                return a;
+            }
+            List<node> lst = (List<node>) o; // lists cannot hold themselves
+            ArrayList<node> r = new ArrayList<node>(lst.size());
+            boolean changed = false;
+            for (node n : lst) {
+                node m = copy(n);
+                changed |= m.obj != n.obj;
+                r.add(m);
+            }
+            Object c = changed ? pvector.of(r) : o;
+            copies.put(o, c);
+            return c;
+        }
+
+        private environment env(environment e) {
+            if (e.outer == null) return root;
+            environment c = (environment) copies.get(e);
+            if (c != null) return c;
+            c = new environment(env(e.outer));
+            copies.put(e, c);
+            for (Map.Entry<Integer, node> x : e.env.entrySet()) {
+                c.env.put(x.getKey(), copy(x.getValue()));
+            }
+            return c;
+        }
+
+        private compiler.frame frame(compiler.frame f) {
+            if (f == null) return null;
+            compiler.frame c = (compiler.frame) copies.get(f);
+            if (c != null) return c;
+            c = new compiler.frame(f.slots.length, frame(f.outer));
+            copies.put(f, c);
+            for (int i = 0; i < f.slots.length; i++) {
+                if (f.slots[i] != null) c.slots[i] = copy(f.slots[i]);
+            }
+            return c;
+        }
+
+        // fns made by one (fn ..) share their code
+        private compiler.lambda lambda(compiler.lambda l, ArrayList<node> def) {
+            compiler.lambda c = (compiler.lambda) copies.get(l);
+            if (c != null) return c;
+            c = comp.compile_lambda(def, l.sc);
+            c.name = l.name;
+            copies.put(l, c);
+            return c;
+        }
+    }
+
+    // classes named by (.), (.get), (.set), (new) and (cast)
+    private volatile ClassLoader class_loader = paren.class.getClassLoader();
+    private final ConcurrentHashMap<String, Class<?>> classes = new ConcurrentHashMap<String, Class<?>>();
+
+    public ClassLoader get_class_loader() {
+        return class_loader;
+    }
+
+    // loader for class names from now on. code the closure engine has already
+    // compiled keeps the classes it resolved
+    public void set_class_loader(ClassLoader loader) {
+        class_loader = loader;
+        classes.clear();
+    }
+
+    // runs (thread EXPR ..)
+    private volatile Executor executor = tasks.DEFAULT;
+
+    public Executor get_executor() {
+        return executor;
+    }
+
+    // executor for threads started from now on
+    public void set_executor(Executor executor) {
+        this.executor = executor;
+    }
+
+    // counts calls while set. a plain field, read on every call: set it before running code
+    profiler prof;
+
+    public profiler get_profiler() {
+        return prof;
+    }
+
+    // the closure engine counts the builtins of code it compiles from now on
+    public void set_profiler(profiler prof) {
+        this.prof = prof;
+    }
+
+    // budget of the evaluation running, see eval_string(String, budget).
+    // volatile: threads of other evaluations see it set and cleared
+    volatile budget limits;
+
+    // runs the optimizer (see optimizer) on code read from now on
+    private volatile boolean optimize = true;
+
+    public boolean get_optimize() {
+        return optimize;
+    }
+
+    public void set_optimize(boolean on) {
+        optimize = on;
+    }
+
+    // closure engine: compiles hot fns read from now on to JVM classes (see jit)
+    private volatile boolean use_jit = true;
+
+    public boolean get_jit() {
+        return use_jit;
+    }
+
+    public void set_jit(boolean on) {
+        use_jit = on;
+    }
+
+    Class<?> class_for_name(String name) throws ClassNotFoundException {
+        Class<?> c = classes.get(name);
+        if (c == null) {
+            c = Class.forName(name, true, class_loader);
+            classes.put(name, c);
+        }
+        return c;
+    }
+
     public static class node implements Cloneable {
-        Object value;
+        // int, long and double values are kept unboxed in bits (double as raw
+        // bits); obj holds every other value and, lazily, the boxed number.
+        static final byte OBJ = 0, INT = 1, LONG = 2, DOUBLE = 3;
+        byte tag;
+        long bits;
+        Object obj;
         Class<?> clazz = null; // type hint
 
         node() {}
+        node(int value) {
+            tag = INT; bits = value;
+        }
+        node(long value) {
+            tag = LONG; bits = value;
+        }
+        node(double value) {
+            tag = DOUBLE; bits = Double.doubleToRawLongBits(value);
+        }
         node(Object value) {
-    		this.value = value;
+            set(value);
         }
         protected node clone() {
-        	node r = new node(this.value);
+            node r = new node();
+            r.tag = tag; r.bits = bits; r.obj = obj;
         	r.clazz = this.clazz;
         	return r;
         }
+        Object value() {
+            if (obj == null && tag != OBJ) {
+                switch (tag) {
+                case INT: obj = (int) bits; break;
+                case LONG: obj = bits; break;
+                default: obj = Double.longBitsToDouble(bits);
+                }
+            }
+            return obj;
+        }
+        void set(int value) {
+            tag = INT; bits = value; obj = null;
+        }
+        void set(long value) {
+            tag = LONG; bits = value; obj = null;
+        }
+        void set(double value) {
+            tag = DOUBLE; bits = Double.doubleToRawLongBits(value); obj = null;
+        }
+        void set(Object value) {
+            obj = value;
+            if (value instanceof Integer) {
+                tag = INT; bits = (Integer) value;
+            } else if (value instanceof Long) {
+                tag = LONG; bits = (Long) value;
+            } else if (value instanceof Double) {
+                tag = DOUBLE; bits = Double.doubleToRawLongBits((Double) value);
+            } else {
+                tag = OBJ; bits = 0;
+            }
+        }
+        void set_value(node from) { // copies the value, not the type hint
+            tag = from.tag; bits = from.bits; obj = from.obj;
+        }
         int intValue() {
-        	if (value instanceof Number) {
-        		return ((Number)value).intValue();
+            switch (tag) {
+            case INT: case LONG: return (int) bits;
+            case DOUBLE: return (int) Double.longBitsToDouble(bits);
+            }
+            if (obj instanceof Number) {
+                return ((Number)obj).intValue();
         	} else {
         		return Integer.parseInt(stringValue());
         	}
         }
         double doubleValue() {
-        	if (value instanceof Number) {
-        		return ((Number)value).doubleValue();
+            switch (tag) {
+            case INT: case LONG: return bits;
+            case DOUBLE: return Double.longBitsToDouble(bits);
+            }
+            if (obj instanceof Number) {
+                return ((Number)obj).doubleValue();
         	} else {
         		return Double.parseDouble(stringValue());
         	}
         }
         long longValue() {
-        	if (value instanceof Number) {
-        		return ((Number)value).longValue();
+            switch (tag) {
+            case INT: case LONG: return bits;
+            case DOUBLE: return (long) Double.longBitsToDouble(bits);
+            }
+            if (obj instanceof Number) {
+                return ((Number)obj).longValue();
         	} else {
         		return Long.parseLong(stringValue());
         	}
         }
         boolean booleanValue() { // null is false, other type is true.
-        	if (value == null) return false;
-        	if (value instanceof Boolean)
-        		return (Boolean) value;
+            if (tag != OBJ) return true;
+            if (obj == null) return false;
+            if (obj instanceof Boolean)
+                return (Boolean) obj;
         	else
         		return true;
         }
         String stringValue() {
-            if (value == null) return "";
-            return value.toString();
+            switch (tag) {
+            case INT: return Integer.toString((int) bits);
+            case LONG: return Long.toString(bits);
+            case DOUBLE: return Double.toString(Double.longBitsToDouble(bits));
+            }
+            if (obj == null) return "";
+            return obj.toString();
         }
         @SuppressWarnings("unchecked")
         ArrayList<node> arrayListValue() {
-            return (ArrayList<node>)value;
+            return (ArrayList<node>)obj;
+        }
+        @SuppressWarnings("unchecked")
+        List<node> listValue() {
+            return (List<node>)obj;
         }
 
         String type() {
-            if (value == null)
+            switch (tag) {
+            case INT: return "java.lang.Integer";
+            case LONG: return "java.lang.Long";
+            case DOUBLE: return "java.lang.Double";
+            }
+            if (obj == null)
                 return "null";
             else
-                return value.getClass().getName();
+                return obj.getClass().getName();
         }
 
         String str_with_type() {
@@ -108,35 +450,64 @@ public class paren {
     static final node node_null = new node();
 
     static class symbol {
-		public static HashMap<String, Integer> symcode = new HashMap<String, Integer>();
-		public static ArrayList<String> symname = new ArrayList<String>();
-		public int code;
-		public static int ToCode(String name) {
-			Integer r = symcode.get(name);
-			if (r == null) {
-				r = symcode.size();
-				symcode.put(name, r);
-				symname.add(name);
+		// interned symbols. lookups of known names take no lock
+		private static final ConcurrentHashMap<String, symbol> table = new ConcurrentHashMap<String, symbol>();
+		private static volatile symbol[] by_code = new symbol[256];
+		private static int count = 0; // guarded by table
+		public final int code;
+		public final String name;
+
+		private symbol(String name, int code) {
+			this.name = name;
+			this.code = code;
+		}
+
+		// the canonical symbol for name
+		public static symbol intern(String name) {
+			symbol r = table.get(name);
+			if (r != null) return r;
+			synchronized (table) {
+				r = table.get(name);
+				if (r == null) {
+					r = new symbol(name, count);
+					symbol[] a = by_code;
+					if (count == a.length) a = java.util.Arrays.copyOf(a, count * 2);
+					a[count++] = r;
+					by_code = a; // publishes r before it is reachable from table
+					table.put(name, r);
+				}
+				return r;
 			}
-			return r;
 		}
 
-		public symbol(String name) {
-			code = ToCode(name);
+		public static int ToCode(String name) {
+			return intern(name).code;
+		}
+
+		public static String name(int code) {
+			return by_code[code].name;
 		}
 
 		public String toString() {
-			return symname.get(code);
+			return name;
 		}
     }
 
     static class fn { // anonymous function
         ArrayList<node> def; // definition
-        environment outer_env;
+        environment outer_env; // null at top level: the globals of the interpreter calling it
+        compiler.lambda code; // compiled body, closure engine only
+        compiler.frame outer_frame;
+        String name; // variable first bound to it, for the profiler
         fn(ArrayList<node> def, environment outer_env) {
             this.def = def;
             this.outer_env = outer_env;
         }
+        fn(ArrayList<node> def, compiler.frame outer_frame, compiler.lambda code) {
+            this.def = def;
+            this.outer_frame = outer_frame;
+            this.code = code;
+        }
         public String toString() {
             return def.toString();
         }
@@ -144,10 +515,18 @@ public class paren {
 
     static class environment {
         //HashMap<String, node> env = new HashMap<String, node>();
-    	HashMap<Integer, node> env = new HashMap<Integer, node>();
+        // threads share environments, so a concurrent map. reads take no lock
+    	ConcurrentHashMap<Integer, node> env = new ConcurrentHashMap<Integer, node>();
         environment outer;
-        environment() {this.outer = null;}
-        environment(environment outer) {this.outer = outer;}
+        // a fork's globals: variables still the snapshot's nodes are copied before they change in place
+        final Map<Integer, node> shared;
+        environment() {this.outer = null; this.shared = null;}
+        environment(environment outer) {this.outer = outer; this.shared = null;}
+        environment(ConcurrentHashMap<Integer, node> snapshot) {
+            this.env = new ConcurrentHashMap<Integer, node>(snapshot);
+            this.outer = null;
+            this.shared = snapshot;
+        }
         node get(int code) {
             node found = env.get(code);
             if (found != null) {
@@ -168,11 +547,28 @@ public class paren {
         	env.put(code, v2);
         	return v2;
         }
+
+        // the variable, to be changed in place
+        node get_own(int code) {
+            node found = env.get(code);
+            if (found == null) return outer == null ? null : outer.get_own(code);
+            if (shared != null && shared.get(code) == found) {
+                node copy = found.clone();
+                if (!env.replace(code, found, copy)) copy = env.get(code);
+                return copy;
+            }
+            return found;
+        }
+
+        // globals not yet changed by a fork are the snapshot's nodes
+        boolean is_shared(int code, node n) {
+            return shared != null && shared.get(code) == n;
+        }
     }
 
     private static class tokenizer {
         private ArrayList<String> ret = new ArrayList<String>();
-        private String acc = ""; // accumulator
+        private StringBuilder acc = new StringBuilder(); // accumulator
         private String s;
         public int unclosed = 0;
 
@@ -181,7 +577,7 @@ public class paren {
         }
 
         private void emit() {
-            if (acc.length() > 0) {ret.add(acc); acc = "";}
+            if (acc.length() > 0) {ret.add(acc.toString()); acc.setLength(0);}
         }
 
         public ArrayList<String> tokenize() {
@@ -198,7 +594,7 @@ public class paren {
                 else if (c == '"') { // beginning of string
                 	unclosed++;
                     emit();
-                    acc += '"';
+                    acc.append('"');
                     pos++;
                     while (pos <= last) {
                         if (s.charAt(pos) == '"') {unclosed--; break;}
@@ -207,11 +603,11 @@ public class paren {
                             if (next == 'r') next = '\r';
                             else if (next == 'n') next = '\n';
                             else if (next == 't') next = '\t';
-                            acc += next;
+                            acc.append(next);
                             pos += 2;
                         }
                         else {
-                            acc += s.charAt(pos);
+                            acc.append(s.charAt(pos));
                             pos++;
                         }
                     }
@@ -220,17 +616,17 @@ public class paren {
                 else if (c == '(') {
                 	unclosed++;
                     emit();
-                    acc += c;
+                    acc.append(c);
                     emit();
                 }
                 else if (c == ')') {
                 	unclosed--;
                     emit();
-                    acc += c;
+                    acc.append(c);
                     emit();
                 }
                 else {
-                    acc += c;
+                    acc.append(c);
                 }
             }
             emit();
@@ -242,48 +638,123 @@ public class paren {
         return new tokenizer(s).tokenize();
     }
 
-    private static class parser {
-        private int pos = 0;
-        private ArrayList<String> tokens;
-        public parser(ArrayList<String> tokens) {
-            this.tokens = tokens;
+    // reads forms straight from characters, in one pass
+    private static class reader {
+        private final Reader in; // null when reading from seq
+        private final CharSequence seq;
+        private final char[] buf = new char[8192];
+        private int pos = 0, lim = 0, seq_pos = 0;
+        private final StringBuilder acc = new StringBuilder(); // accumulator
+
+        public reader(Reader in) {
+            this.in = in;
+            this.seq = null;
         }
-        public ArrayList<node> parse() {
-            ArrayList<node> ret = new ArrayList<node>();
-            int last = tokens.size() - 1;
-            for (;pos <= last; pos++) {
-                String tok = tokens.get(pos);
-                if (tok.charAt(0) == '"') { // double-quoted string
-                    ret.add(new node(tok.substring(1)));
+
+        public reader(CharSequence seq) {
+            this.in = null;
+            this.seq = seq;
+        }
+
+        // next character, or -1 at the end
+        private int next() throws IOException {
+            if (pos == lim) {
+                pos = 0;
+                if (in != null) {
+                    lim = Math.max(in.read(buf, 0, buf.length), 0);
+                } else {
+                    lim = Math.min(buf.length, seq.length() - seq_pos);
+                    if (seq instanceof String) {
+                        ((String) seq).getChars(seq_pos, seq_pos + lim, buf, 0);
+                    } else {
+                        for (int i = 0; i < lim; i++) buf[i] = seq.charAt(seq_pos + i);
+                    }
+                    seq_pos += lim;
                 }
-                else if (tok.equals("(")) { // list
-                    pos++;
-                    ret.add(new node(parse()));
+                if (lim == 0) return -1;
+            }
+            return buf[pos++];
+        }
+
+        private void emit(ArrayList<node> ret) {
+            if (acc.length() > 0) {
+                ret.add(atom(acc.toString()));
+                acc.setLength(0);
+            }
+        }
+
+        // forms up to the closing parenthesis or the end
+        public ArrayList<node> parse() throws IOException {
+            ArrayList<node> ret = new ArrayList<node>();
+            int c;
+            while ((c = next()) != -1) {
+                if (c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+                    emit(ret);
                 }
-                else if (tok.equals(")")) { // end of list
-                    break;
+                else if (c == ';' || c == '#') { // end-of-line comment
+                    emit(ret);
+                    do c = next(); while (c != -1 && c != '\n');
                 }
-                else if (Character.isDigit(tok.charAt(0)) || tok.charAt(0) == '-' && tok.length() >= 2 && Character.isDigit(tok.charAt(1))) { // number
-                    if (tok.indexOf('.') != -1 || tok.indexOf('e') != -1) { // double
-                        ret.add(new node(Double.parseDouble(tok)));
-                    }
-                    else if (tok.endsWith("L") || tok.endsWith("l")) { // long
-                    	ret.add(new node(Long.parseLong(tok.substring(0, tok.length() - 1))));
-                    }
-                    else {
-                        ret.add(new node(Integer.parseInt(tok)));
+                else if (c == '"') { // double-quoted string
+                    emit(ret);
+                    while ((c = next()) != -1 && c != '"') {
+                        if (c == '\\') { // escape
+                            c = next();
+                            if (c == -1) break;
+                            if (c == 'r') c = '\r';
+                            else if (c == 'n') c = '\n';
+                            else if (c == 't') c = '\t';
+                        }
+                        acc.append((char) c);
                     }
+                    ret.add(new node(acc.toString()));
+                    acc.setLength(0);
+                }
+                else if (c == '(') { // list
+                    emit(ret);
+                    ret.add(new node(parse()));
+                }
+                else if (c == ')') { // end of list
+                    emit(ret);
+                    return ret;
                 }
-                else { // symbol
-                    ret.add(new node(new symbol(tok)));
+                else {
+                    acc.append((char) c);
                 }
             }
+            emit(ret);
             return ret;
         }
     }
 
+    // number or symbol
+    static node atom(String tok) {
+        if (Character.isDigit(tok.charAt(0)) || tok.charAt(0) == '-' && tok.length() >= 2 && Character.isDigit(tok.charAt(1))) { // number
+            if (tok.indexOf('.') != -1 || tok.indexOf('e') != -1) { // double
+                return new node(Double.parseDouble(tok));
+            }
+            else if (tok.endsWith("L") || tok.endsWith("l")) { // long
+                return new node(Long.parseLong(tok.substring(0, tok.length() - 1)));
+            }
+            else {
+                return new node(Integer.parseInt(tok));
+            }
+        }
+        else { // symbol
+            return new node(symbol.intern(tok));
+        }
+    }
+
     ArrayList<node> parse(String s) {
-        return new parser(tokenize(s)).parse();
+        try {
+            return new reader(s).parse();
+        } catch (IOException e) { // not thrown by a CharSequence
+            throw new java.io.UncheckedIOException(e);
+        }
+    }
+
+    ArrayList<node> parse(Reader in) throws IOException {
+        return new reader(in).parse();
     }
 
     enum builtin {
@@ -292,12 +763,23 @@ public class paren {
         IF, WHEN, FOR, WHILE,
         STRLEN, STRCAT, CHAR_AT, CHR,
         INT, DOUBLE, STRING, READ_STRING, TYPE, SET,
-        EVAL, QUOTE, FN, LIST, APPLY, FOLD, MAP, FILTER, RANGE, NTH, LENGTH, BEGIN, DOT, DOTGET, DOTSET, NEW,
-        PR, PRN, EXIT, SYSTEM, CONS, LONG, NULLP, CAST, DEFMACRO, READ_LINE, SLURP, SPIT, THREAD, DEF, BREAK
+        EVAL, QUOTE, FN, LIST, APPLY, FOLD, MAP, FILTER, RANGE, TAKE, DROP, PMAP, PFILTER, PREDUCE, NTH, LENGTH, BEGIN, DOT, DOTGET, DOTSET, NEW,
+        PR, PRN, EXIT, SYSTEM, CONS, LONG, NULLP, CAST, DEFMACRO, READ_LINE, SLURP, SPIT, THREAD, DEREF, ALL, ANY, ATOM, SWAP, COMPARE_AND_SET, DEF, BREAK, LOAD, REQUIRE
     }
 
     environment global_env = new environment(); // variables. compile-time
 
+    static final String[] builtin_names = new String[builtin.values().length]; // symbol of each builtin, for the profiler
+
+    // names an unnamed fn after the variable it is bound to
+    static void name_fn(node v, int code) {
+        if (v.obj instanceof fn) {
+            fn f = (fn) v.obj;
+            if (f.name == null) f.name = symbol.name(code);
+            if (f.code != null && f.code.name == null) f.code.name = f.name;
+        }
+    }
+
     void print_collection(Collection<String> coll) {
         int i = 0;
         for (String key : new TreeSet<String>(coll)) {
@@ -313,14 +795,18 @@ public class paren {
         System.out.println("Predefined Symbols:");
         ArrayList<String> r = new ArrayList<String>(global_env.env.keySet().size());
         for (int x : global_env.env.keySet()) {
-        	r.add(symbol.symname.get(x));
+        	r.add(symbol.name(x));
         }
         for (String x : new TreeSet<String>(r)) {
         	System.out.print(" " + x);
         }
         System.out.println();
         System.out.println("Macros:");
-        print_collection(macros.keySet());
+        ArrayList<String> m = new ArrayList<String>(macros.size());
+        for (int x : macros.keySet()) {
+            m.add(symbol.name(x));
+        }
+        print_collection(m);
     }
 
     void init() throws Exception {
@@ -378,6 +864,11 @@ public class paren {
         global_env.env.put(symbol.ToCode("map"), new node(builtin.MAP));
         global_env.env.put(symbol.ToCode("filter"), new node(builtin.FILTER));
         global_env.env.put(symbol.ToCode("range"), new node(builtin.RANGE));
+        global_env.env.put(symbol.ToCode("take"), new node(builtin.TAKE));
+        global_env.env.put(symbol.ToCode("drop"), new node(builtin.DROP));
+        global_env.env.put(symbol.ToCode("pmap"), new node(builtin.PMAP));
+        global_env.env.put(symbol.ToCode("pfilter"), new node(builtin.PFILTER));
+        global_env.env.put(symbol.ToCode("preduce"), new node(builtin.PREDUCE));
         global_env.env.put(symbol.ToCode("nth"), new node(builtin.NTH));
         global_env.env.put(symbol.ToCode("length"), new node(builtin.LENGTH));
         global_env.env.put(symbol.ToCode("begin"), new node(builtin.BEGIN));
@@ -399,940 +890,1411 @@ public class paren {
         global_env.env.put(symbol.ToCode("slurp"), new node(builtin.SLURP));
         global_env.env.put(symbol.ToCode("spit"), new node(builtin.SPIT));
         global_env.env.put(symbol.ToCode("thread"), new node(builtin.THREAD));
+        global_env.env.put(symbol.ToCode("deref"), new node(builtin.DEREF));
+        global_env.env.put(symbol.ToCode("all"), new node(builtin.ALL));
+        global_env.env.put(symbol.ToCode("any"), new node(builtin.ANY));
+        global_env.env.put(symbol.ToCode("atom"), new node(builtin.ATOM));
+        global_env.env.put(symbol.ToCode("swap!"), new node(builtin.SWAP));
+        global_env.env.put(symbol.ToCode("compare-and-set!"), new node(builtin.COMPARE_AND_SET));
         global_env.env.put(symbol.ToCode("def"), new node(builtin.DEF));
         global_env.env.put(symbol.ToCode("break"), new node(builtin.BREAK));
+        global_env.env.put(symbol.ToCode("load"), new node(builtin.LOAD));
+        global_env.env.put(symbol.ToCode("require"), new node(builtin.REQUIRE));
+        for (Map.Entry<Integer, node> e : global_env.env.entrySet()) {
+            if (e.getValue().obj instanceof builtin) builtin_names[((builtin) e.getValue().obj).ordinal()] = symbol.name(e.getKey());
+        }
         eval_string("(defmacro setfn (name ...) (set name (fn ...)))");
         eval_string("(defmacro defn (name ...) (def name (fn ...)))");
 		eval_string("(defmacro join (t) (. t join))");
     }
 
-    HashMap<String, node[]> macros = new HashMap<>();
+    HashMap<Integer, macro> macros = new HashMap<>(); // by symbol code
+    ArrayList<node> defined_macros; // (defmacro ..) forms compile meets go here while set, see precompiled
+
+    static final int DEFMACRO_CODE = symbol.ToCode("defmacro");
+    static final int ELLIPSIS = symbol.ToCode("...");
 
-	node apply_macro(node body, HashMap<String, node> vars) {
-		if (body.value instanceof ArrayList) {
-			@SuppressWarnings("unchecked")
-			ArrayList<node> bvec = (ArrayList<node>) body.value;
-			ArrayList<node> ret = new ArrayList<>();
-			for (int i = 0; i < bvec.size(); i++) {
-				node b = bvec.get(i);
-				if (b.stringValue().equals("...")) {
-					ret.addAll(vars.get(b.stringValue()).arrayListValue());
-				} else ret.add(apply_macro(bvec.get(i), vars));
+    // (defmacro NAME (PARAMETER ..) BODY), compiled once: each parameter in
+    // BODY becomes the index of the argument that replaces it
+    static final class macro {
+        // kinds of template items
+        static final int CONST = 0, ARG = 1, REST = 2, LIST = 3;
+
+        final int params; // parameters before ...
+        final boolean rest; // ... takes the other arguments
+        final int kind; // of the body
+        final Object body; // node for CONST, Integer for ARG, item list for LIST
+
+        // a list in the body: kinds[i] and items[i] make its i-th element
+        static final class template {
+            final int[] kinds;
+            final Object[] items;
+            template(int[] kinds, Object[] items) {
+                this.kinds = kinds;
+                this.items = items;
 			}
-			return new node(ret);
-		} else {
-			String bstr = body.stringValue();
-			if (vars.containsKey(bstr)) return vars.get(bstr); else return body;
+        }
+
+        macro(node params, node body) {
+            HashMap<Integer, Integer> slots = new HashMap<Integer, Integer>();
+            int n = 0;
+            boolean r = false;
+            for (node a : params.arrayListValue()) {
+                int code = ((symbol) a.obj).code;
+                if (code == ELLIPSIS) {
+                    r = true;
+                    break;
+                }
+                slots.put(code, n++);
+            }
+            this.params = n;
+            this.rest = r;
+            int[] k = new int[1];
+            this.body = compile(body, slots, k);
+            this.kind = k[0];
+        }
+
+        // the template of x; its kind goes to kind[0]
+        private Object compile(node x, HashMap<Integer, Integer> slots, int[] kind) {
+            if (x.obj instanceof symbol) {
+                int code = ((symbol) x.obj).code;
+                Integer slot = slots.get(code);
+                if (slot != null) {
+                    kind[0] = ARG;
+                    return slot;
+                }
+                if (code == ELLIPSIS && rest) {
+                    kind[0] = REST;
+                    return null;
+                }
+            }
+            else if (x.obj instanceof ArrayList) {
+                ArrayList<node> lst = x.arrayListValue();
+                int[] kinds = new int[lst.size()];
+                Object[] items = new Object[lst.size()];
+                boolean constant = true;
+                for (int i = 0; i < items.length; i++) {
+                    items[i] = compile(lst.get(i), slots, kind);
+                    kinds[i] = kind[0];
+                    if (kinds[i] != CONST) constant = false;
+                }
+                if (!constant) {
+                    kind[0] = LIST;
+                    return new template(kinds, items);
+                }
+            }
+            kind[0] = CONST; // shared by every expansion: compile copies the lists it returns
+            return x;
+        }
+
+        // (NAME ARGUMENT ..) with the arguments put in the body
+        node expand(ArrayList<node> form) {
+            return item(kind, body, form);
+        }
+
+        private node item(int kind, Object x, ArrayList<node> form) {
+            switch (kind) {
+            case ARG: return form.get((Integer) x + 1);
+            case REST: return new node(new ArrayList<node>(form.subList(Math.min(params + 1, form.size()), form.size())));
+            case LIST: {
+                template t = (template) x;
+                ArrayList<node> r = new ArrayList<node>(t.items.length + form.size());
+                for (int i = 0; i < t.items.length; i++) {
+                    if (t.kinds[i] == REST) {
+                        for (int j = params + 1; j < form.size(); j++) r.add(form.get(j));
+                    }
+                    else {
+                        r.add(item(t.kinds[i], t.items[i], form));
+                    }
+                }
+                return new node(r);
+            }
+            default: return (node) x;
+            }
 		}
 	}
 
 	node macroexpand(node n) {
 		ArrayList<node> nArrayList = n.arrayListValue();
-		if (macros.containsKey(nArrayList.get(0).stringValue())) {
-			node[] macro = macros.get(nArrayList.get(0).stringValue());
-			HashMap<String, node> macrovars = new HashMap<>();
-			ArrayList<node> argsyms = macro[0].arrayListValue();
-			for (int i = 0; i < argsyms.size(); i++) {
-				String argsym = argsyms.get(i).stringValue();
-				if (argsym.equals("...")) {
-					node n2 = new node(new ArrayList<node>());
-					macrovars.put(argsym, n2);
-					ArrayList<node> ellipsis = n2.arrayListValue();
-					for (int i2 = i + 1; i2 < nArrayList.size(); i2++)
-						ellipsis.add(nArrayList.get(i2));
-					break;
-				} else {
-					macrovars.put(argsyms.get(i).stringValue(), nArrayList.get(i+1));
-				}
-			}
-			return apply_macro(macro[1], macrovars);
-		} else
-			return n;
+		node head = nArrayList.get(0);
+		macro m = head.obj instanceof symbol ? macros.get(((symbol) head.obj).code) : null;
+		return m == null ? n : m.expand(nArrayList);
 	}
 
     node compile(node n) {
-        if (n.value instanceof ArrayList) { // function (FUNCTION ARGUMENT ..)
+        if (n.obj instanceof ArrayList) { // function (FUNCTION ARGUMENT ..)
             ArrayList<node> nArrayList = n.arrayListValue();
             if (nArrayList.size() == 0) return n;
             node func = compile(nArrayList.get(0));
-            if (func.value instanceof symbol && func.toString().equals(("defmacro"))) {
-                // (defmacro add (a b) (+ a b)) ; define macro
-            	macros.put(nArrayList.get(1).stringValue(), new node[]{nArrayList.get(2), nArrayList.get(3)});
-                return node_null;
-            } else {
-            	if (macros.containsKey(nArrayList.get(0).stringValue())) { // compile macro
-                    return compile(macroexpand(n));
-            	} else {
-	                ArrayList<node> r = new ArrayList<node>();
-	                for (node n2: nArrayList) {
-	                    r.add(compile(n2));
-	                }
-	                return new node(r);
-            	}
+            if (func.obj instanceof symbol) {
+                int code = ((symbol) func.obj).code;
+                if (code == DEFMACRO_CODE) {
+                    // (defmacro add (a b) (+ a b)) ; define macro
+                    macros.put(((symbol) nArrayList.get(1).obj).code, new macro(nArrayList.get(2), nArrayList.get(3)));
+                    if (defined_macros != null) defined_macros.add(n);
+                    return node_null;
+                }
+                macro m = macros.get(code);
+                if (m != null) return compile(m.expand(nArrayList)); // compile macro
+            }
+            ArrayList<node> r = new ArrayList<node>(nArrayList.size());
+            r.add(func);
+            for (int i = 1; i < nArrayList.size(); i++) {
+                r.add(compile(nArrayList.get(i)));
             }
+            return new node(r);
         } else {
             return n;
         }
     }
 
     node eval(node n, environment env) throws Exception {
-    	if (n.value instanceof symbol) {
-    		//node r = env.get(n.toString());
-    		node r = env.get(((symbol)n.value).code);
-//    		if (r == null) {
-//    			System.err.println("Unknown variable: " + n.toString());
-//    			return node_null;
-//    		}
-    		return r;
-    	}
-    	else if (n.value instanceof ArrayList) { // function (FUNCTION ARGUMENT ..)
-            ArrayList<node> nArrayList = n.arrayListValue();
-            if (nArrayList.size() == 0) return node_null;
-            node func = eval(nArrayList.get(0), env);
-            builtin foundBuiltin;
-            if (func.value instanceof builtin) {
-                foundBuiltin = (builtin) func.value;
-                switch(foundBuiltin) {
-                case PLUS: // (+ X ..)
-                    {
-                        int len = nArrayList.size();
-                        if (len <= 1) return node_0;
-                        node first = eval(nArrayList.get(1), env);
-                        if (first.value instanceof Integer) {
-                            int acc = first.intValue();
-                            for (int i = 2; i < len; i++) {
-                                acc += eval(nArrayList.get(i), env).intValue();
-                            }
-                            return new node(acc);
-                        }
-                        else if (first.value instanceof Long) {
-                        	long acc = first.longValue();
-                            for (int i = 2; i < len; i++) {
-                                acc += eval(nArrayList.get(i), env).longValue();
-                            }
-                            return new node(acc);
-                        }
-                        else {
-                            double acc = first.doubleValue();
-                            for (int i = 2; i < len; i++) {
-                                acc += eval(nArrayList.get(i), env).doubleValue();
-                            }
-                            return new node(acc);
-                        }
-                    }
-                case MINUS: // (- X ..)
-                    {
-                        int len = nArrayList.size();
-                        if (len <= 1) return node_0;
-                        node first = eval(nArrayList.get(1), env);
-                        if (first.value instanceof Integer) {
-                            int acc = first.intValue();
-                            for (int i = 2; i < len; i++) {
-                                acc -= eval(nArrayList.get(i), env).intValue();
-                            }
-                            return new node(acc);
-                        }
-                        else if (first.value instanceof Long) {
-                        	long acc = first.longValue();
-                            for (int i = 2; i < len; i++) {
-                                acc -= eval(nArrayList.get(i), env).longValue();
-                            }
-                            return new node(acc);
-                        }
-                        else {
-                            double acc = first.doubleValue();
-                            for (int i = 2; i < len; i++) {
-                                acc -= eval(nArrayList.get(i), env).doubleValue();
-                            }
-                            return new node(acc);
-                        }
-                    }
-                case MUL: // (* X ..)
-                {
-                    int len = nArrayList.size();
-                    if (len <= 1) return node_1;
-                    node first = eval(nArrayList.get(1), env);
-                    if (first.value instanceof Integer) {
-                        int acc = first.intValue();
-                        for (int i = 2; i < len; i++) {
-                            acc *= eval(nArrayList.get(i), env).intValue();
-                        }
-                        return new node(acc);
-                    }
-                    else if (first.value instanceof Long) {
-                    	long acc = first.longValue();
-                        for (int i = 2; i < len; i++) {
-                            acc *= eval(nArrayList.get(i), env).longValue();
-                        }
-                        return new node(acc);
-                    }
-                    else {
-                        double acc = first.doubleValue();
-                        for (int i = 2; i < len; i++) {
-                            acc *= eval(nArrayList.get(i), env).doubleValue();
-                        }
-                        return new node(acc);
-                    }
+        profiler pr = prof;
+        if (pr == null || !(n.obj instanceof ArrayList)) return eval_loop(n, env);
+        return pr.eval(this, n, env);
+    }
+
+    // if, when, begin and fn application continue with their last form in this loop,
+    // so calls in tail position take no Java stack
+    node eval_loop(node n, environment env) throws Exception {
+        for (;;) {
+        	if (n.obj instanceof symbol) {
+        		//node r = env.get(n.toString());
+        		node r = env.get(((symbol)n.obj).code);
+    //    		if (r == null) {
+    //    			System.err.println("Unknown variable: " + n.toString());
+    //    			return node_null;
+    //    		}
+        		return r;
+        	}
+        	else if (n.obj instanceof ArrayList) { // function (FUNCTION ARGUMENT ..)
+                if (limits != null) limits.step();
+                ArrayList<node> nArrayList = n.arrayListValue();
+                if (nArrayList.size() == 0) return node_null;
+                node func = eval(nArrayList.get(0), env);
+                builtin foundBuiltin;
+                if (func.obj instanceof builtin) {
+                    foundBuiltin = (builtin) func.obj;
+                    if (prof != null) prof.stack().at_builtin(builtin_names[foundBuiltin.ordinal()]);
+                    switch(foundBuiltin) {
+                    case PLUS: return builtin_plus(nArrayList, env);
+                    case MINUS: return builtin_minus(nArrayList, env);
+                    case MUL: return builtin_mul(nArrayList, env);
+                    case DIV: return builtin_div(nArrayList, env);
+                    case CARET: return builtin_caret(nArrayList, env);
+                    case PERCENT: return builtin_percent(nArrayList, env);
+                    case SQRT: return builtin_sqrt(nArrayList, env);
+                    case INC: return builtin_inc(nArrayList, env);
+                    case DEC: return builtin_dec(nArrayList, env);
+                    case PLUSPLUS: return builtin_plusplus(nArrayList, env);
+                    case MINUSMINUS: return builtin_minusminus(nArrayList, env);
+                    case FLOOR: return builtin_floor(nArrayList, env);
+                    case CEIL: return builtin_ceil(nArrayList, env);
+                    case LN: return builtin_ln(nArrayList, env);
+                    case LOG10: return builtin_log10(nArrayList, env);
+                    case RAND: return builtin_rand(nArrayList, env);
+                    case SET: return builtin_set(nArrayList, env);
+                    case DEF: return builtin_def(nArrayList, env);
+                    case EQ: return builtin_eq(nArrayList, env);
+                    case EQEQ: return builtin_eqeq(nArrayList, env);
+                    case NOTEQ: return builtin_noteq(nArrayList, env);
+                    case LT: return builtin_lt(nArrayList, env);
+                    case GT: return builtin_gt(nArrayList, env);
+                    case LTE: return builtin_lte(nArrayList, env);
+                    case GTE: return builtin_gte(nArrayList, env);
+                    case ANDAND: return builtin_andand(nArrayList, env);
+                    case OROR: return builtin_oror(nArrayList, env);
+                    case NOT: return builtin_not(nArrayList, env);
+                    case IF: n = builtin_if(nArrayList, env); continue;
+                    case WHEN: n = builtin_when(nArrayList, env); continue;
+                    case FOR: return builtin_for(nArrayList, env);
+                    case WHILE: return builtin_while(nArrayList, env);
+                    case BREAK: return builtin_break(nArrayList, env);
+                    case LOAD: return builtin_load(nArrayList, env);
+                    case REQUIRE: return builtin_require(nArrayList, env);
+                    case STRLEN: return builtin_strlen(nArrayList, env);
+                    case STRCAT: return builtin_strcat(nArrayList, env);
+                    case CHAR_AT: return builtin_char_at(nArrayList, env);
+                    case CHR: return builtin_chr(nArrayList, env);
+                    case STRING: return builtin_string(nArrayList, env);
+                    case DOUBLE: return builtin_double(nArrayList, env);
+                    case INT: return builtin_int(nArrayList, env);
+                    case LONG: return builtin_long(nArrayList, env);
+                    case READ_STRING: return builtin_read_string(nArrayList, env);
+                    case TYPE: return builtin_type(nArrayList, env);
+                    case EVAL: return builtin_eval(nArrayList, env);
+                    case QUOTE: return builtin_quote(nArrayList, env);
+                    case FN: return builtin_fn(func, nArrayList, env);
+                    case LIST: return builtin_list(nArrayList, env);
+                    case APPLY: return builtin_apply(nArrayList, env);
+                    case FOLD: return builtin_fold(nArrayList, env);
+                    case MAP: return builtin_map(nArrayList, env);
+                    case FILTER: return builtin_filter(nArrayList, env);
+                    case RANGE: return builtin_range(nArrayList, env);
+                    case TAKE: return builtin_take(nArrayList, env);
+                    case DROP: return builtin_drop(nArrayList, env);
+                    case PMAP: return builtin_pmap(nArrayList, env);
+                    case PFILTER: return builtin_pfilter(nArrayList, env);
+                    case PREDUCE: return builtin_preduce(nArrayList, env);
+                    case NTH: return builtin_nth(nArrayList, env);
+                    case LENGTH: return builtin_length(nArrayList, env);
+                    case BEGIN: n = builtin_begin(nArrayList, env); continue;
+                    case DOT: return builtin_dot(nArrayList, env);
+                    case DOTGET: return builtin_dotget(nArrayList, env);
+                    case DOTSET: return builtin_dotset(nArrayList, env);
+                    case NEW: return builtin_new(nArrayList, env);
+                    case PR: return builtin_pr(nArrayList, env);
+                    case PRN: return builtin_prn(nArrayList, env);
+                    case EXIT: return builtin_exit(nArrayList, env);
+                    case SYSTEM: return builtin_system(nArrayList, env);
+                    case CONS: return builtin_cons(nArrayList, env);
+                    case NULLP: return builtin_nullp(nArrayList, env);
+                    case CAST: return builtin_cast(nArrayList, env);
+                    case READ_LINE: return builtin_read_line(nArrayList, env);
+                    case SLURP: return builtin_slurp(nArrayList, env);
+                    case SPIT: return builtin_spit(nArrayList, env);
+                    case THREAD: return builtin_thread(nArrayList, env);
+                    case DEREF: return builtin_deref(nArrayList, env);
+                    case ALL: return builtin_all(nArrayList, env);
+                    case ANY: return builtin_any(nArrayList, env);
+                    case ATOM: return builtin_atom(nArrayList, env);
+                    case SWAP: return builtin_swap(nArrayList, env);
+                    case COMPARE_AND_SET: return builtin_compare_and_set(nArrayList, env);
+                    default: {
+                        System.err.println("Not implemented function: [" + func.value().toString() + "]");
+                        return node_null;}
+                    } // end switch(found)
                 }
-                case DIV: // (/ X ..)
-                {
-                    int len = nArrayList.size();
-                    if (len <= 1) return node_1;
-                    node first = eval(nArrayList.get(1), env);
-                    if (first.value instanceof Integer) {
-                        int acc = first.intValue();
-                        for (int i = 2; i < len; i++) {
-                            acc /= eval(nArrayList.get(i), env).intValue();
-                        }
-                        return new node(acc);
-                    }
-                    else if (first.value instanceof Long) {
-                    	long acc = first.longValue();
-                        for (int i = 2; i < len; i++) {
-                            acc /= eval(nArrayList.get(i), env).longValue();
-                        }
-                        return new node(acc);
-                    }
-                    else {
-                        double acc = first.doubleValue();
-                        for (int i = 2; i < len; i++) {
-                            acc /= eval(nArrayList.get(i), env).doubleValue();
+                else {
+                    if (func.obj instanceof fn) {
+                        fn f = (fn) func.obj;
+                        env = bind_args(f, nArrayList, env);
+                        if (prof != null) prof.stack().at_fn(f.name != null ? f.name : profiler.ANONYMOUS);
+                        int last = f.def.size() - 1;
+                        if (last < 2) return null; // no body
+                        for (int i = 2; i < last; i++) {
+                            eval(f.def.get(i), env);
                         }
-                        return new node(acc);
-                    }
-                }
-                case CARET: { // (^ BASE EXPONENT)
-                    return new node(Math.pow(
-                            eval(nArrayList.get(1), env).doubleValue(),
-                            eval(nArrayList.get(2), env).doubleValue()));}
-                case PERCENT: { // (% DIVIDEND DIVISOR)
-                    return new node(eval(nArrayList.get(1), env).intValue() % eval(nArrayList.get(2), env).intValue());}
-                case SQRT: { // (sqrt X)
-                    return new node(Math.sqrt(eval(nArrayList.get(1), env).doubleValue()));}
-                case INC: { // (inc X)
-                    int len = nArrayList.size();
-                    if (len <= 1) return node_0;
-                    node first = eval(nArrayList.get(1), env);
-                    if (first.value instanceof Integer) {
-                        return new node(first.intValue() + 1);
-                    }
-                    else if (first.value instanceof Long) {
-                    	return new node(first.longValue() + 1);
-                    }
-                    else {
-                        return new node(first.doubleValue() + 1.0);
-                    }
-                }
-                case DEC: { // (dec X)
-                    int len = nArrayList.size();
-                    if (len <= 1) return node_0;
-                    node first = eval(nArrayList.get(1), env);
-                    if (first.value instanceof Integer) {
-                        return new node(first.intValue() - 1);
-                    }
-                    else if (first.value instanceof Long) {
-                    	return new node(first.longValue() - 1);
-                    }
-                    else {
-                        return new node(first.doubleValue() - 1.0);
-                    }
-                }
-                case PLUSPLUS: { // (++ X)
-                    int len = nArrayList.size();
-                    if (len <= 1) return node_0;
-                    //node n2 = nArrayList.get(1);
-                    //node n2 = env.get(nArrayList.get(1).toString());
-                    node n2 = env.get(((symbol)nArrayList.get(1).value).code);
-                    if (n2.value instanceof Integer) {
-                        n2.value = n2.intValue() + 1;
-                    }
-                    else if (n2.value instanceof Long) {
-                    	n2.value = n2.longValue() + 1;
+                        n = f.def.get(last);
+                        continue;
                     }
                     else {
-                        n2.value = n2.doubleValue() + 1.0;
-                    }
-                    return n2;
-                }
-                case MINUSMINUS: { // (-- X)
-                    int len = nArrayList.size();
-                    if (len <= 1) return node_0;
-                    //node n2 = nArrayList.get(1);
-                    //node n2 = env.get(nArrayList.get(1).toString());
-                    node n2 = env.get(((symbol)nArrayList.get(1).value).code);
-                    if (n2.value instanceof Integer) {
-                        n2.value = n2.intValue() - 1;
-                    }
-                    else if (n2.value instanceof Long) {
-                    	n2.value = n2.longValue() - 1;
-                    }
-                    else {
-                        n2.value = (n2.doubleValue() - 1.0);
-                    }
-                    return n2;
-                }
-                case FLOOR: { // (floor X)
-                    return new node(Math.floor(eval(nArrayList.get(1), env).doubleValue()));}
-                case CEIL: { // (ceil X)
-                    return new node(Math.ceil(eval(nArrayList.get(1), env).doubleValue()));}
-                case LN: { // (ln X)
-                    return new node(Math.log(eval(nArrayList.get(1), env).doubleValue()));}
-                case LOG10: { // (log10 X)
-                    return new node(Math.log10(eval(nArrayList.get(1), env).doubleValue()));}
-                case RAND: { // (rand)
-                    return new node(Math.random());}
-                case SET: { // (set SYMBOL-OR-PLACE VALUE)
-                    node var = eval(nArrayList.get(1), env);
-                    node value = eval(nArrayList.get(2), env);
-                    if (var == null) {// new variable
-                        return env.set(((symbol)nArrayList.get(1).value).code, value);
-                    }
-                    else {
-                        var.value = value.value;
-                        return var;
+                        System.err.println("Unknown function: [" + func.value().toString() + "]");
+                        return node_null;
                     }
                 }
-                case DEF: { // (def SYMBOL VALUE) ; set in the current environment
-                    node value = eval(nArrayList.get(2), env);
-                    return env.set(((symbol)nArrayList.get(1).value).code, value);
-                }
-                case EQ: { // (= X ..) short-circuit, Object.equals()
-                    node first = eval(nArrayList.get(1), env);
-                    Object firstv = first.value;
-                    for (int i = 2; i < nArrayList.size(); i++) {
-                        if (!eval(nArrayList.get(i), env).value.equals(firstv)) {return node_false;}
-                    }
-                    return node_true;}
-                case EQEQ: { // (== X ..) short-circuit
-                    node first = eval(nArrayList.get(1), env);
-                    if (first.value instanceof Integer) {
-                        int firstv = first.intValue();
-                        for (int i = 2; i < nArrayList.size(); i++) {
-                            if (eval(nArrayList.get(i), env).intValue() != firstv) {return node_false;}
-                        }
-                    }
-                    else if (first.value instanceof Long) {
-                	   long firstv = first.longValue();
-                       for (int i = 2; i < nArrayList.size(); i++) {
-                           if (eval(nArrayList.get(i), env).longValue() != firstv) {return node_false;}
-                       }
-                    }
-                    else {
-                        double firstv = first.doubleValue();
-                        for (int i = 2; i < nArrayList.size(); i++) {
-                            if (eval(nArrayList.get(i), env).doubleValue() != firstv) {return node_false;}
-                        }
-                    }
-                    return node_true;}
-                case NOTEQ: { // (!= X ..) short-circuit
-                    node first = eval(nArrayList.get(1), env);
-                    if (first.value instanceof Integer) {
-                        int firstv = first.intValue();
-                        for (int i = 2; i < nArrayList.size(); i++) {
-                            if (eval(nArrayList.get(i), env).intValue() == firstv) {return node_false;}
-                        }
-                    }
-                    else if (first.value instanceof Long) {
-                	   long firstv = first.longValue();
-                       for (int i = 2; i < nArrayList.size(); i++) {
-                           if (eval(nArrayList.get(i), env).longValue() == firstv) {return node_false;}
-                       }
-                    }
-                    else {
-                        double firstv = first.doubleValue();
-                        for (int i = 2; i < nArrayList.size(); i++) {
-                            if (eval(nArrayList.get(i), env).doubleValue() == firstv) {return node_false;}
-                        }
-                    }
-                    return node_true;}
-                case LT: { // (< X Y)
-                    node first = eval(nArrayList.get(1), env);
-                    node second = eval(nArrayList.get(2), env);
-                    if (first.value instanceof Integer) {
-                        return new node(first.intValue() < second.intValue());
-                    }
-                    else if (first.value instanceof Long) {
-                    	return new node(first.longValue() < second.longValue());
-                    }
-                    else {
-                        return new node(first.doubleValue() < second.doubleValue());
-                    }}
-                case GT: { // (> X Y)
-                    node first = eval(nArrayList.get(1), env);
-                    node second = eval(nArrayList.get(2), env);
-                    if (first.value instanceof Integer) {
-                        return new node(first.intValue() > second.intValue());
-                    }
-                    else if (first.value instanceof Long) {
-                    	return new node(first.longValue() > second.longValue());
-                    }
-                    else {
-                        return new node(first.doubleValue() > second.doubleValue());
-                    }}
-                case LTE: { // (<= X Y)
-                    node first = eval(nArrayList.get(1), env);
-                    node second = eval(nArrayList.get(2), env);
-                    if (first.value instanceof Integer) {
-                        return new node(first.intValue() <= second.intValue());
-                    }
-                    else if (first.value instanceof Long) {
-                    	return new node(first.longValue() <= second.longValue());
-                    }
-                    else {
-                        return new node(first.doubleValue() <= second.doubleValue());
-                    }}
-                case GTE: { // (>= X Y)
-                    node first = eval(nArrayList.get(1), env);
-                    node second = eval(nArrayList.get(2), env);
-                    if (first.value instanceof Integer) {
-                        return new node(first.intValue() >= second.intValue());
-                    }
-                    else if (first.value instanceof Long) {
-                    	return new node(first.longValue() >= second.longValue());
-                    }
-                    else {
-                        return new node(first.doubleValue() >= second.doubleValue());
-                    }}
-                case ANDAND: { // (&& X ..) short-circuit
-                    for (int i = 1; i < nArrayList.size(); i++) {
-                        if (!eval(nArrayList.get(i), env).booleanValue()) {return node_false;}
-                    }
-                    return node_true;}
-                case OROR: { // (|| X ..) short-circuit
-                    for (int i = 1; i < nArrayList.size(); i++) {
-                        if (eval(nArrayList.get(i), env).booleanValue()) {return node_true;}
-                    }
-                    return node_false;}
-                case NOT: { // (! X)
-                    return new node(!(eval(nArrayList.get(1), env).booleanValue()));}
-                case IF: { // (if CONDITION THEN_EXPR ELSE_EXPR)
-                    node cond = nArrayList.get(1);
-                    if (eval(cond, env).booleanValue()) {
-                        return eval(nArrayList.get(2), env);
-                    }
-                    else {
-                        return eval(nArrayList.get(3), env);
-                    }}
-                case WHEN: { // (when CONDITION EXPR ..)
-                    node cond = nArrayList.get(1);
-                    if (eval(cond, env).booleanValue()) {
-                        int len = nArrayList.size();
-                        for (int i = 2; i < len - 1; i++) {
+            }
+            else {
+    //        	return n.clone();
+            	return n;
+            }
+        }
+    }
+
+    // environment of an anonymous function application. lexical scoping
+    // (fn (ARGUMENT ..) BODY ..)
+    environment bind_args(fn f, ArrayList<node> nArrayList, environment env) throws Exception {
+        ArrayList<node> arg_syms = f.def.get(1).arrayListValue();
+        environment local_env = new environment(f.outer_env != null ? f.outer_env : global_env);
+
+        int len = arg_syms.size();
+        for (int i=0; i<len; i++) { // assign arguments
+        	node k = arg_syms.get(i);
+            node n2 = eval(nArrayList.get(i+1), env);
+        	local_env.set(((symbol)k.obj).code, n2);
+        }
+        return local_env;
+    }
+
+    // (+ X ..)
+    node builtin_plus(ArrayList<node> nArrayList, environment env) throws Exception {
+        int len = nArrayList.size();
+        if (len <= 1) return node_0;
+        node first = eval(nArrayList.get(1), env);
+        if (first.tag == node.INT) {
+            int acc = first.intValue();
+            for (int i = 2; i < len; i++) {
+                acc += eval(nArrayList.get(i), env).intValue();
+            }
+            return new node(acc);
+        }
+        else if (first.tag == node.LONG) {
+            long acc = first.longValue();
+            for (int i = 2; i < len; i++) {
+                acc += eval(nArrayList.get(i), env).longValue();
+            }
+            return new node(acc);
+        }
+        else {
+            double acc = first.doubleValue();
+            for (int i = 2; i < len; i++) {
+                acc += eval(nArrayList.get(i), env).doubleValue();
+            }
+            return new node(acc);
+        }
+    }
+
+    // (- X ..)
+    node builtin_minus(ArrayList<node> nArrayList, environment env) throws Exception {
+        int len = nArrayList.size();
+        if (len <= 1) return node_0;
+        node first = eval(nArrayList.get(1), env);
+        if (first.tag == node.INT) {
+            int acc = first.intValue();
+            for (int i = 2; i < len; i++) {
+                acc -= eval(nArrayList.get(i), env).intValue();
+            }
+            return new node(acc);
+        }
+        else if (first.tag == node.LONG) {
+            long acc = first.longValue();
+            for (int i = 2; i < len; i++) {
+                acc -= eval(nArrayList.get(i), env).longValue();
+            }
+            return new node(acc);
+        }
+        else {
+            double acc = first.doubleValue();
+            for (int i = 2; i < len; i++) {
+                acc -= eval(nArrayList.get(i), env).doubleValue();
+            }
+            return new node(acc);
+        }
+    }
+
+    // (* X ..)
+    node builtin_mul(ArrayList<node> nArrayList, environment env) throws Exception {
+        int len = nArrayList.size();
+        if (len <= 1) return node_1;
+        node first = eval(nArrayList.get(1), env);
+        if (first.tag == node.INT) {
+            int acc = first.intValue();
+            for (int i = 2; i < len; i++) {
+                acc *= eval(nArrayList.get(i), env).intValue();
+            }
+            return new node(acc);
+        }
+        else if (first.tag == node.LONG) {
+            long acc = first.longValue();
+            for (int i = 2; i < len; i++) {
+                acc *= eval(nArrayList.get(i), env).longValue();
+            }
+            return new node(acc);
+        }
+        else {
+            double acc = first.doubleValue();
+            for (int i = 2; i < len; i++) {
+                acc *= eval(nArrayList.get(i), env).doubleValue();
+            }
+            return new node(acc);
+        }
+    }
+
+    // (/ X ..)
+    node builtin_div(ArrayList<node> nArrayList, environment env) throws Exception {
+        int len = nArrayList.size();
+        if (len <= 1) return node_1;
+        node first = eval(nArrayList.get(1), env);
+        if (first.tag == node.INT) {
+            int acc = first.intValue();
+            for (int i = 2; i < len; i++) {
+                acc /= eval(nArrayList.get(i), env).intValue();
+            }
+            return new node(acc);
+        }
+        else if (first.tag == node.LONG) {
+            long acc = first.longValue();
+            for (int i = 2; i < len; i++) {
+                acc /= eval(nArrayList.get(i), env).longValue();
+            }
+            return new node(acc);
+        }
+        else {
+            double acc = first.doubleValue();
+            for (int i = 2; i < len; i++) {
+                acc /= eval(nArrayList.get(i), env).doubleValue();
+            }
+            return new node(acc);
+        }
+    }
+
+    // (^ BASE EXPONENT)
+    node builtin_caret(ArrayList<node> nArrayList, environment env) throws Exception {
+        return new node(Math.pow(
+                eval(nArrayList.get(1), env).doubleValue(),
+                eval(nArrayList.get(2), env).doubleValue()));
+    }
+
+    // (% DIVIDEND DIVISOR)
+    node builtin_percent(ArrayList<node> nArrayList, environment env) throws Exception {
+        return new node(eval(nArrayList.get(1), env).intValue() % eval(nArrayList.get(2), env).intValue());
+    }
+
+    // (sqrt X)
+    node builtin_sqrt(ArrayList<node> nArrayList, environment env) throws Exception {
+        return new node(Math.sqrt(eval(nArrayList.get(1), env).doubleValue()));
+    }
+
+    // (inc X)
+    node builtin_inc(ArrayList<node> nArrayList, environment env) throws Exception {
+        int len = nArrayList.size();
+        if (len <= 1) return node_0;
+        node first = eval(nArrayList.get(1), env);
+        if (first.tag == node.INT) {
+            return new node(first.intValue() + 1);
+        }
+        else if (first.tag == node.LONG) {
+            return new node(first.longValue() + 1);
+        }
+        else {
+            return new node(first.doubleValue() + 1.0);
+        }
+    }
+
+    // (dec X)
+    node builtin_dec(ArrayList<node> nArrayList, environment env) throws Exception {
+        int len = nArrayList.size();
+        if (len <= 1) return node_0;
+        node first = eval(nArrayList.get(1), env);
+        if (first.tag == node.INT) {
+            return new node(first.intValue() - 1);
+        }
+        else if (first.tag == node.LONG) {
+            return new node(first.longValue() - 1);
+        }
+        else {
+            return new node(first.doubleValue() - 1.0);
+        }
+    }
+
+    // (++ X)
+    node builtin_plusplus(ArrayList<node> nArrayList, environment env) throws Exception {
+        int len = nArrayList.size();
+        if (len <= 1) return node_0;
+        //node n2 = nArrayList.get(1);
+        //node n2 = env.get(nArrayList.get(1).toString());
+        node n2 = env.get_own(((symbol)nArrayList.get(1).obj).code);
+        if (n2.tag == node.INT) {
+            n2.set(n2.intValue() + 1);
+        }
+        else if (n2.tag == node.LONG) {
+            n2.set(n2.longValue() + 1);
+        }
+        else {
+            n2.set(n2.doubleValue() + 1.0);
+        }
+        return n2;
+    }
+
+    // (-- X)
+    node builtin_minusminus(ArrayList<node> nArrayList, environment env) throws Exception {
+        int len = nArrayList.size();
+        if (len <= 1) return node_0;
+        //node n2 = nArrayList.get(1);
+        //node n2 = env.get(nArrayList.get(1).toString());
+        node n2 = env.get_own(((symbol)nArrayList.get(1).obj).code);
+        if (n2.tag == node.INT) {
+            n2.set(n2.intValue() - 1);
+        }
+        else if (n2.tag == node.LONG) {
+            n2.set(n2.longValue() - 1);
+        }
+        else {
+            n2.set(n2.doubleValue() - 1.0);
+        }
+        return n2;
+    }
+
+    // (floor X)
+    node builtin_floor(ArrayList<node> nArrayList, environment env) throws Exception {
+        return new node(Math.floor(eval(nArrayList.get(1), env).doubleValue()));
+    }
+
+    // (ceil X)
+    node builtin_ceil(ArrayList<node> nArrayList, environment env) throws Exception {
+        return new node(Math.ceil(eval(nArrayList.get(1), env).doubleValue()));
+    }
+
+    // (ln X)
+    node builtin_ln(ArrayList<node> nArrayList, environment env) throws Exception {
+        return new node(Math.log(eval(nArrayList.get(1), env).doubleValue()));
+    }
+
+    // (log10 X)
+    node builtin_log10(ArrayList<node> nArrayList, environment env) throws Exception {
+        return new node(Math.log10(eval(nArrayList.get(1), env).doubleValue()));
+    }
+
+    // (rand)
+    node builtin_rand(ArrayList<node> nArrayList, environment env) throws Exception {
+        return new node(Math.random());
+    }
+
+    // (set SYMBOL-OR-PLACE VALUE)
+    node builtin_set(ArrayList<node> nArrayList, environment env) throws Exception {
+        node target = nArrayList.get(1);
+        node var = target.obj instanceof symbol ? env.get_own(((symbol) target.obj).code) : eval(target, env);
+        node value = eval(nArrayList.get(2), env);
+        if (var == null) {// new variable
+            name_fn(value, ((symbol)nArrayList.get(1).obj).code);
+            return env.set(((symbol)nArrayList.get(1).obj).code, value);
+        }
+        else {
+            var.set_value(value);
+            return var;
+        }
+    }
+
+    // (def SYMBOL VALUE) ; set in the current environment
+    node builtin_def(ArrayList<node> nArrayList, environment env) throws Exception {
+        node value = eval(nArrayList.get(2), env);
+        name_fn(value, ((symbol)nArrayList.get(1).obj).code);
+        return env.set(((symbol)nArrayList.get(1).obj).code, value);
+    }
+
+    // (= X ..) short-circuit, Object.equals()
+    node builtin_eq(ArrayList<node> nArrayList, environment env) throws Exception {
+        node first = eval(nArrayList.get(1), env);
+        Object firstv = first.value();
+        for (int i = 2; i < nArrayList.size(); i++) {
+            if (!eval(nArrayList.get(i), env).value().equals(firstv)) {return node_false;}
+        }
+        return node_true;
+    }
+
+    // (== X ..) short-circuit
+    node builtin_eqeq(ArrayList<node> nArrayList, environment env) throws Exception {
+        node first = eval(nArrayList.get(1), env);
+        if (first.tag == node.INT) {
+            int firstv = first.intValue();
+            for (int i = 2; i < nArrayList.size(); i++) {
+                if (eval(nArrayList.get(i), env).intValue() != firstv) {return node_false;}
+            }
+        }
+        else if (first.tag == node.LONG) {
+           long firstv = first.longValue();
+           for (int i = 2; i < nArrayList.size(); i++) {
+               if (eval(nArrayList.get(i), env).longValue() != firstv) {return node_false;}
+           }
+        }
+        else {
+            double firstv = first.doubleValue();
+            for (int i = 2; i < nArrayList.size(); i++) {
+                if (eval(nArrayList.get(i), env).doubleValue() != firstv) {return node_false;}
+            }
+        }
+        return node_true;
+    }
+
+    // (!= X ..) short-circuit
+    node builtin_noteq(ArrayList<node> nArrayList, environment env) throws Exception {
+        node first = eval(nArrayList.get(1), env);
+        if (first.tag == node.INT) {
+            int firstv = first.intValue();
+            for (int i = 2; i < nArrayList.size(); i++) {
+                if (eval(nArrayList.get(i), env).intValue() == firstv) {return node_false;}
+            }
+        }
+        else if (first.tag == node.LONG) {
+           long firstv = first.longValue();
+           for (int i = 2; i < nArrayList.size(); i++) {
+               if (eval(nArrayList.get(i), env).longValue() == firstv) {return node_false;}
+           }
+        }
+        else {
+            double firstv = first.doubleValue();
+            for (int i = 2; i < nArrayList.size(); i++) {
+                if (eval(nArrayList.get(i), env).doubleValue() == firstv) {return node_false;}
+            }
+        }
+        return node_true;
+    }
+
+    // (< X Y)
+    node builtin_lt(ArrayList<node> nArrayList, environment env) throws Exception {
+        node first = eval(nArrayList.get(1), env);
+        node second = eval(nArrayList.get(2), env);
+        if (first.tag == node.INT) {
+            return new node(first.intValue() < second.intValue());
+        }
+        else if (first.tag == node.LONG) {
+            return new node(first.longValue() < second.longValue());
+        }
+        else {
+            return new node(first.doubleValue() < second.doubleValue());
+        }
+    }
+
+    // (> X Y)
+    node builtin_gt(ArrayList<node> nArrayList, environment env) throws Exception {
+        node first = eval(nArrayList.get(1), env);
+        node second = eval(nArrayList.get(2), env);
+        if (first.tag == node.INT) {
+            return new node(first.intValue() > second.intValue());
+        }
+        else if (first.tag == node.LONG) {
+            return new node(first.longValue() > second.longValue());
+        }
+        else {
+            return new node(first.doubleValue() > second.doubleValue());
+        }
+    }
+
+    // (<= X Y)
+    node builtin_lte(ArrayList<node> nArrayList, environment env) throws Exception {
+        node first = eval(nArrayList.get(1), env);
+        node second = eval(nArrayList.get(2), env);
+        if (first.tag == node.INT) {
+            return new node(first.intValue() <= second.intValue());
+        }
+        else if (first.tag == node.LONG) {
+            return new node(first.longValue() <= second.longValue());
+        }
+        else {
+            return new node(first.doubleValue() <= second.doubleValue());
+        }
+    }
+
+    // (>= X Y)
+    node builtin_gte(ArrayList<node> nArrayList, environment env) throws Exception {
+        node first = eval(nArrayList.get(1), env);
+        node second = eval(nArrayList.get(2), env);
+        if (first.tag == node.INT) {
+            return new node(first.intValue() >= second.intValue());
+        }
+        else if (first.tag == node.LONG) {
+            return new node(first.longValue() >= second.longValue());
+        }
+        else {
+            return new node(first.doubleValue() >= second.doubleValue());
+        }
+    }
+
+    // (&& X ..) short-circuit
+    node builtin_andand(ArrayList<node> nArrayList, environment env) throws Exception {
+        for (int i = 1; i < nArrayList.size(); i++) {
+            if (!eval(nArrayList.get(i), env).booleanValue()) {return node_false;}
+        }
+        return node_true;
+    }
+
+    // (|| X ..) short-circuit
+    node builtin_oror(ArrayList<node> nArrayList, environment env) throws Exception {
+        for (int i = 1; i < nArrayList.size(); i++) {
+            if (eval(nArrayList.get(i), env).booleanValue()) {return node_true;}
+        }
+        return node_false;
+    }
+
+    // (! X)
+    node builtin_not(ArrayList<node> nArrayList, environment env) throws Exception {
+        return new node(!(eval(nArrayList.get(1), env).booleanValue()));
+    }
+
+    // (if CONDITION THEN_EXPR ELSE_EXPR): Returns the branch for eval to evaluate.
+    node builtin_if(ArrayList<node> nArrayList, environment env) throws Exception {
+        node cond = nArrayList.get(1);
+        if (eval(cond, env).booleanValue()) {
+            return nArrayList.get(2);
+        }
+        else {
+            return nArrayList.get(3);
+        }
+    }
+
+    // (when CONDITION EXPR ..): Returns last EXPR for eval to evaluate.
+    node builtin_when(ArrayList<node> nArrayList, environment env) throws Exception {
+        node cond = nArrayList.get(1);
+        if (eval(cond, env).booleanValue()) {
+            int len = nArrayList.size();
+            for (int i = 2; i < len - 1; i++) {
+                eval(nArrayList.get(i), env);
+            }
+            return nArrayList.get(len - 1);
+        }
+        return node_null; // evaluates to itself
+    }
+
+    // (for SYMBOL START END STEP EXPR ..)
+    node builtin_for(ArrayList<node> nArrayList, environment env) throws Exception {
+        try {
+            node start = eval(nArrayList.get(2), env);
+            int len = nArrayList.size();
+            if (start.tag == node.INT) {
+                int last = eval(nArrayList.get(3), env).intValue();
+                int step = eval(nArrayList.get(4), env).intValue();
+                int a = start.intValue();
+                //node na = nArrayList.get(1);
+                //node na = env.set(nArrayList.get(1).toString(), new node(a));
+                node na = env.set(((symbol)nArrayList.get(1).obj).code, new node(a));
+                if (step >= 0) {
+                    for (; a <= last; a += step) {
+                        if (limits != null) limits.step();
+                        na.set(a);
+                        for (int i = 5; i < len; i++) {
                             eval(nArrayList.get(i), env);
                         }
-                        return eval(nArrayList.get(len - 1), env); // returns last EXPR
-                    }
-                    return node_null;}
-                case FOR: // (for SYMBOL START END STEP EXPR ..)
-                    {
-                    	try {
-	                        node start = eval(nArrayList.get(2), env);
-	                        int len = nArrayList.size();
-	                        if (start.value instanceof Integer) {
-	                            int last = eval(nArrayList.get(3), env).intValue();
-	                            int step = eval(nArrayList.get(4), env).intValue();
-	                            int a = start.intValue();
-	                            //node na = nArrayList.get(1);
-	                            //node na = env.set(nArrayList.get(1).toString(), new node(a));
-	                            node na = env.set(((symbol)nArrayList.get(1).value).code, new node(a));
-	                            if (step >= 0) {
-	                                for (; a <= last; a += step) {
-	                                    na.value = a;
-	                                    for (int i = 5; i < len; i++) {
-	                                        eval(nArrayList.get(i), env);
-	                                    }
-	                                }
-	                            }
-	                            else {
-	                                for (; a >= last; a += step) {
-	                                    na.value = a;
-	                                    for (int i = 5; i < len; i++) {
-	                                        eval(nArrayList.get(i), env);
-	                                    }
-	                                }
-	                            }
-	                        }
-	                        else if (start.value instanceof Long) {
-	                            long last = eval(nArrayList.get(3), env).longValue();
-	                            long step = eval(nArrayList.get(4), env).longValue();
-	                            long a = start.longValue();
-	                            //node na = nArrayList.get(1);
-	                            node na = env.set(((symbol)nArrayList.get(1).value).code, new node(a));
-	                            if (step >= 0) {
-	                                for (; a <= last; a += step) {
-	                                    na.value = a;
-	                                    for (int i = 5; i < len; i++) {
-	                                        eval(nArrayList.get(i), env);
-	                                    }
-	                                }
-	                            }
-	                            else {
-	                                for (; a >= last; a += step) {
-	                                    na.value = a;
-	                                    for (int i = 5; i < len; i++) {
-	                                        eval(nArrayList.get(i), env);
-	                                    }
-	                                }
-	                            }
-	                        }
-	                        else {
-	                            double last = eval(nArrayList.get(3), env).doubleValue();
-	                            double step = eval(nArrayList.get(4), env).doubleValue();
-	                            double a = start.doubleValue();
-	                            //node na = nArrayList.get(1);
-	                            node na = env.set(((symbol)nArrayList.get(1).value).code, new node(a));
-	                            if (step >= 0) {
-	                                for (; a <= last; a += step) {
-	                                    na.value = a;
-	                                    for (int i = 5; i < len; i++) {
-	                                        eval(nArrayList.get(i), env);
-	                                    }
-	                                }
-	                            }
-	                            else {
-	                                for (; a >= last; a += step) {
-	                                    na.value = a;
-	                                    for (int i = 5; i < len; i++) {
-	                                        eval(nArrayList.get(i), env);
-	                                    }
-	                                }
-	                            }
-	                        }
-                    	} catch (BreakException e) {
-
-                    	}
-                        return node_null;
-                    }
-                case WHILE: { // (while CONDITION EXPR ..)
-                    try {
-	                    node cond = nArrayList.get(1);
-	                    int len = nArrayList.size();
-	                    while (eval(cond, env).booleanValue()) {
-	                        for (int i = 2; i < len; i++) {
-	                            eval(nArrayList.get(i), env);
-	                        }
-	                    }
-                    } catch (BreakException E) {
-
                     }
-                    return node_null; }
-                case BREAK: { // (break)
-                	throw new BreakException();
                 }
-                case STRLEN: { // (strlen X)
-                    return new node(eval(nArrayList.get(1), env).stringValue().length());}
-                case STRCAT: { // (strcat X ..)
-                    int len = nArrayList.size();
-                    if (len <= 1) return new node("");
-                    node first = eval(nArrayList.get(1), env);
-                    String acc = first.stringValue();
-                    for (int i = 2; i < nArrayList.size(); i++) {
-                        acc += eval(nArrayList.get(i), env).stringValue();
-                    }
-                    return new node(acc);}
-                case CHAR_AT: { // (char-at X POSITION)
-                    return new node((int) eval(nArrayList.get(1), env).stringValue().charAt(eval(nArrayList.get(2), env).intValue()));}
-                case CHR: { // (chr X)
-                    char[] temp = {0};
-                    temp[0] = (char) eval(nArrayList.get(1), env).intValue();
-                    return new node(new String(temp));}
-                case STRING: { // (string X)
-                    return new node(eval(nArrayList.get(1), env).stringValue());}
-                case DOUBLE: { // (double X)
-                    return new node(eval(nArrayList.get(1), env).doubleValue());}
-                case INT: { // (int X)
-                    return new node(eval(nArrayList.get(1), env).intValue());}
-                case LONG: { // (long X)
-                    return new node(eval(nArrayList.get(1), env).longValue());}
-                case READ_STRING: { // (read-string X)
-                    return new node(parse(eval(nArrayList.get(1), env).stringValue()).get(0).value);}
-                case TYPE: { // (type X)
-                    return new node(eval(nArrayList.get(1), env).type());}
-                case EVAL: { // (eval X)
-                    return eval(eval(nArrayList.get(1), env), env);}
-                case QUOTE: { // (quote X)
-                    return nArrayList.get(1);}
-                case FN: {
-                    // anonymous function. lexical scoping
-                    // (fn (ARGUMENT ..) BODY ..)
-                    ArrayList<node> r = new ArrayList<node>();
-                    r.add(func);
-
-                    for (int i=1; i<nArrayList.size(); i++) {
-                        r.add(nArrayList.get(i));
-                    }
-                    return new node(new fn(r, env));}
-                case LIST: { // (list X ..)
-                    ArrayList<node> ret = new ArrayList<node>();
-                    for (int i = 1; i < nArrayList.size(); i++) {
-                        ret.add(eval(nArrayList.get(i), env));
-                    }
-                    return new node(ret);}
-                case APPLY: { // (apply FUNC LIST)
-                    ArrayList<node> expr = new ArrayList<node>();
-                    node f = eval(nArrayList.get(1), env);
-                    expr.add(f);
-                    ArrayList<node> lst = eval(nArrayList.get(2), env).arrayListValue();
-                    for (int i = 0; i < lst.size(); i++) {
-                    	ArrayList<node> item = new ArrayList<node>();
-                    	item.add(new node(new symbol("quote")));
-                    	item.add(lst.get(i));
-                        expr.add(new node(item));
-                    }
-                    return eval(new node(expr), env);
-                }
-                case FOLD: { // (fold FUNC LIST)
-                    node f = eval(nArrayList.get(1), env);
-                    ArrayList<node> lst = eval(nArrayList.get(2), env).arrayListValue();
-                    node acc = eval(lst.get(0), env);
-                    ArrayList<node> expr = new ArrayList<node>(); // (FUNC ITEM)
-                    expr.add(f);
-                    expr.add(null); // first argument
-                    expr.add(null); // second argument
-                    for (int i = 1; i < lst.size(); i++) {
-                        expr.set(1, acc);
-                        expr.set(2, lst.get(i));
-                        acc = eval(new node(expr), env);
-                    }
-                    return acc;
-                }
-                case MAP: { // (map FUNC LIST)
-                    node f = eval(nArrayList.get(1), env);
-                    ArrayList<node> lst = eval(nArrayList.get(2), env).arrayListValue();
-                    ArrayList<node> acc = new ArrayList<node>();
-                    ArrayList<node> expr = new ArrayList<node>(); // (FUNC ITEM)
-                    expr.add(f);
-                    expr.add(null);
-                    for (int i = 0; i < lst.size(); i++) {
-                        expr.set(1, lst.get(i));
-                        acc.add(eval(new node(expr), env));
+                else {
+                    for (; a >= last; a += step) {
+                        if (limits != null) limits.step();
+                        na.set(a);
+                        for (int i = 5; i < len; i++) {
+                            eval(nArrayList.get(i), env);
+                        }
                     }
-                    return new node(acc);
                 }
-                case FILTER: { // (filter FUNC LIST)
-                    node f = eval(nArrayList.get(1), env);
-                    ArrayList<node> lst = eval(nArrayList.get(2), env).arrayListValue();
-                    ArrayList<node> acc = new ArrayList<node>();
-                    ArrayList<node> expr = new ArrayList<node>(); // (FUNC ITEM)
-                    expr.add(f);
-                    expr.add(null);
-                    for (int i = 0; i < lst.size(); i++) {
-                        node item = lst.get(i);
-                        expr.set(1, item);
-                        node ret = eval(new node(expr), env);
-                        if (ret.booleanValue()) acc.add(item);
+            }
+            else if (start.tag == node.LONG) {
+                long last = eval(nArrayList.get(3), env).longValue();
+                long step = eval(nArrayList.get(4), env).longValue();
+                long a = start.longValue();
+                //node na = nArrayList.get(1);
+                node na = env.set(((symbol)nArrayList.get(1).obj).code, new node(a));
+                if (step >= 0) {
+                    for (; a <= last; a += step) {
+                        if (limits != null) limits.step();
+                        na.set(a);
+                        for (int i = 5; i < len; i++) {
+                            eval(nArrayList.get(i), env);
+                        }
                     }
-                    return new node(acc);
                 }
-                case RANGE: { // (range START END STEP)
-                    node start = eval(nArrayList.get(1), env);
-                    ArrayList<node> ret = new ArrayList<node>();
-                    if (start.value instanceof Integer) {
-                        int a = eval(nArrayList.get(1), env).intValue();
-                        int last = eval(nArrayList.get(2), env).intValue();
-                        int step = eval(nArrayList.get(3), env).intValue();
-                        if (step >= 0) {
-                            for (; a <= last; a += step) {
-                                ret.add(new node(a));}}
-                        else {
-                            for (; a >= last; a += step) {
-                                ret.add(new node(a));}}
-                    }
-                    else if (start.value instanceof Long) {
-                        long a = eval(nArrayList.get(1), env).longValue();
-                        long last = eval(nArrayList.get(2), env).longValue();
-                        long step = eval(nArrayList.get(3), env).longValue();
-                        if (step >= 0) {
-                            for (; a <= last; a += step) {
-                                ret.add(new node(a));}}
-                        else {
-                            for (; a >= last; a += step) {
-                                ret.add(new node(a));}}
-                    }
-                    else {
-                        double a = eval(nArrayList.get(1), env).doubleValue();
-                        double last = eval(nArrayList.get(2), env).doubleValue();
-                        double step = eval(nArrayList.get(3), env).doubleValue();
-                        if (step >= 0) {
-                            for (; a <= last; a += step) {
-                                ret.add(new node(a));}}
-                        else {
-                            for (; a >= last; a += step) {
-                                ret.add(new node(a));}}
+                else {
+                    for (; a >= last; a += step) {
+                        if (limits != null) limits.step();
+                        na.set(a);
+                        for (int i = 5; i < len; i++) {
+                            eval(nArrayList.get(i), env);
+                        }
                     }
-                    return new node(ret);
                 }
-                case NTH: { // (nth INDEX LIST)
-                    int i = eval(nArrayList.get(1), env).intValue();
-                    ArrayList<node> lst = eval(nArrayList.get(2), env).arrayListValue();
-                    return lst.get(i);}
-                case LENGTH: { // (length LIST)
-                    ArrayList<node> lst = eval(nArrayList.get(1), env).arrayListValue();
-                    return new node(lst.size());}
-                case BEGIN: { // (begin X ..)
-                    int last = nArrayList.size() - 1;
-                    if (last <= 0) return node_null;
-                    for (int i = 1; i < last; i++) {
-                        eval(nArrayList.get(i), env);
-                    }
-                    return eval(nArrayList.get(last), env);}
-                case DOT: {
-                    // Java interoperability
-                    // (. CLASS METHOD ARGUMENT ..) ; Java method invocation
-                    try {
-                        Class<?> cls;
-                        Object obj = null;
-                        String className = nArrayList.get(1).stringValue();
-                        //if (nArrayList.get(1).value instanceof symbol) { // class's static method e.g. (. java.lang.Math floor 1.5)
-                        if (nArrayList.get(1).value instanceof symbol && env.get(((symbol)nArrayList.get(1).value).code) == null) { // class's static method e.g. (. System.Math Floor 1.5)
-                            cls = Class.forName(className);
-                        } else { // object's method e.g. (. "abc" length)
-                            obj = eval(nArrayList.get(1), env).value;
-                            cls = obj.getClass();
-                        }
-                        Class<?>[] parameterTypes = new Class<?>[nArrayList.size() - 3];
-                        ArrayList<Object> parameters = new ArrayList<Object>();
-                        int last = nArrayList.size() - 1;
-                        for (int i = 3; i <= last; i++) {
-                        	node a = eval(nArrayList.get(i), env);
-                            Object param = a.value;
-                            parameters.add(param);
-                            Class<?> paramClass;
-                            if (a.clazz == null) {
-	                            if (param instanceof Integer) paramClass = Integer.TYPE;
-	                            else if (param instanceof Double) paramClass = Double.TYPE;
-	                            else if (param instanceof Long) paramClass = Long.TYPE;
-	                            else if (param instanceof Boolean) paramClass = Boolean.TYPE;
-	                            else paramClass = param.getClass();
-                            } else {
-                            	paramClass = a.clazz; // use hint
-                            }
-                            parameterTypes[i - 3] = paramClass;
-                        }
-                        String methodName = nArrayList.get(2).stringValue();
-                        Method method = cls.getMethod(methodName, parameterTypes);
-                        return new node(method.invoke(obj, parameters.toArray()));
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        return node_null;
-                    }}
-                case DOTGET: {
-                    // Java interoperability
-                    // (.get CLASS FIELD) ; get Java field
-                    try {
-                        Class<?> cls;
-                        Object obj = null;
-                        String className = nArrayList.get(1).stringValue();
-                        //if (nArrayList.get(1).value instanceof symbol) { // class's static field e.g. (.get java.lang.Math PI)
-                        if (nArrayList.get(1).value instanceof symbol && env.get(((symbol)nArrayList.get(1).value).code) == null) { // class's static method e.g. (. System.Math Floor 1.5)
-                            cls = Class.forName(className);
-                        } else { // object's method
-                            obj = eval(nArrayList.get(1), env).value;
-                            cls = obj.getClass();
-                        }
-                        String fieldName = nArrayList.get(2).stringValue();
-                        java.lang.reflect.Field field = cls.getField(fieldName);
-                        return new node(field.get(cls));
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        return node_null;
-                    }}
-                case DOTSET: {
-                    // Java interoperability
-                    // (.set CLASS FIELD VALUE) ; set Java field
-                    try {
-                        Class<?> cls;
-                        Object obj = null;
-                        String className = nArrayList.get(1).stringValue();
-                        //if (nArrayList.get(1).value instanceof symbol) { // class's static field e.g. (.get java.lang.Math PI)
-                        if (nArrayList.get(1).value instanceof symbol && env.get(((symbol)nArrayList.get(1).value).code) == null) { // class's static method e.g. (. System.Math Floor 1.5)
-                            cls = Class.forName(className);
-                        } else { // object's method
-                            obj = eval(nArrayList.get(1), env).value;
-                            cls = obj.getClass();
-                        }
-                        String fieldName = nArrayList.get(2).stringValue();
-                        java.lang.reflect.Field field = cls.getField(fieldName);
-                        Object value = eval(nArrayList.get(3), env).value;
-                        field.set(cls, value);
-                        return node_null;
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        return node_null;
-                    }}
-                case NEW: {
-                    // Java interoperability
-                    // (new CLASS ARG ..) ; create new Java object
-                    try {
-                        String className = nArrayList.get(1).stringValue();
-                        Class<?> cls = Class.forName(className);
-                        Class<?>[] parameterTypes = new Class<?>[nArrayList.size() - 2];
-                        ArrayList<Object> parameters = new ArrayList<Object>();
-                        int last = nArrayList.size() - 1;
-                        for (int i = 2; i <= last; i++) {
-                        	node a = eval(nArrayList.get(i), env);
-                            Object param = a.value;
-                            parameters.add(param);
-                            Class<?> paramClass;
-                            if (a.clazz == null) {
-	                            if (param instanceof Integer) paramClass = Integer.TYPE;
-	                            else if (param instanceof Double) paramClass = Double.TYPE;
-	                            else if (param instanceof Long) paramClass = Long.TYPE;
-	                            else if (param instanceof Boolean) paramClass = Boolean.TYPE;
-	                            else paramClass = param.getClass();
-                            } else {
-                            	paramClass = a.clazz; // use hint
-                            }
-                            parameterTypes[i - 2] = paramClass;
-                        }
-                        Constructor<?> ctor = cls.getConstructor(parameterTypes);
-                        return new node(ctor.newInstance(parameters.toArray()));
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        return node_null;
-                    }}
-                case PR: // (pr X ..)
-                    {
-                        for (int i = 1; i < nArrayList.size(); i++) {
-                            if (i != 1) System.out.print(" ");
-                            System.out.print(eval(nArrayList.get(i), env).stringValue());
+            }
+            else {
+                double last = eval(nArrayList.get(3), env).doubleValue();
+                double step = eval(nArrayList.get(4), env).doubleValue();
+                double a = start.doubleValue();
+                //node na = nArrayList.get(1);
+                node na = env.set(((symbol)nArrayList.get(1).obj).code, new node(a));
+                if (step >= 0) {
+                    for (; a <= last; a += step) {
+                        if (limits != null) limits.step();
+                        na.set(a);
+                        for (int i = 5; i < len; i++) {
+                            eval(nArrayList.get(i), env);
                         }
-                        return node_null;
                     }
-                case PRN: // (prn X ..)
-                    {
-                        for (int i = 1; i < nArrayList.size(); i++) {
-                            if (i != 1) System.out.print(" ");
-                            System.out.print(eval(nArrayList.get(i), env).stringValue());
+                }
+                else {
+                    for (; a >= last; a += step) {
+                        if (limits != null) limits.step();
+                        na.set(a);
+                        for (int i = 5; i < len; i++) {
+                            eval(nArrayList.get(i), env);
                         }
-                        System.out.println();
-                        return node_null;
                     }
-                case EXIT: { // (exit X)
-                    System.out.println();
-                    System.exit(eval(nArrayList.get(1), env).intValue());
-                    return node_null; }
-                case SYSTEM: { // (system "notepad" "a.txt") ; run external program
-                    ArrayList<String> args = new ArrayList<String>();
-                    for (int i = 1; i < nArrayList.size(); i++) {
-                        args.add(eval(nArrayList.get(i), env).stringValue());
-                    }
-                    ProcessBuilder pb = new ProcessBuilder(args);
-                    pb.inheritIO();
-                    Process ps = null;
-                    try {
-                        ps = pb.start();
-                        ps.waitFor();
-                        return new node(ps.exitValue());
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                    return node_null;
-                    }
-                case CONS: { // (cons X LST): Returns a new list where x is the first element and lst is the rest.
-                    //node x = new node(eval(nArrayList.get(1)).value);
-                    node x = eval(nArrayList.get(1), env);
-                    ArrayList<node> lst = eval(nArrayList.get(2), env).arrayListValue();
-                    ArrayList<node> r = new ArrayList<node>();
-                    r.add(x);
-                    for (node n2 : lst) {
-                    	r.add(n2);
-                    }
-                    return new node(r);
-                }
-                case NULLP: { // (null? X): Returns true if X is null.
-                	return new node(eval(nArrayList.get(1), env).value == null);
-                }
-                case CAST: { // (cast CLASS X): Returns type-hinted object.
-                	node x = eval(nArrayList.get(2), env);
-                	try {
-						x.clazz = Class.forName(nArrayList.get(1).stringValue());
-					} catch (ClassNotFoundException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
-					}
-                	return x;
-                }
-                case READ_LINE: { // (read-line)
-                	BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
-                	try {
-						return new node(br.readLine());
-					} catch (IOException e) {
-						return node_null;
-					}
-                }
-                case SLURP: { // (slurp FILENAME)
-					String filename = eval(nArrayList.get(1), env).stringValue();
-					try {
-						return new node(slurp(filename));
-					} catch (IOException e) {
-						return node_null;
-					}
                 }
-                case SPIT: { // (spit FILENAME STRING)
-                	String filename = eval(nArrayList.get(1), env).stringValue();
-                	String str = eval(nArrayList.get(2), env).stringValue();
-                	return new node(spit(filename, str));
-                }
-                case THREAD: { // (thread EXPR ..): Creates new thread and starts it.
-                	final ArrayList<node> exprs = new ArrayList<node>(nArrayList.subList(1, nArrayList.size()));
-                	final environment env2 = env;
-                	Thread t = new Thread () {
-                		public void run() {
-                			for (node n : exprs) {
-                				try {
-									eval(n, env2);
-								} catch (Exception e) {
-									// TODO Auto-generated catch block
-									e.printStackTrace();
-								}
-                			}
-                		}
-                	};
-                    t.start();
-                    return new node(t);
-                }
-                default: {
-                    System.err.println("Not implemented function: [" + func.value.toString() + "]");
-                    return node_null;}
-                } // end switch(found)
             }
-            else {
-                if (func.value instanceof fn) {
-                    // anonymous function application. lexical scoping
-                    // (fn (ARGUMENT ..) BODY ..)
-                    fn f = (fn) func.value;
-                    ArrayList<node> arg_syms = f.def.get(1).arrayListValue();
-                    environment local_env = new environment(f.outer_env);
-
-                    int len = arg_syms.size();
-                    for (int i=0; i<len; i++) { // assign arguments
-//                        String k = arg_syms.get(i).stringValue();
-                    	node k = arg_syms.get(i);
-                        node n2 = eval(nArrayList.get(i+1), env);
-//                        local_env.env.put(k, n2);
-                    	local_env.set(((symbol)k.value).code, n2);
-                    }
+        } catch (BreakException e) {
 
-                    len = f.def.size();
-                    node ret = null;
-                    for (int i=2; i<len; i++) { // body
-                    	ret = eval(f.def.get(i), local_env);
-                    }
-                    return ret;
-                }
-                else {
-                    System.err.println("Unknown function: [" + func.value.toString() + "]");
-                    return node_null;
+        }
+        return node_null;
+    }
+
+    // (while CONDITION EXPR ..)
+    node builtin_while(ArrayList<node> nArrayList, environment env) throws Exception {
+        try {
+            node cond = nArrayList.get(1);
+            int len = nArrayList.size();
+            while (eval(cond, env).booleanValue()) {
+                if (limits != null) limits.step();
+                for (int i = 2; i < len; i++) {
+                    eval(nArrayList.get(i), env);
                 }
             }
+        } catch (BreakException E) {
+
         }
-        else {
-//        	return n.clone();
-        	return n;
+        return node_null;
+    }
+
+    // (break)
+    node builtin_break(ArrayList<node> nArrayList, environment env) throws Exception {
+        throw new BreakException();
+    }
+
+    // (strlen X)
+    node builtin_strlen(ArrayList<node> nArrayList, environment env) throws Exception {
+        return new node(eval(nArrayList.get(1), env).stringValue().length());
+    }
+
+    // (strcat X ..)
+    node builtin_strcat(ArrayList<node> nArrayList, environment env) throws Exception {
+        int len = nArrayList.size();
+        if (len <= 1) return new node("");
+        node first = eval(nArrayList.get(1), env);
+        String acc = first.stringValue();
+        for (int i = 2; i < nArrayList.size(); i++) {
+            acc += eval(nArrayList.get(i), env).stringValue();
+        }
+        return new node(acc);
+    }
+
+    // (char-at X POSITION)
+    node builtin_char_at(ArrayList<node> nArrayList, environment env) throws Exception {
+        return new node((int) eval(nArrayList.get(1), env).stringValue().charAt(eval(nArrayList.get(2), env).intValue()));
+    }
+
+    // (chr X)
+    node builtin_chr(ArrayList<node> nArrayList, environment env) throws Exception {
+        char[] temp = {0};
+        temp[0] = (char) eval(nArrayList.get(1), env).intValue();
+        return new node(new String(temp));
+    }
+
+    // (string X)
+    node builtin_string(ArrayList<node> nArrayList, environment env) throws Exception {
+        return new node(eval(nArrayList.get(1), env).stringValue());
+    }
+
+    // (double X)
+    node builtin_double(ArrayList<node> nArrayList, environment env) throws Exception {
+        return new node(eval(nArrayList.get(1), env).doubleValue());
+    }
+
+    // (int X)
+    node builtin_int(ArrayList<node> nArrayList, environment env) throws Exception {
+        return new node(eval(nArrayList.get(1), env).intValue());
+    }
+
+    // (long X)
+    node builtin_long(ArrayList<node> nArrayList, environment env) throws Exception {
+        return new node(eval(nArrayList.get(1), env).longValue());
+    }
+
+    // (read-string X)
+    node builtin_read_string(ArrayList<node> nArrayList, environment env) throws Exception {
+        return new node(parse(eval(nArrayList.get(1), env).stringValue()).get(0).value());
+    }
+
+    // (type X)
+    node builtin_type(ArrayList<node> nArrayList, environment env) throws Exception {
+        return new node(eval(nArrayList.get(1), env).type());
+    }
+
+    // (eval X)
+    node builtin_eval(ArrayList<node> nArrayList, environment env) throws Exception {
+        return eval(form(eval(nArrayList.get(1), env)), env);
+    }
+
+    // code for a list value: forms are ArrayLists, list values may be pvectors or plists
+    static node form(node n) {
+        if (!(n.obj instanceof List)) return n;
+        List<node> lst = n.listValue();
+        boolean same = lst instanceof ArrayList;
+        ArrayList<node> r = new ArrayList<node>(lst.size());
+        for (node x : lst) {
+            node f = form(x);
+            same &= f == x;
+            r.add(f);
+        }
+        return same ? n : new node(r);
+    }
+
+    // (quote X)
+    node builtin_quote(ArrayList<node> nArrayList, environment env) throws Exception {
+        return nArrayList.get(1);
+    }
+
+    node builtin_fn(node func, ArrayList<node> nArrayList, environment env) throws Exception {
+        // anonymous function. lexical scoping
+        // (fn (ARGUMENT ..) BODY ..)
+        ArrayList<node> r = new ArrayList<node>();
+        r.add(func);
+
+        for (int i=1; i<nArrayList.size(); i++) {
+            r.add(nArrayList.get(i));
+        }
+        return new node(new fn(r, env == global_env ? null : env));
+    }
+
+    // (list X ..)
+    node builtin_list(ArrayList<node> nArrayList, environment env) throws Exception {
+        pvector.builder ret = new pvector.builder();
+        for (int i = 1; i < nArrayList.size(); i++) {
+            ret.add(eval(nArrayList.get(i), env));
+        }
+        return new node(ret.build());
+    }
+
+    // (apply FUNC LIST)
+    node builtin_apply(ArrayList<node> nArrayList, environment env) throws Exception {
+        ArrayList<node> expr = new ArrayList<node>();
+        node f = eval(nArrayList.get(1), env);
+        expr.add(f);
+        List<node> lst = eval(nArrayList.get(2), env).listValue();
+        for (node x : lst) {
+            ArrayList<node> item = new ArrayList<node>();
+            item.add(new node(symbol.intern("quote")));
+            item.add(x);
+            expr.add(new node(item));
+        }
+        return eval(new node(expr), env);
+    }
+
+    // the list form evaluates to, for a caller that reads it once. a (map),
+    // (filter), (range), (take) or (drop) there is not shared (see lseq)
+    List<node> seq(node form, environment env) throws Exception {
+        builtin b = prof == null ? seq_builtin(form, env) : null; // the profiler sees every call
+        if (b == null) return eval(form, env).listValue();
+        if (limits != null) limits.step();
+        ArrayList<node> lst = form.arrayListValue();
+        switch (b) {
+        case MAP: return lazy_map(lst, env);
+        case FILTER: return lazy_filter(lst, env);
+        case RANGE: return lazy_range(lst, env);
+        case TAKE: return lazy_take(lst, env);
+        default: return lazy_drop(lst, env);
+        }
+    }
+
+    // the builtin of form when it makes an lseq
+    builtin seq_builtin(node form, environment env) {
+        if (!(form.obj instanceof ArrayList) || form.arrayListValue().isEmpty()) return null;
+        node head = form.arrayListValue().get(0);
+        if (head.obj instanceof symbol) head = env.get(((symbol) head.obj).code);
+        if (head == null || !(head.obj instanceof builtin)) return null;
+        builtin b = (builtin) head.obj;
+        return b == builtin.MAP || b == builtin.FILTER || b == builtin.RANGE || b == builtin.TAKE || b == builtin.DROP ? b : null;
+    }
+
+    // (fold FUNC LIST)
+    node builtin_fold(ArrayList<node> nArrayList, environment env) throws Exception {
+        node f = eval(nArrayList.get(1), env);
+        List<node> lst = seq(nArrayList.get(2), env);
+        lseq.reader it = new lseq.reader(lst);
+        it.has_next();
+        node acc = eval(it.next(), env);
+        ArrayList<node> expr = new ArrayList<node>(); // (FUNC ITEM)
+        expr.add(f);
+        expr.add(null); // first argument
+        expr.add(null); // second argument
+        while (it.has_next()) {
+            expr.set(1, acc);
+            expr.set(2, it.next());
+            acc = eval(new node(expr), env);
+        }
+        return acc;
+    }
+
+    // (FUNC ITEM) for lazy sequences
+    lseq.fn1 fn1(node f, environment env) {
+        return x -> {
+            ArrayList<node> expr = new ArrayList<node>(2);
+            expr.add(f);
+            expr.add(x);
+            return eval(new node(expr), env);
+        };
+    }
+
+    // (map FUNC LIST)
+    node builtin_map(ArrayList<node> nArrayList, environment env) throws Exception {
+        return new node(lazy_map(nArrayList, env).share());
+    }
+
+    lseq lazy_map(ArrayList<node> nArrayList, environment env) throws Exception {
+        node f = eval(nArrayList.get(1), env);
+        return lseq.map(fn1(f, env), seq(nArrayList.get(2), env));
+    }
+
+    // (filter FUNC LIST)
+    node builtin_filter(ArrayList<node> nArrayList, environment env) throws Exception {
+        return new node(lazy_filter(nArrayList, env).share());
+    }
+
+    lseq lazy_filter(ArrayList<node> nArrayList, environment env) throws Exception {
+        node f = eval(nArrayList.get(1), env);
+        return lseq.filter(fn1(f, env), seq(nArrayList.get(2), env));
+    }
+
+    // (range START END STEP)
+    node builtin_range(ArrayList<node> nArrayList, environment env) throws Exception {
+        return new node(lazy_range(nArrayList, env).share());
+    }
+
+    lseq lazy_range(ArrayList<node> nArrayList, environment env) throws Exception {
+        node start = eval(nArrayList.get(1), env);
+        node end = eval(nArrayList.get(2), env);
+        return lseq.range(start, end, eval(nArrayList.get(3), env));
+    }
+
+    // (take N LIST)
+    node builtin_take(ArrayList<node> nArrayList, environment env) throws Exception {
+        return new node(lazy_take(nArrayList, env).share());
+    }
+
+    lseq lazy_take(ArrayList<node> nArrayList, environment env) throws Exception {
+        int n = eval(nArrayList.get(1), env).intValue();
+        return lseq.take(n, seq(nArrayList.get(2), env));
+    }
+
+    // (drop N LIST)
+    node builtin_drop(ArrayList<node> nArrayList, environment env) throws Exception {
+        return new node(lazy_drop(nArrayList, env).share());
+    }
+
+    lseq lazy_drop(ArrayList<node> nArrayList, environment env) throws Exception {
+        int n = eval(nArrayList.get(1), env).intValue();
+        return lseq.drop(n, seq(nArrayList.get(2), env));
+    }
+
+    // (pmap FUNC LIST)
+    node builtin_pmap(ArrayList<node> nArrayList, environment env) throws Exception {
+        node f = eval(nArrayList.get(1), env);
+        List<node> lst = eval(nArrayList.get(2), env).listValue();
+        return new node(parallel.map(fn1(f, env), lst));
+    }
+
+    // (pfilter FUNC LIST)
+    node builtin_pfilter(ArrayList<node> nArrayList, environment env) throws Exception {
+        node f = eval(nArrayList.get(1), env);
+        List<node> lst = eval(nArrayList.get(2), env).listValue();
+        return new node(parallel.filter(fn1(f, env), lst));
+    }
+
+    // (preduce FUNC LIST): FUNC must be associative
+    node builtin_preduce(ArrayList<node> nArrayList, environment env) throws Exception {
+        node f = eval(nArrayList.get(1), env);
+        List<node> lst = eval(nArrayList.get(2), env).listValue();
+        return parallel.reduce((a, b) -> {
+            ArrayList<node> expr = new ArrayList<node>(3); // (FUNC A B)
+            expr.add(f);
+            expr.add(a);
+            expr.add(b);
+            return eval(new node(expr), env);
+        }, lst);
+    }
+
+    // (nth INDEX LIST)
+    node builtin_nth(ArrayList<node> nArrayList, environment env) throws Exception {
+        int i = eval(nArrayList.get(1), env).intValue();
+        List<node> lst = eval(nArrayList.get(2), env).listValue();
+        return lst.get(i);
+    }
+
+    // (length LIST)
+    node builtin_length(ArrayList<node> nArrayList, environment env) throws Exception {
+        List<node> lst = eval(nArrayList.get(1), env).listValue();
+        return new node(lst.size());
+    }
+
+    // (begin X ..): Returns last X for eval to evaluate.
+    node builtin_begin(ArrayList<node> nArrayList, environment env) throws Exception {
+        int last = nArrayList.size() - 1;
+        if (last <= 0) return node_null;
+        for (int i = 1; i < last; i++) {
+            eval(nArrayList.get(i), env);
+        }
+        return nArrayList.get(last);
+    }
+
+    // parameter type for reflective lookup: primitive for boxed numbers, or the cast hint
+    static Class<?> param_class(node a) {
+        if (a.clazz != null) return a.clazz; // use hint
+        switch (a.tag) {
+        case node.INT: return Integer.TYPE;
+        case node.LONG: return Long.TYPE;
+        case node.DOUBLE: return Double.TYPE;
+        }
+        Object param = a.obj;
+        if (param instanceof Integer) return Integer.TYPE;
+        else if (param instanceof Double) return Double.TYPE;
+        else if (param instanceof Long) return Long.TYPE;
+        else if (param instanceof Boolean) return Boolean.TYPE;
+        else return param.getClass();
+    }
+
+    node builtin_dot(ArrayList<node> nArrayList, environment env) throws Exception {
+        // Java interoperability
+        // (. CLASS METHOD ARGUMENT ..) ; Java method invocation
+        try {
+            Class<?> cls;
+            Object obj = null;
+            String className = nArrayList.get(1).stringValue();
+            //if (nArrayList.get(1).value instanceof symbol) { // class's static method e.g. (. java.lang.Math floor 1.5)
+            if (nArrayList.get(1).obj instanceof symbol && env.get(((symbol)nArrayList.get(1).obj).code) == null) { // class's static method e.g. (. System.Math Floor 1.5)
+                cls = class_for_name(className);
+            } else { // object's method e.g. (. "abc" length)
+                obj = eval(nArrayList.get(1), env).value();
+                cls = obj.getClass();
+            }
+            node[] args = new node[nArrayList.size() - 3];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = eval(nArrayList.get(i + 3), env);
+            }
+            String methodName = nArrayList.get(2).stringValue();
+            MethodHandle h = interop.resolve(interop.METHOD, cls, methodName, interop.types(args));
+            return new node(interop.invoke(h, obj, args));
+        } catch (BudgetException e) {
+            throw e;
+        } catch (Throwable e) {
+            budget.check_stop(e);
+            e.printStackTrace();
+            return node_null;
+        }
+    }
+
+    node builtin_dotget(ArrayList<node> nArrayList, environment env) throws Exception {
+        // Java interoperability
+        // (.get CLASS FIELD) ; get Java field
+        try {
+            Class<?> cls;
+            Object obj = null;
+            String className = nArrayList.get(1).stringValue();
+            //if (nArrayList.get(1).value instanceof symbol) { // class's static field e.g. (.get java.lang.Math PI)
+            if (nArrayList.get(1).obj instanceof symbol && env.get(((symbol)nArrayList.get(1).obj).code) == null) { // class's static method e.g. (. System.Math Floor 1.5)
+                cls = class_for_name(className);
+            } else { // object's method
+                obj = eval(nArrayList.get(1), env).value();
+                cls = obj.getClass();
+            }
+            String fieldName = nArrayList.get(2).stringValue();
+            MethodHandle h = interop.resolve(interop.GET, cls, fieldName, interop.no_types);
+            return new node(interop.get(h, obj));
+        } catch (BudgetException e) {
+            throw e;
+        } catch (Throwable e) {
+            budget.check_stop(e);
+            e.printStackTrace();
+            return node_null;
         }
     }
 
+    node builtin_dotset(ArrayList<node> nArrayList, environment env) throws Exception {
+        // Java interoperability
+        // (.set CLASS FIELD VALUE) ; set Java field
+        try {
+            Class<?> cls;
+            Object obj = null;
+            String className = nArrayList.get(1).stringValue();
+            //if (nArrayList.get(1).value instanceof symbol) { // class's static field e.g. (.get java.lang.Math PI)
+            if (nArrayList.get(1).obj instanceof symbol && env.get(((symbol)nArrayList.get(1).obj).code) == null) { // class's static method e.g. (. System.Math Floor 1.5)
+                cls = class_for_name(className);
+            } else { // object's method
+                obj = eval(nArrayList.get(1), env).value();
+                cls = obj.getClass();
+            }
+            String fieldName = nArrayList.get(2).stringValue();
+            MethodHandle h = interop.resolve(interop.SET, cls, fieldName, interop.no_types);
+            Object value = eval(nArrayList.get(3), env).value();
+            interop.set(h, obj, value);
+            return node_null;
+        } catch (BudgetException e) {
+            throw e;
+        } catch (Throwable e) {
+            budget.check_stop(e);
+            e.printStackTrace();
+            return node_null;
+        }
+    }
+
+    node builtin_new(ArrayList<node> nArrayList, environment env) throws Exception {
+        // Java interoperability
+        // (new CLASS ARG ..) ; create new Java object
+        try {
+            String className = nArrayList.get(1).stringValue();
+            Class<?> cls = class_for_name(className);
+            node[] args = new node[nArrayList.size() - 2];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = eval(nArrayList.get(i + 2), env);
+            }
+            MethodHandle h = interop.resolve(interop.CONSTRUCTOR, cls, "<init>", interop.types(args));
+            return new node(interop.invoke(h, null, args));
+        } catch (BudgetException e) {
+            throw e;
+        } catch (Throwable e) {
+            budget.check_stop(e);
+            e.printStackTrace();
+            return node_null;
+        }
+    }
+
+    // (pr X ..)
+    node builtin_pr(ArrayList<node> nArrayList, environment env) throws Exception {
+        for (int i = 1; i < nArrayList.size(); i++) {
+            if (i != 1) System.out.print(" ");
+            System.out.print(eval(nArrayList.get(i), env).stringValue());
+        }
+        return node_null;
+    }
+
+    // (prn X ..)
+    node builtin_prn(ArrayList<node> nArrayList, environment env) throws Exception {
+        for (int i = 1; i < nArrayList.size(); i++) {
+            if (i != 1) System.out.print(" ");
+            System.out.print(eval(nArrayList.get(i), env).stringValue());
+        }
+        System.out.println();
+        return node_null;
+    }
+
+    // (exit X)
+    node builtin_exit(ArrayList<node> nArrayList, environment env) throws Exception {
+        System.out.println();
+        System.exit(eval(nArrayList.get(1), env).intValue());
+        return node_null;
+    }
+
+    // (system "notepad" "a.txt") ; run external program
+    node builtin_system(ArrayList<node> nArrayList, environment env) throws Exception {
+        ArrayList<String> args = new ArrayList<String>();
+        for (int i = 1; i < nArrayList.size(); i++) {
+            args.add(eval(nArrayList.get(i), env).stringValue());
+        }
+        ProcessBuilder pb = new ProcessBuilder(args);
+        pb.inheritIO();
+        Process ps = null;
+        try {
+            ps = pb.start();
+            ps.waitFor();
+            return new node(ps.exitValue());
+        } catch (Exception e) {
+            budget.check_stop(e);
+            e.printStackTrace();
+        }
+        return node_null;
+    }
+
+    // (cons X LST): Returns a new list where x is the first element and lst is the rest.
+    // The new list shares LST.
+    node builtin_cons(ArrayList<node> nArrayList, environment env) throws Exception {
+        //node x = new node(eval(nArrayList.get(1)).value);
+        node x = eval(nArrayList.get(1), env);
+        List<node> lst = eval(nArrayList.get(2), env).listValue();
+        return new node(plist.cons(x, lst));
+    }
+
+    // (null? X): Returns true if X is null.
+    node builtin_nullp(ArrayList<node> nArrayList, environment env) throws Exception {
+        return new node(eval(nArrayList.get(1), env).value() == null);
+    }
+
+    // (cast CLASS X): Returns type-hinted object.
+    node builtin_cast(ArrayList<node> nArrayList, environment env) throws Exception {
+        node x = eval(nArrayList.get(2), env);
+        try {
+            x.clazz = class_for_name(nArrayList.get(1).stringValue());
+        } catch (ClassNotFoundException e) {
+            // TODO Auto-generated catch block
+            e.printStackTrace();
+        }
+        return x;
+    }
+
+    // (read-line)
+    node builtin_read_line(ArrayList<node> nArrayList, environment env) throws Exception {
+        BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
+        try {
+            return new node(br.readLine());
+        } catch (IOException e) {
+            return node_null;
+        }
+    }
+
+    // (slurp FILENAME)
+    node builtin_slurp(ArrayList<node> nArrayList, environment env) throws Exception {
+        String filename = eval(nArrayList.get(1), env).stringValue();
+        try {
+            return new node(slurp(filename));
+        } catch (IOException e) {
+            return node_null;
+        }
+    }
+
+    // (spit FILENAME STRING)
+    node builtin_spit(ArrayList<node> nArrayList, environment env) throws Exception {
+        String filename = eval(nArrayList.get(1), env).stringValue();
+        String str = eval(nArrayList.get(2), env).stringValue();
+        return new node(spit(filename, str));
+    }
+
+    // (load FILE)
+    node builtin_load(ArrayList<node> nArrayList, environment env) throws Exception {
+        return load(eval(nArrayList.get(1), env).stringValue());
+    }
+
+    // (require FILE)
+    node builtin_require(ArrayList<node> nArrayList, environment env) throws Exception {
+        return new node(require(eval(nArrayList.get(1), env).stringValue()));
+    }
+
+    // (thread EXPR ..): Creates new thread and starts it.
+    node builtin_thread(ArrayList<node> nArrayList, environment env) throws Exception {
+        final ArrayList<node> exprs = new ArrayList<node>(nArrayList.subList(1, nArrayList.size()));
+        final environment env2 = env;
+        final budget b = limits;
+        return new node(tasks.start(executor, b, () -> {
+            node r = node_null;
+            for (node n : exprs) {
+                try {
+                    r = eval(n, env2);
+                } catch (BudgetException e) {
+                    throw e;
+                } catch (Exception e) {
+                    if (b != null) b.poll(); // stopped: an interrupt of ours
+                    // TODO Auto-generated catch block
+                    e.printStackTrace();
+                }
+            }
+            return r;
+        }));
+    }
+
+    // (deref FUTURE), (deref FUTURE MS TIMEOUT-VALUE): value of FUTURE, waiting up to MS milliseconds
+    node builtin_deref(ArrayList<node> nArrayList, environment env) throws Exception {
+        node f = eval(nArrayList.get(1), env);
+        if (nArrayList.size() < 4) return tasks.deref(f);
+        node ms = eval(nArrayList.get(2), env);
+        return tasks.deref(f, ms, eval(nArrayList.get(3), env));
+    }
+
+    node[] eval_args(ArrayList<node> nArrayList, environment env) throws Exception {
+        node[] r = new node[nArrayList.size() - 1];
+        for (int i = 0; i < r.length; i++) {
+            r[i] = eval(nArrayList.get(i + 1), env);
+        }
+        return r;
+    }
+
+    // (all FUTURE ..): list of their values. a list argument stands for its elements
+    node builtin_all(ArrayList<node> nArrayList, environment env) throws Exception {
+        return tasks.all(eval_args(nArrayList, env));
+    }
+
+    // (any FUTURE ..): value of the first to finish
+    node builtin_any(ArrayList<node> nArrayList, environment env) throws Exception {
+        return tasks.any(eval_args(nArrayList, env));
+    }
+
+    // (atom X)
+    node builtin_atom(ArrayList<node> nArrayList, environment env) throws Exception {
+        return new node(new atom(eval(nArrayList.get(1), env)));
+    }
+
+    // (swap! ATOM FUNC): sets ATOM to (FUNC VALUE) atomically. Returns the new value
+    node builtin_swap(ArrayList<node> nArrayList, environment env) throws Exception {
+        atom a = (atom) eval(nArrayList.get(1), env).obj;
+        return a.swap(fn1(eval(nArrayList.get(2), env), env));
+    }
+
+    // (compare-and-set! ATOM OLD NEW): sets ATOM to NEW if its value is OLD. Returns whether it did
+    node builtin_compare_and_set(ArrayList<node> nArrayList, environment env) throws Exception {
+        atom a = (atom) eval(nArrayList.get(1), env).obj;
+        node old = eval(nArrayList.get(2), env);
+        return new node(a.compare_and_set(old, eval(nArrayList.get(3), env)));
+    }
+
     ArrayList<node> compile_all(ArrayList<node> lst) {
         ArrayList<node> compiled = new ArrayList<node>();
         int last = lst.size() - 1;
@@ -1342,21 +2304,86 @@ public class paren {
         return compiled;
     }
 
+    ArrayList<node> optimize_all(ArrayList<node> lst) {
+        return optimize ? new optimizer(this).optimize(lst) : lst;
+    }
+
     node eval_all(ArrayList<node> lst) throws Exception {
         int last = lst.size() - 1;
         if (last < 0) return node_null;
         node ret = null;
         for (int i = 0; i <= last; i++) {
-            ret = eval(lst.get(i), global_env);
+            if (mode == engine.CLOSURE) {
+                ret = closure_compiler.compile(lst.get(i), null).eval(null);
+            } else {
+                ret = eval(lst.get(i), global_env);
+            }
         }
         return ret;
     }
 
     public node eval_string(String s) throws Exception {
-        ArrayList<node> compiled = compile_all(parse(s));
+        ArrayList<node> compiled = optimize_all(compile_all(parse(s)));
+        return eval_all(compiled);
+    }
+
+    public node eval_reader(Reader in) throws Exception {
+        ArrayList<node> compiled = optimize_all(compile_all(parse(in)));
         return eval_all(compiled);
     }
 
+    // writes the compiled forms of source_file to out_file (see precompiled)
+    public void compile_file(String source_file, String out_file) throws IOException {
+        precompiled.write(this, source_file, out_file);
+    }
+
+    // runs a file compile_file wrote
+    public node eval_precompiled(String file) throws Exception {
+        return precompiled.read(file).eval(this);
+    }
+
+    // files load and require ran in this interpreter
+    private final Set<Path> loaded = ConcurrentHashMap.newKeySet();
+
+    // (load FILE): runs FILE, source or precompiled, in the globals. its
+    // compiled forms come from the cache all interpreters share (see modules)
+    public node load(String file) throws Exception {
+        Path path = modules.path(file);
+        node r = modules.get(path, optimize).eval(this);
+        loaded.add(path);
+        return r;
+    }
+
+    // (require FILE): loads FILE unless this interpreter has loaded it. returns whether it did
+    public boolean require(String file) throws Exception {
+        Path path = modules.path(file);
+        if (!loaded.add(path)) return false; // before it runs: a file may require itself
+        try {
+            modules.get(path, optimize).eval(this);
+        } catch (Exception | Error e) {
+            loaded.remove(path);
+            throw e;
+        }
+        return true;
+    }
+
+    // evaluates s within b. throws BudgetException when the code exceeds it
+    public node eval_string(String s, budget b) throws Exception {
+        ArrayList<node> compiled = optimize_all(compile_all(parse(s)));
+        budget outer = limits, thread_outer = b.start();
+        limits = b;
+        node r;
+        try {
+            r = eval_all(compiled);
+        } finally {
+            b.join(); // threads it started still count against b
+            limits = outer;
+            b.stop(thread_outer);
+        }
+        b.poll();
+        return r;
+    }
+
     void eval_print(String s) throws Exception {
         System.out.println(eval_string(s).str_with_type());
     }
@@ -1,5 +1,10 @@
 package org.bitbucket.ktg;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 
 // (C) 2013-2015 Kim, Taegyoon
 // Parenj: The Paren Programming Language written in Java
@@ -7,11 +12,51 @@ import java.io.IOException;
 public class parenj {
     public static Object testField;
     public static void main(String[] args) throws Exception {
-        if (args.length == 0) {
-            paren p = new paren();
+        paren.engine mode = paren.engine.TREE;
+        int first = 0; // first file argument
+        String profile = null; // collapsed stacks file
+        boolean optimize = true;
+        boolean jit = true;
+        boolean compile = false; // write precompiled files instead of running
+        for (;;) {
+            if (args.length > first && args[first].equals("-x")) {
+                mode = paren.engine.CLOSURE;
+                first++;
+            } else if (args.length > first && args[first].equals("-n")) {
+                optimize = false;
+                first++;
+            } else if (args.length > first && args[first].equals("-i")) {
+                jit = false;
+                first++;
+            } else if (args.length > first && args[first].equals("-c")) {
+                compile = true;
+                first++;
+            } else if (args.length > first + 1 && args[first].equals("-p")) {
+                profile = args[first + 1];
+                first += 2;
+            } else {
+                break;
+            }
+        }
+        profiler prof = profile == null ? null : new profiler();
+        if (compile) {
+            for (int i = first; i < args.length; i++) {
+                paren p = new paren(mode);
+                p.set_optimize(optimize);
+                p.compile_file(args[i], args[i] + "c");
+            }
+            return;
+        }
+        if (args.length == first) {
+            paren p = new paren(mode);
+            p.set_profiler(prof);
+            p.set_optimize(optimize);
+            p.set_jit(jit);
             p.print_logo();
             p.repl();
             System.out.println();
+            tasks.await_all();
+            report(prof, profile);
             return;
         } else if (args.length == 1) {
             if (args[0].equals("-h")) {
@@ -20,6 +65,11 @@ public class parenj {
                 System.out.println("OPTIONS:");
                 System.out.println("    -h    print this screen.");
                 System.out.println("    -v    print version.");
+                System.out.println("    -x    use the closure-compiling engine.");
+                System.out.println("    -n    do not optimize: no constant folding or inlining.");
+                System.out.println("    -i    with -x, interpret every fn: do not compile hot fns to JVM classes.");
+                System.out.println("    -p FILE    profile: print calls and times of fns and builtins, write collapsed stacks to FILE.");
+                System.out.println("    -c    compile each FILE to FILEc, macros expanded and optimized, instead of running it. FILEc runs like FILE.");
                 return;
             } else if (args[0].equals("-v")) {
                 System.out.println(paren.VERSION);
@@ -28,13 +78,42 @@ public class parenj {
         }
 
         // execute files, one by one
-        for (String fileName : args) {
-            paren p = new paren();
+        for (int i = first; i < args.length; i++) {
+            String fileName = args[i];
+            paren p = new paren(mode);
+            p.set_profiler(prof);
+            p.set_optimize(optimize);
+            p.set_jit(jit);
             try {
-        		p.eval_string(paren.slurp(fileName));
+                fileName = fresh(fileName);
+                if (precompiled.is_precompiled(fileName)) {
+                    p.eval_precompiled(fileName);
+                } else {
+                    try (Reader in = new InputStreamReader(new FileInputStream(fileName))) {
+                        p.eval_reader(in);
+                    }
+                }
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
+        tasks.await_all(); // threads still running
+        report(prof, profile);
+    }
+
+    // fileName, or the source beside a precompiled fileName that was not compiled from it
+    static String fresh(String fileName) throws IOException {
+        if (!fileName.endsWith("c") || !precompiled.is_precompiled(fileName)) return fileName;
+        String source = fileName.substring(0, fileName.length() - 1);
+        if (!Files.isRegularFile(Paths.get(source))) return fileName;
+        if (precompiled.compiled_from(fileName, Files.readAllBytes(Paths.get(source)))) return fileName;
+        System.err.println(fileName + " is older than " + source + ", running " + source);
+        return source;
+    }
+
+    static void report(profiler prof, String fileName) throws IOException {
+        if (prof == null) return;
+        prof.report(System.err);
+        prof.write_collapsed(fileName);
     }
 }
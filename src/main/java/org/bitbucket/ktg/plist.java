@@ -0,0 +1,68 @@
+// (C) 2013-2015 Kim, Taegyoon
+// Paren persistent list
+//
+// The list value of (cons X LST): one cell in front of LST, which it shares.
+// Immutable; Java code sees a read-only java.util.List.
+package org.bitbucket.ktg;
+import java.util.AbstractList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.bitbucket.ktg.paren.node;
+
+final class plist extends AbstractList<node> {
+    final node first;
+    final List<node> rest; // a plist or a pvector
+    private final int cnt;
+
+    private plist(node first, List<node> rest) {
+        this.first = first;
+        this.rest = rest;
+        this.cnt = rest.size() + 1;
+    }
+
+    // other lists (e.g. quoted forms) are copied once, so later cons share them
+    static plist cons(node x, List<node> lst) {
+        if (!(lst instanceof plist)) lst = pvector.of(lst);
+        return new plist(x, lst);
+    }
+
+    public int size() {
+        return cnt;
+    }
+
+    public node get(int i) {
+        if (i < 0 || i >= cnt) throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + cnt);
+        List<node> l = this;
+        while (l instanceof plist) {
+            plist c = (plist) l;
+            if (i == 0) return c.first;
+            i--;
+            l = c.rest;
+        }
+        return l.get(i);
+    }
+
+    public Iterator<node> iterator() {
+        return new Iterator<node>() {
+            List<node> l = plist.this;
+            Iterator<node> vec; // iterator over the pvector at the end
+            public boolean hasNext() {
+                return vec == null ? true : vec.hasNext();
+            }
+            public node next() {
+                if (vec == null) {
+                    if (l instanceof plist) {
+                        plist c = (plist) l;
+                        l = c.rest;
+                        if (!(l instanceof plist)) vec = l.iterator();
+                        return c.first;
+                    }
+                }
+                if (vec == null || !vec.hasNext()) throw new NoSuchElementException();
+                return vec.next();
+            }
+        };
+    }
+}
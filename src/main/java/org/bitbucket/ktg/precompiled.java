@@ -0,0 +1,284 @@
+// (C) 2013-2015 Kim, Taegyoon
+// Paren precompiled files
+//
+// parenj -c FILE writes FILE + "c": the forms of FILE after macro expansion
+// and the optimizer, so running it skips reading, parsing and compiling.
+// Big-endian; N is an unsigned varint, Z a zigzag varint:
+//   "PRNC" u2 version u2 flags (1: optimized) 32 bytes SHA-256 of the source
+//   N symbols, each N bytes of UTF-8: the names SYMBOL refers to by index
+//   N macros: the (defmacro ..) forms of the source, defined again on load
+//   N forms
+// a form is one tag byte, then NULL FALSE TRUE: nothing, INT LONG: Z,
+// DOUBLE: 8 bytes, STRING: N bytes of UTF-8, SYMBOL: N index, LIST: N forms.
+package org.bitbucket.ktg;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.bitbucket.ktg.paren.node;
+import org.bitbucket.ktg.paren.symbol;
+
+final class precompiled {
+    static final byte[] MAGIC = {'P', 'R', 'N', 'C'};
+    static final int VERSION = 1;
+    static final int OPTIMIZED = 1; // flag
+    static final int HASH = 8, HEADER = 40; // offset of the hash, bytes before the symbols
+
+    // tags
+    static final byte NULL = 0, INT = 1, LONG = 2, DOUBLE = 3, FALSE = 4, TRUE = 5, STRING = 6, SYMBOL = 7, LIST = 8;
+
+    final byte[] hash; // of the source
+    final int flags;
+    final ArrayList<node> macros; // (defmacro NAME (PARAMETER ..) BODY)
+    final ArrayList<node> forms;
+
+    private precompiled(byte[] hash, int flags, ArrayList<node> macros, ArrayList<node> forms) {
+        this.hash = hash;
+        this.flags = flags;
+        this.macros = macros;
+        this.forms = forms;
+    }
+
+    static byte[] hash(byte[] source) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(source);
+        } catch (NoSuchAlgorithmException e) { // every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // whether file was compiled from source; reads only its header
+    static boolean compiled_from(String file, byte[] source) throws IOException {
+        byte[] b = head(file, HEADER);
+        return b.length == HEADER && Arrays.equals(Arrays.copyOfRange(b, HASH, HEADER), hash(source));
+    }
+
+    // defines the macros in p, then evaluates the forms
+    node eval(paren p) throws Exception {
+        for (node m : macros) p.compile(m);
+        return p.eval_all(forms);
+    }
+
+    // compiles source the way p would run it
+    static precompiled compile(paren p, byte[] source) {
+        ArrayList<node> macros = new ArrayList<node>();
+        ArrayList<node> forms;
+        p.defined_macros = macros;
+        try {
+            forms = p.optimize_all(p.compile_all(p.parse(new String(source, Charset.defaultCharset()))));
+        } finally {
+            p.defined_macros = null;
+        }
+        return new precompiled(hash(source), p.get_optimize() ? OPTIMIZED : 0, macros, forms);
+    }
+
+    // compiles source_file the way p would run it, and writes it to out_file
+    static void write(paren p, String source_file, String out_file) throws IOException {
+        compile(p, Files.readAllBytes(Paths.get(source_file))).write(out_file);
+    }
+
+    void write(String out_file) throws IOException {
+        writer w = new writer();
+        w.forms(macros);
+        w.forms(forms);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out_file)))) {
+            out.write(MAGIC);
+            out.writeShort(VERSION);
+            out.writeShort(flags);
+            out.write(hash);
+            writer.varint(out, w.symbols.size());
+            for (String name : w.names) {
+                byte[] b = name.getBytes(StandardCharsets.UTF_8);
+                writer.varint(out, b.length);
+                out.write(b);
+            }
+            w.body.writeTo(out);
+        }
+    }
+
+    // whether file starts like a precompiled file
+    static boolean is_precompiled(String file) throws IOException {
+        return is_precompiled(head(file, MAGIC.length));
+    }
+
+    static boolean is_precompiled(byte[] b) {
+        return b.length >= MAGIC.length && Arrays.equals(Arrays.copyOf(b, MAGIC.length), MAGIC);
+    }
+
+    // the first n bytes of file, fewer if it is shorter
+    private static byte[] head(String file, int n) throws IOException {
+        byte[] b = new byte[n];
+        int k = 0;
+        try (InputStream in = Files.newInputStream(Paths.get(file))) {
+            for (int r; k < n && (r = in.read(b, k, n - k)) > 0; k += r) {}
+        }
+        return k == n ? b : Arrays.copyOf(b, k);
+    }
+
+    // maps file into memory and decodes it
+    static precompiled read(String file) throws IOException {
+        try (FileChannel ch = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            MappedByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            return read(b, file);
+        }
+    }
+
+    static precompiled read(ByteBuffer b, String file) throws IOException {
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            b.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) throw new IOException(file + ": not a precompiled Paren file");
+            int version = b.getShort() & 0xffff;
+            if (version != VERSION) throw new IOException(file + ": precompiled file version " + version + ", expected " + VERSION);
+            int flags = b.getShort() & 0xffff;
+            byte[] hash = new byte[HEADER - HASH];
+            b.get(hash);
+            reader r = new reader(b);
+            int n = r.count();
+            r.symbols = new symbol[n];
+            for (int i = 0; i < n; i++) r.symbols[i] = symbol.intern(r.string());
+            ArrayList<node> macros = r.forms();
+            ArrayList<node> forms = r.forms();
+            return new precompiled(hash, flags, macros, forms);
+        } catch (BufferUnderflowException e) {
+            throw new IOException(file + ": truncated precompiled file");
+        }
+    }
+
+    private static final class writer {
+        final HashMap<symbol, Integer> symbols = new HashMap<symbol, Integer>(); // index in names
+        final ArrayList<String> names = new ArrayList<String>();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        static void varint(OutputStream out, long v) throws IOException {
+            while ((v & ~0x7fL) != 0) {
+                out.write((int) (v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            out.write((int) v);
+        }
+
+        void forms(ArrayList<node> lst) throws IOException {
+            varint(body, lst.size());
+            for (node n : lst) form(n);
+        }
+
+        void form(node n) throws IOException {
+            switch (n.tag) {
+            case node.INT:
+            case node.LONG:
+                body.write(n.tag == node.INT ? INT : LONG);
+                varint(body, (n.bits << 1) ^ (n.bits >> 63));
+                return;
+            case node.DOUBLE:
+                body.write(DOUBLE);
+                for (int s = 56; s >= 0; s -= 8) body.write((int) (n.bits >>> s));
+                return;
+            }
+            Object o = n.obj;
+            if (o == null) {
+                body.write(NULL);
+            } else if (o instanceof Boolean) {
+                body.write((Boolean) o ? TRUE : FALSE);
+            } else if (o instanceof String) {
+                byte[] b = ((String) o).getBytes(StandardCharsets.UTF_8);
+                body.write(STRING);
+                varint(body, b.length);
+                body.write(b);
+            } else if (o instanceof symbol) {
+                Integer i = symbols.get(o);
+                if (i == null) {
+                    i = names.size();
+                    symbols.put((symbol) o, i);
+                    names.add(((symbol) o).name);
+                }
+                body.write(SYMBOL);
+                varint(body, i);
+            } else if (o instanceof ArrayList) {
+                body.write(LIST);
+                forms(n.arrayListValue());
+            } else {
+                throw new IOException("cannot write a compiled " + n.type());
+            }
+        }
+    }
+
+    private static final class reader {
+        final ByteBuffer b;
+        symbol[] symbols;
+
+        reader(ByteBuffer b) {
+            this.b = b;
+        }
+
+        long varint() throws IOException {
+            long v = 0;
+            for (int s = 0; s < 64; s += 7) {
+                int x = b.get();
+                v |= (long) (x & 0x7f) << s;
+                if (x >= 0) return v;
+            }
+            throw new IOException("bad varint at " + b.position());
+        }
+
+        int count() throws IOException {
+            long n = varint();
+            if (n > b.remaining()) throw new IOException("bad count " + n + " at " + b.position()); // each item takes a byte at least
+            return (int) n;
+        }
+
+        String string() throws IOException {
+            byte[] a = new byte[count()];
+            b.get(a);
+            return new String(a, StandardCharsets.UTF_8);
+        }
+
+        ArrayList<node> forms() throws IOException {
+            int n = count();
+            ArrayList<node> r = new ArrayList<node>(n);
+            for (int i = 0; i < n; i++) r.add(form());
+            return r;
+        }
+
+        node form() throws IOException {
+            byte tag = b.get();
+            switch (tag) {
+            case NULL: return new node();
+            case FALSE: return new node(false);
+            case TRUE: return new node(true);
+            case INT: case LONG: {
+                long z = varint();
+                long v = (z >>> 1) ^ -(z & 1);
+                return tag == INT ? new node((int) v) : new node(v);
+            }
+            case DOUBLE: return new node(Double.longBitsToDouble(b.getLong()));
+            case STRING: return new node(string());
+            case SYMBOL: {
+                long i = varint();
+                if (i >= symbols.length) throw new IOException("bad symbol index " + i);
+                return new node(symbols[(int) i]);
+            }
+            case LIST: return new node(forms());
+            default: throw new IOException("bad tag " + tag + " at " + (b.position() - 1));
+            }
+        }
+    }
+}
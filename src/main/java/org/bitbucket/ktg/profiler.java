@@ -0,0 +1,255 @@
+// (C) 2013-2015 Kim, Taegyoon
+// Paren profiler
+//
+// Counts the calls of each fn and builtin and measures the time and the bytes
+// allocated in them: in total (inclusive) and not counting the calls they
+// make (exclusive). fns are named by the variable (def), (defn) or (set) first
+// bound them to; others are "(fn)".
+//
+//   profiler prof = new profiler();
+//   p.set_profiler(prof); // before the code is read: the closure engine counts builtins while compiling
+//   ...
+//   prof.report(System.err);
+//   prof.write_collapsed("paren.folded"); // flamegraph.pl paren.folded > paren.svg
+//
+// With no profiler an interpreter only tests one field per call. Each thread
+// keeps its own call tree, so threads do not contend; report and
+// write_collapsed should run when no Paren code is running.
+package org.bitbucket.ktg;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+public final class profiler {
+    // bytes allocated by a thread, or null on JVMs that do not count them
+    private static final com.sun.management.ThreadMXBean threads = thread_mx();
+
+    private static com.sun.management.ThreadMXBean thread_mx() {
+        try {
+            com.sun.management.ThreadMXBean t = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            if (!t.isThreadAllocatedMemorySupported()) return null;
+            t.setThreadAllocatedMemoryEnabled(true);
+            return t;
+        } catch (RuntimeException | LinkageError e) {
+            return null;
+        }
+    }
+
+    // one call path: calls of name from its parent's path
+    static final class site {
+        final String name;
+        final site parent;
+        final HashMap<String, site> children = new HashMap<String, site>();
+        long calls, self_ns, total_ns, self_bytes, total_bytes;
+        site(String name, site parent) {
+            this.name = name;
+            this.parent = parent;
+        }
+        site child(String name) {
+            site c = children.get(name);
+            if (c == null) {
+                c = new site(name, this);
+                children.put(name, c);
+            }
+            return c;
+        }
+    }
+
+    // calls in progress on one thread
+    final class stack {
+        private final long thread_id = Thread.currentThread().getId();
+        final site root = new site(null, null);
+        private site top = root;
+        private int depth;
+        private long[] start_ns = new long[64], start_bytes = new long[64];
+        // tree engine: for each eval call, the depth it started at and the depth of its fn
+        private int[] marks = new int[64], bases = new int[64];
+        private int nmarks;
+        private long last_ns = System.nanoTime(), last_bytes = bytes(); // last push or pop
+
+        private long bytes() {
+            return threads == null ? 0 : threads.getThreadAllocatedBytes(thread_id);
+        }
+
+        // charges the time and bytes since the last event to the call on top
+        private void charge(long ns, long b) {
+            top.self_ns += ns - last_ns;
+            top.self_bytes += b - last_bytes;
+            last_ns = ns;
+            last_bytes = b;
+        }
+
+        void push(String name) {
+            long ns = System.nanoTime(), b = bytes();
+            charge(ns, b);
+            if (depth == start_ns.length) {
+                start_ns = Arrays.copyOf(start_ns, depth * 2);
+                start_bytes = Arrays.copyOf(start_bytes, depth * 2);
+            }
+            start_ns[depth] = ns;
+            start_bytes[depth] = b;
+            depth++;
+            top = top.child(name);
+            top.calls++;
+        }
+
+        void pop() {
+            long ns = System.nanoTime(), b = bytes();
+            charge(ns, b);
+            depth--;
+            top.total_ns += ns - start_ns[depth];
+            top.total_bytes += b - start_bytes[depth];
+            top = top.parent;
+        }
+
+        // a tail call: name takes the place of the call on top
+        void replace(String name) {
+            pop();
+            push(name);
+        }
+
+        void unwind(int to) {
+            while (depth > to) pop();
+        }
+
+        // start and end of one eval call of the tree engine
+        void mark() {
+            if (nmarks == marks.length) {
+                marks = Arrays.copyOf(marks, nmarks * 2);
+                bases = Arrays.copyOf(bases, nmarks * 2);
+            }
+            marks[nmarks] = bases[nmarks] = depth;
+            nmarks++;
+        }
+
+        void unmark() {
+            unwind(marks[--nmarks]);
+        }
+
+        // the fn the current eval call went into: a tail call replaces the one before
+        void at_fn(String name) {
+            unwind(marks[nmarks - 1]);
+            push(name);
+            bases[nmarks - 1] = depth;
+        }
+
+        // the builtin the current eval call is in, called from its fn
+        void at_builtin(String name) {
+            unwind(bases[nmarks - 1]);
+            push(name);
+        }
+    }
+
+    private final List<stack> stacks = Collections.synchronizedList(new ArrayList<stack>());
+    private final ThreadLocal<stack> current = new ThreadLocal<stack>() {
+        protected stack initialValue() {
+            stack s = new stack();
+            stacks.add(s);
+            return s;
+        }
+    };
+
+    public profiler() {}
+
+    static final String ANONYMOUS = "(fn)";
+
+    stack stack() {
+        return current.get();
+    }
+
+    // tree engine: an eval call, which takes the calls it makes in tail position off the stack when it returns
+    paren.node eval(paren p, paren.node n, paren.environment env) throws Exception {
+        stack s = current.get();
+        s.mark();
+        try {
+            return p.eval_loop(n, env);
+        } finally {
+            s.unmark();
+        }
+    }
+
+    // totals of one fn or builtin over all its call paths and threads
+    static final class entry {
+        final String name;
+        long calls, self_ns, total_ns, self_bytes, total_bytes;
+        entry(String name) {
+            this.name = name;
+        }
+    }
+
+    private static void sum(site s, Map<String, entry> out, Map<String, Integer> active) {
+        if (s.name != null) {
+            entry e = out.get(s.name);
+            if (e == null) {
+                e = new entry(s.name);
+                out.put(s.name, e);
+            }
+            e.calls += s.calls;
+            e.self_ns += s.self_ns;
+            e.self_bytes += s.self_bytes;
+            Integer n = active.get(s.name);
+            if (n == null) { // a recursive call is already in the total of the outer one
+                e.total_ns += s.total_ns;
+                e.total_bytes += s.total_bytes;
+            }
+            active.put(s.name, n == null ? 1 : n + 1);
+        }
+        for (site c : s.children.values()) sum(c, out, active);
+        if (s.name != null) {
+            int n = active.get(s.name);
+            if (n == 1) active.remove(s.name);
+            else active.put(s.name, n - 1);
+        }
+    }
+
+    // totals by name, most exclusive time first
+    List<entry> entries() {
+        Map<String, entry> m = new HashMap<String, entry>();
+        synchronized (stacks) {
+            for (stack s : stacks) sum(s.root, m, new HashMap<String, Integer>());
+        }
+        List<entry> r = new ArrayList<entry>(m.values());
+        Collections.sort(r, (a, b) -> Long.compare(b.self_ns, a.self_ns));
+        return r;
+    }
+
+    // table of calls, inclusive and exclusive milliseconds and kilobytes
+    public void report(PrintStream out) {
+        out.printf("%12s %12s %12s %12s %12s  %s%n", "calls", "total ms", "self ms", "total KB", "self KB", "name");
+        for (entry e : entries()) {
+            out.printf("%12d %12.3f %12.3f %12d %12d  %s%n", e.calls, e.total_ns / 1e6, e.self_ns / 1e6,
+                e.total_bytes / 1024, e.self_bytes / 1024, e.name);
+        }
+        if (threads == null) out.println("(this JVM does not count allocated bytes)");
+    }
+
+    private static void collapse(site s, String path, Map<String, Long> out) {
+        String p = s.name == null ? null : path == null ? s.name : path + ";" + s.name;
+        long us = s.self_ns / 1000;
+        if (p != null && us > 0) {
+            Long old = out.get(p);
+            out.put(p, old == null ? us : old + us);
+        }
+        for (site c : s.children.values()) collapse(c, p, out);
+    }
+
+    // one line per call path, "f;g;+ MICROSECONDS" of exclusive time, for flamegraph.pl
+    public void write_collapsed(String fileName) throws IOException {
+        Map<String, Long> m = new TreeMap<String, Long>();
+        synchronized (stacks) {
+            for (stack s : stacks) collapse(s.root, null, m);
+        }
+        try (PrintWriter w = new PrintWriter(new FileWriter(fileName))) {
+            for (Map.Entry<String, Long> e : m.entrySet()) w.println(e.getKey() + " " + e.getValue());
+        }
+    }
+}
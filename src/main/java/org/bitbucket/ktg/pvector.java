@@ -0,0 +1,117 @@
+// (C) 2013-2015 Kim, Taegyoon
+// Paren persistent vector
+//
+// The list value of (list), and of lazy sequences once realized. Immutable; elements
+// live in a trie of 32-element arrays (the last, partly filled one kept
+// apart as the tail), so nth is O(log32 n) and length is O(1).
+// Java code sees a read-only java.util.List.
+package org.bitbucket.ktg;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+import org.bitbucket.ktg.paren.node;
+
+final class pvector extends AbstractList<node> implements RandomAccess {
+    static final pvector EMPTY = new pvector(0, 5, new Object[32], new Object[0]);
+
+    private final int cnt;
+    private final int shift; // bits of the index the root consumes
+    private final Object[] root;
+    private final Object[] tail;
+
+    private pvector(int cnt, int shift, Object[] root, Object[] tail) {
+        this.cnt = cnt;
+        this.shift = shift;
+        this.root = root;
+        this.tail = tail;
+    }
+
+    static pvector of(List<node> lst) {
+        if (lst instanceof pvector) return (pvector) lst;
+        builder b = new builder();
+        for (node n : lst) b.add(n);
+        return b.build();
+    }
+
+    public int size() {
+        return cnt;
+    }
+
+    public node get(int i) {
+        if (i < 0 || i >= cnt) throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + cnt);
+        return (node) leaf(i)[i & 31];
+    }
+
+    // the 32-element array holding element i
+    private Object[] leaf(int i) {
+        if (i >= cnt - tail.length) return tail;
+        Object[] a = root;
+        for (int level = shift; level > 0; level -= 5) {
+            a = (Object[]) a[(i >>> level) & 31];
+        }
+        return a;
+    }
+
+    // walks the trie once per 32 elements
+    public Iterator<node> iterator() {
+        return new Iterator<node>() {
+            int i;
+            Object[] a;
+            public boolean hasNext() {
+                return i < cnt;
+            }
+            public node next() {
+                if (i >= cnt) throw new NoSuchElementException();
+                if ((i & 31) == 0) a = leaf(i);
+                return (node) a[i++ & 31];
+            }
+        };
+    }
+
+    // fills 32-element leaves in order, then builds the trie over them once
+    static final class builder {
+        private final ArrayList<Object[]> leaves = new ArrayList<Object[]>();
+        private Object[] leaf = new Object[32];
+        private int n;
+
+        builder add(node x) {
+            if (n > 0 && (n & 31) == 0) {
+                leaves.add(leaf);
+                leaf = new Object[32];
+            }
+            leaf[n & 31] = x;
+            n++;
+            return this;
+        }
+
+        pvector build() {
+            if (n == 0) return EMPTY;
+            int tail_size = ((n - 1) & 31) + 1;
+            Object[] tail = new Object[tail_size];
+            System.arraycopy(leaf, 0, tail, 0, tail_size);
+            int shift = 5;
+            ArrayList<Object[]> level = leaves;
+            while (level.size() > 32) {
+                ArrayList<Object[]> parents = new ArrayList<Object[]>((level.size() + 31) / 32);
+                for (int i = 0; i < level.size(); i += 32) {
+                    Object[] p = new Object[32];
+                    for (int j = 0; j < 32 && i + j < level.size(); j++) {
+                        p[j] = level.get(i + j);
+                    }
+                    parents.add(p);
+                }
+                level = parents;
+                shift += 5;
+            }
+            Object[] root = new Object[32];
+            for (int i = 0; i < level.size(); i++) {
+                root[i] = level.get(i);
+            }
+            return new pvector(n, shift, root, tail);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+// (C) 2013-2015 Kim, Taegyoon
+// Paren tasks
+//
+// (thread EXPR ..) runs on its interpreter's Executor and returns a
+// CompletableFuture of its last value; (deref), (all) and (any) wait on them.
+// The default Executor starts a virtual thread per task on JVMs that have
+// them (Java 21 and later) and a platform thread per task elsewhere.
+package org.bitbucket.ktg;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.bitbucket.ktg.paren.node;
+
+final class tasks {
+    private tasks() {}
+
+    static final Executor PLATFORM = r -> new Thread(r).start();
+    static final Executor DEFAULT = default_executor();
+
+    private static Executor default_executor() {
+        try {
+            return (Executor) MethodHandles.publicLookup()
+                .findStatic(Executors.class, "newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class))
+                .invoke();
+        } catch (Throwable e) {
+            return PLATFORM;
+        }
+    }
+
+    interface body {
+        node run() throws Exception;
+    }
+
+    // unfinished tasks. virtual threads do not keep the JVM alive, so parenj waits for these
+    private static final Set<CompletableFuture<Object>> running = ConcurrentHashMap.newKeySet();
+
+    // limits: the budget of the evaluation starting it, or null. the task counts against it
+    static CompletableFuture<Object> start(Executor executor, final budget limits, final body b) {
+        final CompletableFuture<Object> f = new CompletableFuture<Object>();
+        running.add(f);
+        if (limits != null) limits.tasks.add(f);
+        if (limits != null && limits.max_bytes > 0 && executor == DEFAULT) executor = PLATFORM; // the JVM counts no bytes of virtual threads
+        try {
+            executor.execute(() -> {
+                budget outer = limits == null ? null : limits.enter();
+                try {
+                    node r;
+                    try {
+                        r = b.run();
+                    } finally {
+                        if (limits != null) limits.leave(outer); // before f is done, so join sees all it counted
+                    }
+                    f.complete(r == null ? null : r.value());
+                } catch (Throwable e) {
+                    f.completeExceptionally(e);
+                } finally {
+                    running.remove(f);
+                }
+            });
+        } catch (RuntimeException e) {
+            running.remove(f);
+            if (limits != null) limits.tasks.remove(f);
+            throw e;
+        }
+        return f;
+    }
+
+    // waits until every task started so far, and every task those start, has finished
+    static void await_all() {
+        while (!running.isEmpty()) {
+            for (CompletableFuture<?> f : running.toArray(new CompletableFuture<?>[0])) {
+                try {
+                    f.join();
+                } catch (RuntimeException e) {
+                }
+            }
+        }
+    }
+
+    private static Object get(Future<?> f) throws Exception {
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            throw cause(e);
+        }
+    }
+
+    // the task's own exception
+    private static Exception cause(ExecutionException e) {
+        Throwable c = e.getCause();
+        return c instanceof Exception ? (Exception) c : e;
+    }
+
+    // (deref FUTURE), (deref ATOM)
+    static node deref(node f) throws Exception {
+        if (f.obj instanceof atom) return ((atom) f.obj).deref();
+        return new node(get((Future<?>) f.value()));
+    }
+
+    // (deref FUTURE MS TIMEOUT-VALUE)
+    static node deref(node f, node ms, node timeout_value) throws Exception {
+        if (f.obj instanceof atom) return ((atom) f.obj).deref();
+        try {
+            return new node(((Future<?>) f.value()).get(ms.longValue(), TimeUnit.MILLISECONDS));
+        } catch (TimeoutException e) {
+            return timeout_value;
+        } catch (ExecutionException e) {
+            throw cause(e);
+        }
+    }
+
+    // a list argument of (all) and (any) stands for its elements
+    private static void collect(node[] args, List<CompletableFuture<?>> out) {
+        for (node a : args) {
+            Object v = a.value();
+            if (v instanceof List) {
+                for (node x : a.listValue()) out.add((CompletableFuture<?>) x.value());
+            }
+            else {
+                out.add((CompletableFuture<?>) v);
+            }
+        }
+    }
+
+    // (all FUTURE ..): list of their values, in order
+    static node all(node[] args) throws Exception {
+        List<CompletableFuture<?>> fs = new ArrayList<CompletableFuture<?>>();
+        collect(args, fs);
+        pvector.builder r = new pvector.builder();
+        for (CompletableFuture<?> f : fs) r.add(new node(get(f)));
+        return new node(r.build());
+    }
+
+    // (any FUTURE ..): value of the first to finish
+    static node any(node[] args) throws Exception {
+        List<CompletableFuture<?>> fs = new ArrayList<CompletableFuture<?>>();
+        collect(args, fs);
+        return new node(get(CompletableFuture.anyOf(fs.toArray(new CompletableFuture<?>[0]))));
+    }
+}